@@ -1,14 +1,13 @@
 package com.algolia.search.saas;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UTFDataFormatException;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -25,6 +24,7 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
 import org.apache.http.client.HttpClient;
@@ -35,6 +35,8 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicHeader;
@@ -114,6 +116,8 @@ public class APIClient {
     private HashMap<String, String> headers;
     private final boolean verbose;
     private String userAgent;
+    private volatile SearchBatcher searchBatcher;
+    private volatile WriteSpool writeSpool;
 
     /**
      * Algolia Search initialization
@@ -216,6 +220,40 @@ public class APIClient {
         httpConnectTimeoutMS = connectTimeout;
     }
 
+    /**
+     * Gather the concurrent Index.search calls of this client and send them as one multipleQueries call.
+     * A search waits at most windowMS for other searches, and a batch is sent as soon as it contains maxQueries searches.
+     *
+     * @param windowMS   the maximum time in milliseconds a search waits for other searches
+     * @param maxQueries the maximum number of searches sent in the same call
+     */
+    public void enableSearchBatching(long windowMS, int maxQueries) {
+        searchBatcher = new SearchBatcher(this, windowMS, maxQueries);
+    }
+
+    /**
+     * Disable the batching enabled with enableSearchBatching()
+     */
+    public void disableSearchBatching() {
+        searchBatcher = null;
+    }
+
+    SearchBatcher getSearchBatcher() {
+        return searchBatcher;
+    }
+
+    /**
+     * Spool the batches failing because all the hosts are unreachable and replay them in the background.
+     * The spooled batches fail with a WriteSpooledException, they have no taskID and must not be retried.
+     * A spool can only be attached to one client.
+     */
+    public void setWriteSpool(WriteSpool spool) {
+        if (spool != null) {
+            spool.start(this);
+        }
+        this.writeSpool = spool;
+    }
+
     /**
      * List all existing indexes
      * return an JSON Object in the form:
@@ -233,11 +271,7 @@ public class APIClient {
      *                  return an object containing a "deletedAt" attribute
      */
     public JSONObject deleteIndex(String indexName) throws AlgoliaException {
-        try {
-            return deleteRequest("/1/indexes/" + URLEncoder.encode(indexName, "UTF-8"), true);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e); // $COVERAGE-IGNORE$
-        }
+        return deleteRequest("/1/indexes/" + PercentEncoder.encode(indexName), true);
     }
 
     /**
@@ -251,9 +285,7 @@ public class APIClient {
             JSONObject content = new JSONObject();
             content.put("operation", "move");
             content.put("destination", dstIndexName);
-            return postRequest("/1/indexes/" + URLEncoder.encode(srcIndexName, "UTF-8") + "/operation", content.toString(), true, false);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e); // $COVERAGE-IGNORE$
+            return postRequest("/1/indexes/" + PercentEncoder.encode(srcIndexName) + "/operation", content.toString(), true, false);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage()); // $COVERAGE-IGNORE$
         }
@@ -270,9 +302,7 @@ public class APIClient {
             JSONObject content = new JSONObject();
             content.put("operation", "copy");
             content.put("destination", dstIndexName);
-            return postRequest("/1/indexes/" + URLEncoder.encode(srcIndexName, "UTF-8") + "/operation", content.toString(), true, false);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e); // $COVERAGE-IGNORE$
+            return postRequest("/1/indexes/" + PercentEncoder.encode(srcIndexName) + "/operation", content.toString(), true, false);
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage()); // $COVERAGE-IGNORE$
         }
@@ -595,11 +625,7 @@ public class APIClient {
             return generateSecuredApiKey(privateApiKey, new Query().setTagFilters(tagFilters), userToken);
         else {
             if (userToken != null && userToken.length() > 0) {
-                try {
-                    tagFilters = String.format("%s%s%s", tagFilters, "&userToken=", URLEncoder.encode(userToken, "UTF-8"));
-                } catch (UnsupportedEncodingException e) {
-                    throw new AlgoliaException(e.getMessage());
-                }
+                tagFilters = tagFilters + "&userToken=" + PercentEncoder.encode(userToken);
             }
             return Base64.encodeBase64String(String.format("%s%s", hmac(privateApiKey, tagFilters), tagFilters).getBytes(Charset.forName("UTF8")));
         }
@@ -614,6 +640,7 @@ public class APIClient {
      * @param userToken     an optional token identifying the current user
      * @throws NoSuchAlgorithmException
      * @throws InvalidKeyException
+     * @see SecuredApiKeyGenerator to generate many keys with the same private API Key
      */
     public String generateSecuredApiKey(String privateApiKey, Query query, String userToken) throws NoSuchAlgorithmException, InvalidKeyException {
         if (userToken != null && userToken.length() > 0) {
@@ -622,17 +649,22 @@ public class APIClient {
         String queryStr = query.getQueryString();
         String key = hmac(privateApiKey, queryStr);
 
-        return Base64.encodeBase64String(String.format("%s%s", key, queryStr).getBytes(Charset.forName("UTF8")));
-
+        return Base64.encodeBase64String((key + queryStr).getBytes(Charset.forName("UTF8")));
     }
 
-    static String hmac(String key, String msg) {
-        Mac hmac;
-        try {
-            hmac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new Error(e);
+    private static final ThreadLocal<Mac> HMAC_SHA256 = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error(e);
+            }
         }
+    };
+
+    static String hmac(String key, String msg) {
+        Mac hmac = HMAC_SHA256.get();
         try {
             hmac.init(new SecretKeySpec(key.getBytes(), "HmacSHA256"));
         } catch (InvalidKeyException e) {
@@ -648,11 +680,18 @@ public class APIClient {
     }
 
     protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
-        return _request(Method.GET, url, null, false, search);
+        return _request(Method.GET, url, null, false, search, 0);
+    }
+
+    /**
+     * Same as getRequest but returns the raw JSON answer, without decoding it
+     */
+    String getRequestRaw(String url, boolean search) throws AlgoliaException {
+        return _requestRaw(Method.GET, url, null, false, search, 0);
     }
 
     protected JSONObject deleteRequest(String url, boolean build) throws AlgoliaException {
-        return _request(Method.DELETE, url, null, build, false);
+        return _request(Method.DELETE, url, null, build, false, 0);
     }
 
     protected JSONObject postRequest(String url, String obj, boolean build, boolean search) throws AlgoliaException {
@@ -663,7 +702,15 @@ public class APIClient {
         return _request(Method.PUT, url, obj, build, false);
     }
 
-    private JSONObject _requestByHost(HttpRequestBase req, String host, String url, String json, HashMap<String, String> errors, boolean searchTimeout) throws AlgoliaException {
+    /**
+     * Same as postRequest with an already encoded JSON body, the entity must be repeatable to be sent again to the next host.
+     * The hosts are tried starting with the one at position firstHost (modulo the number of hosts), to spread parallel requests.
+     */
+    JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+        return _request(Method.POST, url, entity, build, false, firstHost);
+    }
+
+    private String _requestByHost(HttpRequestBase req, String host, String url, HttpEntity entity, HashMap<String, String> errors, boolean searchTimeout) throws AlgoliaException {
         req.reset();
 
         // set URL
@@ -692,18 +739,12 @@ public class APIClient {
         req.setHeader("User-Agent", userAgent);
 
         // set JSON entity
-        if (json != null) {
+        if (entity != null) {
             if (!(req instanceof HttpEntityEnclosingRequestBase)) {
                 throw new IllegalArgumentException("Method " + req.getMethod() + " cannot enclose entity");
             }
             req.setHeader("Content-type", "application/json");
-            try {
-                StringEntity se = new StringEntity(json, "UTF-8");
-                se.setContentEncoding(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
-                ((HttpEntityEnclosingRequestBase) req).setEntity(se);
-            } catch (Exception e) {
-                throw new AlgoliaException("Invalid JSON Object: " + json); // $COVERAGE-IGNORE$
-            }
+            ((HttpEntityEnclosingRequestBase) req).setEntity(entity);
         }
 
         RequestConfig config = RequestConfig.custom()
@@ -716,6 +757,9 @@ public class APIClient {
         HttpResponse response;
         try {
             response = httpClient.execute(req);
+        } catch (BatchEntity.InvalidRecordException e) {
+            // the same body would fail on the next hosts
+            throw new AlgoliaException(400, e.getMessage());
         } catch (IOException e) {
             // on error continue on the next host
             if (verbose) {
@@ -774,15 +818,13 @@ public class APIClient {
                     jsonRaw.append(buffer, 0, read);
                 }
                 is.close();
-                return new JSONObject(jsonRaw.toString());
+                return jsonRaw.toString();
             } catch (IOException e) {
                 if (verbose) {
                     System.out.println(String.format("%s: %s=%s", host, e.getClass().getName(), e.getMessage()));
                 }
                 errors.put(host, String.format("%s=%s", e.getClass().getName(), e.getMessage()));
                 return null;
-            } catch (JSONException e) {
-                throw new AlgoliaException("JSON decode error:" + e.getMessage());
             }
         } finally {
             req.releaseConnection();
@@ -790,6 +832,65 @@ public class APIClient {
     }
 
     private JSONObject _request(Method m, String url, String json, boolean build, boolean search) throws AlgoliaException {
+        HttpEntity entity = null;
+        if (json != null) {
+            try {
+                StringEntity se = new StringEntity(json, "UTF-8");
+                se.setContentEncoding(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
+                entity = se;
+            } catch (Exception e) {
+                throw new AlgoliaException("Invalid JSON Object: " + json); // $COVERAGE-IGNORE$
+            }
+        }
+        return _request(m, url, entity, build, search, 0);
+    }
+
+    private JSONObject _request(Method m, String url, HttpEntity entity, boolean build, boolean search, int firstHost) throws AlgoliaException {
+        WriteSpool spool = writeSpool;
+        if (spool != null && m == Method.POST && build && url.endsWith("/batch")) {
+            String reason = "the write spool is not empty";
+            // once a batch is spooled, the next ones are spooled too to keep the order
+            if (spool.isEmpty()) {
+                try {
+                    return _send(m, url, entity, build, search, firstHost);
+                } catch (AlgoliaException e) {
+                    if (!e.getMessage().startsWith("Hosts unreachable: ")) {
+                        throw e;
+                    }
+                    reason = e.getMessage();
+                }
+            }
+            try {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                entity.writeTo(body);
+                spool.append(url, body.toByteArray());
+            } catch (BatchEntity.InvalidRecordException e) {
+                throw new AlgoliaException(400, e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException("Cannot spool the batch: " + e.getMessage());
+            }
+            throw new WriteSpooledException("Batch spooled for replay, " + reason);
+        }
+        return _send(m, url, entity, build, search, firstHost);
+    }
+
+    /**
+     * Send a batch read from the write spool
+     */
+    JSONObject sendSpooled(String url, byte[] body) throws AlgoliaException {
+        return _send(Method.POST, url, new ByteArrayEntity(body, ContentType.APPLICATION_JSON), true, false, 0);
+    }
+
+    private JSONObject _send(Method m, String url, HttpEntity entity, boolean build, boolean search, int firstHost) throws AlgoliaException {
+        String raw = _requestRaw(m, url, entity, build, search, firstHost);
+        try {
+            return new JSONObject(raw);
+        } catch (JSONException e) {
+            throw new AlgoliaException("JSON decode error:" + e.getMessage());
+        }
+    }
+
+    private String _requestRaw(Method m, String url, HttpEntity entity, boolean build, boolean search, int firstHost) throws AlgoliaException {
         HttpRequestBase req;
         switch (m) {
             case DELETE:
@@ -812,8 +913,8 @@ public class APIClient {
 
         // for each host
         for (int i = 0; i < hosts.size(); ++i) {
-            String host = hosts.get(i);
-            JSONObject res = _requestByHost(req, host, url, json, errors, search);
+            String host = hosts.get((firstHost + i) % hosts.size());
+            String res = _requestByHost(req, host, url, entity, errors, search);
             if (res != null) {
                 return res;
             }
@@ -854,6 +955,15 @@ public class APIClient {
         public void setQuery(Query query) {
             this.query = query;
         }
+
+        /**
+         * @return a fingerprint of the index name and of the query parameters (see Query.fingerprint)
+         */
+        public Fingerprint fingerprint() {
+            Fingerprint queryFingerprint = query.fingerprint();
+            return new Fingerprint.Builder().putString(index)
+                    .putLong(queryFingerprint.getHigh()).putLong(queryFingerprint.getLow()).build();
+        }
     }
 
     /**
@@ -864,18 +974,29 @@ public class APIClient {
     }
 
     public JSONObject multipleQueries(List<IndexQuery> queries, String strategy) throws AlgoliaException {
+        List<String> indexNames = new ArrayList<String>(queries.size());
+        List<String> paramsStrings = new ArrayList<String>(queries.size());
+        for (IndexQuery indexQuery : queries) {
+            indexNames.add(indexQuery.getIndex());
+            paramsStrings.add(indexQuery.getQuery().getQueryString());
+        }
+        return multipleQueries(indexNames, paramsStrings, strategy);
+    }
+
+    /**
+     * Query multiple indexes with already encoded query parameters
+     */
+    JSONObject multipleQueries(List<String> indexNames, List<String> paramsStrings, String strategy) throws AlgoliaException {
         try {
             JSONArray requests = new JSONArray();
-            for (IndexQuery indexQuery : queries) {
-                String paramsString = indexQuery.getQuery().getQueryString();
-                requests.put(new JSONObject().put("indexName", indexQuery.getIndex()).put("params", paramsString));
+            for (int i = 0; i < indexNames.size(); ++i) {
+                requests.put(new JSONObject().put("indexName", indexNames.get(i)).put("params", paramsStrings.get(i)));
             }
             JSONObject body = new JSONObject().put("requests", requests);
             return postRequest("/1/indexes/*/queries?strategy=" + strategy, body.toString(), false, true);
         } catch (JSONException e) {
-            new AlgoliaException(e.getMessage());
+            throw new AlgoliaException(e.getMessage());
         }
-        return null;
     }
 
     /**
@@ -0,0 +1,191 @@
+package com.algolia.search.saas;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Adapts the size and the concurrency of bulk write batches to the observed latency and errors (AIMD).
+ * <p>
+ * After each successful batch faster than the target latency, the batch size is increased by a fixed step,
+ * and the concurrency by one every concurrency successful batches when the latency is below half the target.
+ * A batch slower than the target decreases the batch size by 25%. A transient error (timeout, unreachable
+ * host, 429 or 5xx answer) halves both the batch size and the concurrency. The batch size is also limited
+ * so that the measured bytes per record stay under maxBatchBytes.
+ * <p>
+ * A controller can be shared by several uploads to keep what it learned.
+ */
+public class AdaptiveBatchController {
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxConcurrency;
+    private final double step;
+    private long targetLatencyMS = 5000;
+    private long maxBatchBytes = 5 * 1024 * 1024;
+
+    private double batchSize;
+    private int concurrency;
+    private int inFlight;
+    private int fastBatches;
+    private double bytesPerRecord;
+
+    /**
+     * Starts with 1000 records per batch and 2 concurrent batches, up to 10000 records and 8 batches
+     */
+    public AdaptiveBatchController() {
+        this(1000, 10, 10000, 8);
+    }
+
+    /**
+     * @param initialBatchSize the first batch size, also the increment step is a tenth of it
+     * @param minBatchSize     the batch size never goes below this size
+     * @param maxBatchSize     the batch size never goes above this size
+     * @param maxConcurrency   the maximum number of concurrent batches, the controller starts with 2 of them
+     */
+    public AdaptiveBatchController(int initialBatchSize, int minBatchSize, int maxBatchSize, int maxConcurrency) {
+        if (minBatchSize <= 0 || minBatchSize > initialBatchSize || initialBatchSize > maxBatchSize) {
+            throw new IllegalArgumentException("Expected 0 < minBatchSize <= initialBatchSize <= maxBatchSize");
+        }
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxConcurrency = maxConcurrency;
+        this.step = Math.max(1, initialBatchSize / 10);
+        this.batchSize = initialBatchSize;
+        this.concurrency = Math.min(2, maxConcurrency);
+    }
+
+    /**
+     * Set the latency above which the batches are considered too big. Defaults to 5000.
+     */
+    public synchronized AdaptiveBatchController setTargetLatencyMS(long targetLatencyMS) {
+        if (targetLatencyMS <= 0) {
+            throw new IllegalArgumentException("targetLatencyMS must be positive");
+        }
+        this.targetLatencyMS = targetLatencyMS;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of a batch body. Defaults to 5MB.
+     */
+    public synchronized AdaptiveBatchController setMaxBatchBytes(long maxBatchBytes) {
+        if (maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchBytes must be positive");
+        }
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * @return the number of records of the next batch
+     */
+    public synchronized int getBatchSize() {
+        return (int) batchSize;
+    }
+
+    /**
+     * @return the number of batches allowed to be sent at the same time
+     */
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Wait until a batch can be sent, must be followed by a call to release
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= concurrency) {
+            wait();
+        }
+        ++inFlight;
+    }
+
+    synchronized void release() {
+        --inFlight;
+        notifyAll();
+    }
+
+    /**
+     * Record a successful batch
+     *
+     * @param records   the number of records of the batch
+     * @param bytes     the size of the body, 0 if unknown
+     * @param latencyMS the duration of the request
+     */
+    public synchronized void onSuccess(int records, long bytes, long latencyMS) {
+        if (bytes > 0 && records > 0) {
+            double perRecord = (double) bytes / records;
+            bytesPerRecord = bytesPerRecord == 0 ? perRecord : 0.8 * bytesPerRecord + 0.2 * perRecord;
+        }
+        if (latencyMS > targetLatencyMS) {
+            batchSize = batchSize * 0.75;
+            fastBatches = 0;
+        } else {
+            batchSize += step;
+            if (latencyMS * 2 <= targetLatencyMS && ++fastBatches >= concurrency) {
+                fastBatches = 0;
+                concurrency = Math.min(maxConcurrency, concurrency + 1);
+                notifyAll();
+            }
+        }
+        clamp();
+    }
+
+    /**
+     * Record a failed batch
+     *
+     * @param transientError true if the error may be caused by the load (timeout, unreachable host, 429 or 5xx answer)
+     */
+    public synchronized void onFailure(boolean transientError) {
+        if (transientError) {
+            batchSize = batchSize / 2;
+            concurrency = Math.max(1, concurrency / 2);
+            fastBatches = 0;
+            clamp();
+        }
+    }
+
+    /**
+     * @return true if the error may be caused by the load and the request can be retried: unreachable hosts,
+     * 429 or 5xx. The other local errors (code 0) and the spooled batches are not retried.
+     */
+    static boolean isTransient(AlgoliaException e) {
+        if (e.getCode() == 0) {
+            return !(e instanceof WriteSpooledException) && e.getMessage() != null && e.getMessage().startsWith("Hosts unreachable: ");
+        }
+        return e.getCode() == 429 || e.getCode() / 100 == 5;
+    }
+
+    private void clamp() {
+        if (bytesPerRecord > 0) {
+            batchSize = Math.min(batchSize, maxBatchBytes / bytesPerRecord);
+        }
+        batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, batchSize));
+    }
+}
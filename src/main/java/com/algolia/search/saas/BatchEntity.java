@@ -0,0 +1,198 @@
+package com.algolia.search.saas;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Body of a batch applying the same action to a list of objects, or of objectIDs for deleteObject.
+ * The {"requests":[...]} envelope and the objects are written directly to the connection, without
+ * building the actions as JSONObjects nor the body as a String. The entity is repeatable, so it can
+ * be sent again to the next host.
+ */
+final class BatchEntity extends AbstractHttpEntity {
+    /**
+     * A record cannot be encoded: the body would be invalid on every host, so it is not a connection error
+     */
+    static final class InvalidRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidRecordException(String message) {
+            super(message);
+        }
+    }
+
+    private final String action;
+    private final List<?> items;
+    // objectID of each item, null for the added objects without objectID
+    private final String[] objectIDs;
+    private volatile long writtenBytes;
+
+    /**
+     * @param items JSONObjects, or objectIDs for the deleteObject action
+     */
+    BatchEntity(String action, List<?> items) throws AlgoliaException {
+        this.action = action;
+        this.items = items;
+        this.objectIDs = new String[items.size()];
+        try {
+            for (int i = 0; i < objectIDs.length; ++i) {
+                Object item = items.get(i);
+                if (item instanceof String) {
+                    objectIDs[i] = (String) item;
+                } else if (action.equals("addObject")) {
+                    objectIDs[i] = ((JSONObject) item).optString("objectID", null);
+                } else {
+                    objectIDs[i] = ((JSONObject) item).getString("objectID");
+                }
+            }
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+        setContentType(ContentType.APPLICATION_JSON.toString());
+    }
+
+    static List<JSONObject> toList(JSONArray array) throws AlgoliaException {
+        try {
+            List<JSONObject> objects = new ArrayList<JSONObject>(array.length());
+            for (int i = 0; i < array.length(); ++i) {
+                objects.add(array.getJSONObject(i));
+            }
+            return objects;
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the objectIDs modified by the batch
+     */
+    List<String> getObjectIDs() {
+        List<String> ids = new ArrayList<String>(objectIDs.length);
+        for (String objectID : objectIDs) {
+            if (objectID != null) {
+                ids.add(objectID);
+            }
+        }
+        return ids;
+    }
+
+    int size() {
+        return objectIDs.length;
+    }
+
+    /**
+     * @return the size of the body the last time it was written
+     */
+    long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        final long[] count = new long[1];
+        OutputStream counting = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                count[0] += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                ++count[0];
+            }
+        };
+        Writer writer = new BufferedWriter(new OutputStreamWriter(counting, "UTF-8"), 8192);
+        writer.write("{\"requests\":[");
+        for (int i = 0; i < objectIDs.length; ++i) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write("{\"action\":\"");
+            writer.write(action);
+            writer.write('"');
+            Object item = items.get(i);
+            if (item instanceof String) {
+                writer.write(",\"body\":{\"objectID\":");
+                writer.write(JSONObject.quote(objectIDs[i]));
+                writer.write("}}");
+                continue;
+            }
+            if (!action.equals("addObject")) {
+                writer.write(",\"objectID\":");
+                writer.write(JSONObject.quote(objectIDs[i]));
+            }
+            writer.write(",\"body\":");
+            try {
+                ((JSONObject) item).write(writer);
+            } catch (JSONException e) {
+                throw new InvalidRecordException("Invalid record " + i + ": " + e.getMessage());
+            }
+            writer.write('}');
+        }
+        writer.write("]}");
+        writer.flush();
+        writtenBytes = count[0];
+    }
+}
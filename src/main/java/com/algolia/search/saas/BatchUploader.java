@@ -0,0 +1,378 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Uploads a stream of objects in chunks sent as parallel batches.
+ * <p>
+ * The objects are read from the iterator by the calling thread, the chunks are serialized and sent by
+ * maxInFlight worker threads, each worker starting with a different host. At most twice maxInFlight chunks
+ * are kept in memory. A failed chunk does not stop the upload: its error is reported in the Result with
+ * the position of its first object.
+ * <p>
+ * A chunk failing with a transient error (timeout, unreachable hosts, 429 or 5xx answer) is split in two halves
+ * that are sent again, up to maxRetries times. With an AdaptiveBatchController, the chunk size and the number
+ * of batches in flight follow the controller instead of chunkSize and maxInFlight.
+ */
+public class BatchUploader {
+    private final Index index;
+    private int chunkSize = 1000;
+    private int maxInFlight = 4;
+    private int maxRetries = 2;
+    private AdaptiveBatchController controller;
+
+    public BatchUploader(Index index) {
+        this.index = index;
+    }
+
+    /**
+     * Set the number of objects per batch. Defaults to 1000.
+     */
+    public BatchUploader setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Set the number of batches sent at the same time. Defaults to 4.
+     */
+    public BatchUploader setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Set the number of times a chunk failing with a transient error is split and sent again. Defaults to 2.
+     */
+    public BatchUploader setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must be positive");
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Let the controller choose the chunk size and the number of batches in flight, null to use the fixed
+     * chunkSize and maxInFlight. The number of worker threads is the maximum concurrency of the controller.
+     */
+    public BatchUploader setController(AdaptiveBatchController controller) {
+        this.controller = controller;
+        return this;
+    }
+
+    /**
+     * Add the objects, with objectIDs generated by the server for the objects without one
+     */
+    public Result addObjects(Iterable<JSONObject> objects) throws AlgoliaException {
+        return addObjects(objects.iterator());
+    }
+
+    /**
+     * Add the objects, with objectIDs generated by the server for the objects without one
+     */
+    public Result addObjects(Iterator<JSONObject> objects) throws AlgoliaException {
+        return upload(objects, "addObject");
+    }
+
+    /**
+     * Override the content of the objects, each object must contain an objectID attribute
+     */
+    public Result saveObjects(Iterable<JSONObject> objects) throws AlgoliaException {
+        return saveObjects(objects.iterator());
+    }
+
+    /**
+     * Override the content of the objects, each object must contain an objectID attribute
+     */
+    public Result saveObjects(Iterator<JSONObject> objects) throws AlgoliaException {
+        return upload(objects, "updateObject");
+    }
+
+    /**
+     * Update some attributes of the objects, each object must contain an objectID attribute
+     */
+    public Result partialUpdateObjects(Iterable<JSONObject> objects) throws AlgoliaException {
+        return partialUpdateObjects(objects.iterator());
+    }
+
+    /**
+     * Update some attributes of the objects, each object must contain an objectID attribute
+     */
+    public Result partialUpdateObjects(Iterator<JSONObject> objects) throws AlgoliaException {
+        return upload(objects, "partialUpdateObject");
+    }
+
+    /**
+     * Delete the objects
+     */
+    public Result deleteObjects(Iterable<String> objectIDs) throws AlgoliaException {
+        return deleteObjects(objectIDs.iterator());
+    }
+
+    /**
+     * Delete the objects
+     */
+    public Result deleteObjects(Iterator<String> objectIDs) throws AlgoliaException {
+        return upload(objectIDs, "deleteObject");
+    }
+
+    private Result upload(Iterator<?> items, final String action) throws AlgoliaException {
+        final Result result = new Result(index);
+        final AdaptiveBatchController controller = this.controller;
+        int threads = controller != null ? controller.getMaxConcurrency() : maxInFlight;
+        final Semaphore pending = new Semaphore(2 * threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("upload"));
+        try {
+            long offset = 0;
+            int number = 0;
+            while (items.hasNext()) {
+                int size = controller != null ? controller.getBatchSize() : chunkSize;
+                final List<Object> chunk = new ArrayList<Object>(size);
+                while (chunk.size() < size && items.hasNext()) {
+                    chunk.add(items.next());
+                }
+                pending.acquire();
+                final long chunkOffset = offset;
+                final int chunkNumber = number++;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sendChunk(action, chunk, chunkNumber, chunkOffset, 0, controller, result);
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
+                offset += chunk.size();
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait for the last chunks
+            }
+            result.count = offset;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Interrupted while uploading");
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private void sendChunk(String action, List<Object> chunk, int chunkNumber, long offset, int retry,
+                           AdaptiveBatchController controller, Result result) {
+        BatchEntity body;
+        try {
+            body = new BatchEntity(action, chunk);
+        } catch (AlgoliaException e) {
+            result.addError(new ChunkError(offset, chunk.size(), e));
+            return;
+        } catch (RuntimeException e) {
+            result.addError(new ChunkError(offset, chunk.size(), new AlgoliaException("Invalid chunk: " + e)));
+            return;
+        }
+        AlgoliaException error;
+        try {
+            if (controller != null) {
+                controller.acquire();
+            }
+            long start = System.currentTimeMillis();
+            try {
+                // each retry starts with another host
+                JSONObject answer = index.batch(body, body.getObjectIDs(), chunkNumber + retry);
+                if (controller != null) {
+                    controller.onSuccess(chunk.size(), body.getWrittenBytes(), System.currentTimeMillis() - start);
+                }
+                result.addTaskID(offset, answer.getString("taskID"));
+                return;
+            } catch (AlgoliaException e) {
+                if (controller != null) {
+                    controller.onFailure(AdaptiveBatchController.isTransient(e));
+                }
+                throw e;
+            } finally {
+                if (controller != null) {
+                    controller.release();
+                }
+            }
+        } catch (WriteSpooledException e) {
+            result.addSpooled(chunk.size());
+            return;
+        } catch (AlgoliaException e) {
+            error = e;
+        } catch (JSONException e) {
+            error = new AlgoliaException(e.getMessage());
+        } catch (RuntimeException e) {
+            error = new AlgoliaException(e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new AlgoliaException("Interrupted while uploading");
+        }
+        if (retry < maxRetries && AdaptiveBatchController.isTransient(error) && !Thread.currentThread().isInterrupted()) {
+            int half = (chunk.size() + 1) / 2;
+            sendChunk(action, chunk.subList(0, half), chunkNumber, offset, retry + 1, controller, result);
+            if (half < chunk.size()) {
+                sendChunk(action, chunk.subList(half, chunk.size()), chunkNumber, offset + half, retry + 1, controller, result);
+            }
+        } else {
+            result.addError(new ChunkError(offset, chunk.size(), error));
+        }
+    }
+
+    /**
+     * A chunk that could not be uploaded
+     */
+    public static class ChunkError {
+        private final long offset;
+        private final int size;
+        private final AlgoliaException error;
+
+        ChunkError(long offset, int size, AlgoliaException error) {
+            this.offset = offset;
+            this.size = size;
+            this.error = error;
+        }
+
+        /**
+         * @return the position of the first object of the chunk in the uploaded objects
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public AlgoliaException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * The taskIDs of the uploaded chunks and the errors of the failed ones
+     */
+    public static class Result {
+        private final Index index;
+        private final Map<Long, String> taskIDs = new TreeMap<Long, String>();
+        private final List<ChunkError> errors = new ArrayList<ChunkError>();
+        private long count;
+        private long spooledCount;
+
+        Result(Index index) {
+            this.index = index;
+        }
+
+        synchronized void addTaskID(long offset, String taskID) {
+            taskIDs.put(offset, taskID);
+        }
+
+        synchronized void addError(ChunkError error) {
+            errors.add(error);
+        }
+
+        synchronized void addSpooled(int size) {
+            spooledCount += size;
+        }
+
+        /**
+         * @return the number of objects read from the iterator
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of objects of the chunks appended to the write spool of the client because the hosts
+         * were unreachable: they will be replayed in the background and have no taskID
+         */
+        public synchronized long getSpooledCount() {
+            return spooledCount;
+        }
+
+        /**
+         * @return the taskIDs of the uploaded chunks, in the order of the chunks
+         */
+        public synchronized List<String> getTaskIDs() {
+            return new ArrayList<String>(taskIDs.values());
+        }
+
+        /**
+         * @return the errors of the failed chunks, in the order of the chunks
+         */
+        public synchronized List<ChunkError> getErrors() {
+            List<ChunkError> sorted = new ArrayList<ChunkError>(errors);
+            Collections.sort(sorted, new Comparator<ChunkError>() {
+                @Override
+                public int compare(ChunkError a, ChunkError b) {
+                    return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+                }
+            });
+            return sorted;
+        }
+
+        public synchronized boolean isSuccessful() {
+            return errors.isEmpty();
+        }
+
+        /**
+         * Wait for the indexing of the uploaded chunks: the tasks of an index are processed in order,
+         * so only the highest taskID is waited. The spooled chunks are not waited.
+         */
+        public void waitTask() throws AlgoliaException {
+            String last = null;
+            for (String taskID : getTaskIDs()) {
+                if (last == null || Long.parseLong(taskID) > Long.parseLong(last)) {
+                    last = taskID;
+                }
+            }
+            if (last != null) {
+                index.waitTask(last);
+            }
+        }
+    }
+}
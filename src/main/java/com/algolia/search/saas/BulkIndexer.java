@@ -0,0 +1,463 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Groups single write operations coming from any thread in batches, sent to the index by a background thread.
+ * <p>
+ * A batch is sent when it contains maxBatchSize operations, when it reaches maxBatchBytes, or maxDelayMS after
+ * its first operation. The operations waiting to be sent are limited to maxPendingBytes: when the limit is
+ * reached, the callers are blocked until a batch is sent. Each operation returns a future completed with
+ * the taskID of its batch, that can be given to Index.waitTask, or with null if the batch was appended to the
+ * write spool of the client because the hosts were unreachable. Sizes are measured in bytes of the UTF-8 encoded JSON.
+ * <p>
+ * The indexer must be closed to send the last operations and stop the background thread.
+ */
+public class BulkIndexer {
+    private final Index index;
+    private int maxBatchSize = 1000;
+    private int maxBatchBytes = 5 * 1024 * 1024;
+    private long maxDelayMS = 1000;
+    private final int maxPendingBytes;
+    private final Semaphore pendingBytes;
+
+    private final Object lock = new Object();
+    private Batch current;
+    private final ArrayDeque<Batch> ready = new ArrayDeque<Batch>();
+    private Batch lastSealed;
+    // first error and number of failed batches since the last flush
+    private AlgoliaException failure;
+    private int failedBatches;
+    private boolean closed;
+    private final Thread sender;
+
+    public BulkIndexer(Index index) {
+        this(index, 50 * 1024 * 1024);
+    }
+
+    /**
+     * @param maxPendingBytes the maximum size of the operations waiting to be sent
+     */
+    public BulkIndexer(Index index, int maxPendingBytes) {
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("maxPendingBytes must be positive");
+        }
+        this.index = index;
+        this.maxPendingBytes = maxPendingBytes;
+        this.pendingBytes = new Semaphore(maxPendingBytes);
+        this.sender = new DaemonThreadFactory("bulk").newThread(new Runnable() {
+            @Override
+            public void run() {
+                Batch batch;
+                while ((batch = nextBatch()) != null) {
+                    send(batch);
+                }
+            }
+        });
+        this.sender.start();
+    }
+
+    /**
+     * Set the maximum number of operations per batch. Defaults to 1000.
+     */
+    public BulkIndexer setMaxBatchSize(int operations) {
+        if (operations <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        synchronized (lock) {
+            this.maxBatchSize = operations;
+        }
+        return this;
+    }
+
+    /**
+     * Set the maximum size of a batch, an operation bigger than this size is sent alone. Defaults to 5MB.
+     */
+    public BulkIndexer setMaxBatchBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("maxBatchBytes must be positive");
+        }
+        synchronized (lock) {
+            this.maxBatchBytes = bytes;
+        }
+        return this;
+    }
+
+    /**
+     * Set the maximum time in milliseconds an operation waits before its batch is sent. Defaults to 1000.
+     * With 0, the operations are sent as soon as the sender thread is available.
+     */
+    public BulkIndexer setMaxDelayMS(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("maxDelayMS must not be negative");
+        }
+        synchronized (lock) {
+            this.maxDelayMS = delay;
+            lock.notifyAll();
+        }
+        return this;
+    }
+
+    /**
+     * Add an object, with an objectID generated by the server if the object does not have one
+     */
+    public Future<String> addObject(JSONObject object) throws AlgoliaException {
+        try {
+            JSONObject action = new JSONObject();
+            action.put("action", "addObject");
+            action.put("body", object);
+            return enqueue(action.toString(), object.optString("objectID", null));
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Override the content of an object, the object must contain an objectID attribute
+     */
+    public Future<String> saveObject(JSONObject object) throws AlgoliaException {
+        return enqueue("updateObject", object);
+    }
+
+    /**
+     * Update some attributes of an object, the object must contain an objectID attribute
+     */
+    public Future<String> partialUpdateObject(JSONObject partialObject) throws AlgoliaException {
+        return enqueue("partialUpdateObject", partialObject);
+    }
+
+    /**
+     * Delete an object
+     */
+    public Future<String> deleteObject(String objectID) throws AlgoliaException {
+        if (objectID == null || objectID.length() == 0) {
+            throw new AlgoliaException("Invalid objectID");
+        }
+        try {
+            JSONObject action = new JSONObject();
+            action.put("action", "deleteObject");
+            action.put("body", new JSONObject().put("objectID", objectID));
+            return enqueue(action.toString(), objectID);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Send the pending operations and wait until they are sent
+     *
+     * @throws AlgoliaException if batches failed since the previous flush, with the number of failed batches
+     *                          and the first error (the failed operations are also reported by their futures)
+     */
+    public void flush() throws AlgoliaException {
+        Batch last;
+        synchronized (lock) {
+            seal();
+            last = lastSealed;
+        }
+        if (last != null) {
+            try {
+                last.waitTaskID();
+            } catch (AlgoliaException e) {
+                // reported below with the other failures
+            }
+        }
+        AlgoliaException error;
+        int failed;
+        synchronized (lock) {
+            error = failure;
+            failed = failedBatches;
+            failure = null;
+            failedBatches = 0;
+        }
+        if (error != null) {
+            throw new AlgoliaException(error.getCode(), failed + " batches failed, first error: " + error.getMessage());
+        }
+    }
+
+    /**
+     * Send the pending operations and stop the background thread. Adding operations after close is not possible.
+     *
+     * @throws AlgoliaException if batches failed since the previous flush
+     */
+    public void close() throws AlgoliaException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        flush();
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Interrupted while closing the indexer");
+        }
+    }
+
+    private Future<String> enqueue(String actionName, JSONObject object) throws AlgoliaException {
+        try {
+            String objectID = object.getString("objectID");
+            JSONObject action = new JSONObject();
+            action.put("action", actionName);
+            action.put("objectID", objectID);
+            action.put("body", object);
+            return enqueue(action.toString(), objectID);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    private Future<String> enqueue(String action, String objectID) throws AlgoliaException {
+        int bytes = utf8Length(action);
+        int permits = Math.min(bytes, maxPendingBytes);
+        try {
+            if (!pendingBytes.tryAcquire(permits)) {
+                // send what is pending instead of waiting for the delay, the current batch may hold the permits
+                synchronized (lock) {
+                    seal();
+                }
+                pendingBytes.acquire(permits);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Interrupted while waiting for the pending operations to be sent");
+        }
+        synchronized (lock) {
+            if (closed) {
+                pendingBytes.release(permits);
+                throw new IllegalStateException("The indexer is closed");
+            }
+            if (current != null && current.bytes + bytes + 1 > maxBatchBytes) {
+                seal();
+            }
+            if (current == null) {
+                current = new Batch(System.currentTimeMillis() + maxDelayMS);
+                lock.notifyAll();
+            }
+            Batch batch = current;
+            batch.add(action, objectID, bytes, permits);
+            if (batch.actions.size() >= maxBatchSize || batch.bytes >= maxBatchBytes) {
+                seal();
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Move the current batch to the ready ones, called with the lock
+     */
+    private void seal() {
+        if (current != null) {
+            ready.add(current);
+            lastSealed = current;
+            current = null;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the next batch to send, null when the indexer is closed and everything was sent
+     */
+    private Batch nextBatch() {
+        synchronized (lock) {
+            while (ready.isEmpty()) {
+                if (current != null) {
+                    long delay = current.deadline - System.currentTimeMillis();
+                    if (delay <= 0 || closed) {
+                        seal();
+                        break;
+                    }
+                    waitLock(delay);
+                } else if (closed) {
+                    return null;
+                } else {
+                    waitLock(0);
+                }
+            }
+            return ready.poll();
+        }
+    }
+
+    private void waitLock(long timeout) {
+        try {
+            lock.wait(timeout);
+        } catch (InterruptedException e) {
+            // the sender only stops once closed, to never lose operations
+        }
+    }
+
+    private void send(Batch batch) {
+        StringBuilder body = new StringBuilder(batch.bytes + 16).append("{\"requests\":[");
+        for (int i = 0; i < batch.actions.size(); ++i) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append(batch.actions.get(i));
+        }
+        body.append("]}");
+        try {
+            JSONObject answer = index.batch(new StringEntity(body.toString(), ContentType.APPLICATION_JSON), batch.objectIDs, 0);
+            batch.complete(answer.getString("taskID"), null);
+        } catch (WriteSpooledException e) {
+            // the batch will be replayed by the spool, there is no task to wait for
+            batch.complete(null, null);
+        } catch (AlgoliaException e) {
+            fail(batch, e);
+        } catch (JSONException e) {
+            fail(batch, new AlgoliaException(e.getMessage()));
+        } catch (RuntimeException e) {
+            fail(batch, new AlgoliaException(e.toString()));
+        } finally {
+            pendingBytes.release(batch.permits);
+        }
+    }
+
+    private void fail(Batch batch, AlgoliaException error) {
+        synchronized (lock) {
+            if (failure == null) {
+                failure = error;
+            }
+            ++failedBatches;
+        }
+        batch.complete(null, error);
+    }
+
+    /**
+     * @return the size of the string encoded in UTF-8
+     */
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Operations sent together, the batch is also the future of its operations
+     */
+    private static class Batch implements Future<String> {
+        final long deadline;
+        final List<String> actions = new ArrayList<String>();
+        final List<String> objectIDs = new ArrayList<String>();
+        int bytes;
+        int permits;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String taskID;
+        private volatile AlgoliaException error;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+
+        void add(String action, String objectID, int bytes, int permits) {
+            actions.add(action);
+            if (objectID != null) {
+                objectIDs.add(objectID);
+            }
+            this.bytes += bytes + 1;
+            this.permits += permits;
+        }
+
+        void complete(String taskID, AlgoliaException error) {
+            this.taskID = taskID;
+            this.error = error;
+            done.countDown();
+        }
+
+        String waitTaskID() throws AlgoliaException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AlgoliaException("Interrupted while waiting for the batch");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return taskID;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private String result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return taskID;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Buffers write operations and coalesces the ones targeting the same objectID before sending them:
+ * <ul>
+ * <li>a saveObject or a deleteObject replaces the previous operations of the object,</li>
+ * <li>a partialUpdateObject is merged in the previous saveObject or partialUpdateObject of the object,</li>
+ * <li>a partialUpdateObject following a deleteObject becomes a saveObject of the partial object.</li>
+ * </ul>
+ * Partial updates using built-in operations (attributes with an "_operation") are only merged when
+ * they do not touch the same attributes, and are never merged in a saveObject.
+ * <p>
+ * The buffer is flushed explicitly, or automatically by a background thread when it contains maxObjects
+ * objectIDs. The writing threads do not wait for the automatic flush, unless the buffer is full again before
+ * it ends. If the automatic flush fails, its operations stay in the buffer and the error is thrown by the next
+ * write or retried by the next flush.
+ * The methods can be called from several threads.
+ */
+public class CoalescingWriteBuffer {
+    private final Index index;
+    private int maxObjects = 10000;
+    private int batchSize = 1000;
+
+    private Map<String, List<Operation>> operations = new LinkedHashMap<String, List<Operation>>();
+    private List<Operation> anonymousAdds = new ArrayList<Operation>();
+    private int pendingCount;
+    private long receivedCount;
+    private long sentCount;
+    // taskIDs of the batches sent by a failed flush, returned by the next flush
+    private List<String> sentTaskIDs = new ArrayList<String>();
+    private final Object flushLock = new Object();
+    private final DaemonThreadFactory threadFactory = new DaemonThreadFactory("write-buffer");
+    private boolean autoFlushing;
+    // true once the operations were taken from the buffer since the start of the automatic flush
+    private boolean drained;
+    private AlgoliaException autoFlushError;
+
+    public CoalescingWriteBuffer(Index index) {
+        this.index = index;
+    }
+
+    /**
+     * Set the number of objectIDs triggering a flush. Defaults to 10000.
+     */
+    public synchronized CoalescingWriteBuffer setMaxObjects(int maxObjects) {
+        if (maxObjects <= 0) {
+            throw new IllegalArgumentException("maxObjects must be positive");
+        }
+        this.maxObjects = maxObjects;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of operations per batch sent by flush. Defaults to 1000.
+     */
+    public synchronized CoalescingWriteBuffer setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Add an object, objects without objectID are never coalesced
+     */
+    public void addObject(JSONObject object) throws AlgoliaException {
+        String objectID = object.optString("objectID", null);
+        if (objectID == null) {
+            synchronized (this) {
+                anonymousAdds.add(new Operation("addObject", copy(object)));
+                ++pendingCount;
+                ++receivedCount;
+            }
+            flushIfFull();
+        } else {
+            add(objectID, new Operation("updateObject", copy(object)));
+        }
+    }
+
+    /**
+     * Override the content of an object, the object must contain an objectID attribute
+     */
+    public void saveObject(JSONObject object) throws AlgoliaException {
+        add(objectID(object), new Operation("updateObject", copy(object)));
+    }
+
+    /**
+     * Update some attributes of an object, the object must contain an objectID attribute
+     */
+    public void partialUpdateObject(JSONObject partialObject) throws AlgoliaException {
+        add(objectID(partialObject), new Operation("partialUpdateObject", copy(partialObject)));
+    }
+
+    /**
+     * Delete an object
+     */
+    public void deleteObject(String objectID) throws AlgoliaException {
+        if (objectID == null || objectID.length() == 0) {
+            throw new AlgoliaException("Invalid objectID");
+        }
+        try {
+            add(objectID, new Operation("deleteObject", new JSONObject().put("objectID", objectID)));
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of operations waiting to be sent
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the number of operations received since the creation of the buffer
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * @return the number of operations successfully sent since the creation of the buffer
+     */
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Send the buffered operations. The operations received while flushing are kept for the next flush.
+     * <p>
+     * If a batch fails, its operations and the ones of the next batches are put back in the buffer, before the
+     * operations received meanwhile, and the error is thrown. The taskIDs of the batches already sent are then
+     * returned by the next flush. A failed batch may have been applied by the server, so it may be applied twice.
+     *
+     * @return the taskIDs of the sent batches, including the ones sent by the automatic flushes since the previous
+     * call, the batches appended to the write spool of the client have none
+     */
+    public List<String> flush() throws AlgoliaException {
+        // flushes are serialized so that the operations of an object are applied in order
+        synchronized (flushLock) {
+            synchronized (this) {
+                // the operations of a failed automatic flush are sent again
+                autoFlushError = null;
+            }
+            List<String> objectIDs = new ArrayList<String>();
+            List<Operation> sent = new ArrayList<Operation>();
+            List<JSONObject> actions = new ArrayList<JSONObject>();
+            int size;
+            synchronized (this) {
+                try {
+                    for (Map.Entry<String, List<Operation>> entry : operations.entrySet()) {
+                        for (Operation operation : entry.getValue()) {
+                            objectIDs.add(entry.getKey());
+                            sent.add(operation);
+                            actions.add(operation.toAction(entry.getKey()));
+                        }
+                    }
+                    for (Operation operation : anonymousAdds) {
+                        objectIDs.add(null);
+                        sent.add(operation);
+                        actions.add(operation.toAction(null));
+                    }
+                } catch (JSONException e) {
+                    throw new AlgoliaException(e.getMessage());
+                }
+                operations = new LinkedHashMap<String, List<Operation>>();
+                anonymousAdds = new ArrayList<Operation>();
+                pendingCount = 0;
+                drained = true;
+                size = batchSize;
+            }
+            List<String> taskIDs = sentTaskIDs;
+            sentTaskIDs = new ArrayList<String>();
+            for (int start = 0; start < actions.size(); start += size) {
+                int end = Math.min(start + size, actions.size());
+                try {
+                    JSONObject answer = index.batch(actions.subList(start, end));
+                    taskIDs.add(answer.getString("taskID"));
+                } catch (WriteSpooledException e) {
+                    // the batch will be replayed by the write spool of the client, there is no task to wait for
+                } catch (AlgoliaException e) {
+                    restore(objectIDs.subList(start, objectIDs.size()), sent.subList(start, sent.size()), taskIDs);
+                    throw e;
+                } catch (JSONException e) {
+                    restore(objectIDs.subList(start, objectIDs.size()), sent.subList(start, sent.size()), taskIDs);
+                    throw new AlgoliaException(e.getMessage());
+                } catch (RuntimeException e) {
+                    restore(objectIDs.subList(start, objectIDs.size()), sent.subList(start, sent.size()), taskIDs);
+                    throw e;
+                }
+                synchronized (this) {
+                    sentCount += end - start;
+                }
+            }
+            return taskIDs;
+        }
+    }
+
+    /**
+     * Put back the operations that were not sent, before the operations received during the flush
+     */
+    private synchronized void restore(List<String> objectIDs, List<Operation> unsent, List<String> taskIDs) {
+        sentTaskIDs = taskIDs;
+        Map<String, List<Operation>> restored = new LinkedHashMap<String, List<Operation>>();
+        List<Operation> restoredAdds = new ArrayList<Operation>();
+        for (int i = 0; i < unsent.size(); ++i) {
+            String objectID = objectIDs.get(i);
+            if (objectID == null) {
+                restoredAdds.add(unsent.get(i));
+                continue;
+            }
+            List<Operation> previous = restored.get(objectID);
+            if (previous == null) {
+                previous = new ArrayList<Operation>(1);
+                restored.put(objectID, previous);
+            }
+            previous.add(unsent.get(i));
+        }
+        for (Map.Entry<String, List<Operation>> entry : operations.entrySet()) {
+            List<Operation> previous = restored.get(entry.getKey());
+            if (previous == null) {
+                restored.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            for (Operation operation : entry.getValue()) {
+                coalesce(previous, operation);
+            }
+        }
+        restoredAdds.addAll(anonymousAdds);
+        operations = restored;
+        anonymousAdds = restoredAdds;
+        pendingCount = restoredAdds.size();
+        for (List<Operation> previous : restored.values()) {
+            pendingCount += previous.size();
+        }
+    }
+
+    private void add(String objectID, Operation operation) throws AlgoliaException {
+        synchronized (this) {
+            ++receivedCount;
+            List<Operation> previous = operations.get(objectID);
+            if (previous == null) {
+                previous = new ArrayList<Operation>(1);
+                operations.put(objectID, previous);
+            }
+            pendingCount -= previous.size();
+            coalesce(previous, operation);
+            pendingCount += previous.size();
+        }
+        flushIfFull();
+    }
+
+    private boolean isFull() {
+        return operations.size() + anonymousAdds.size() >= maxObjects;
+    }
+
+    private void flushIfFull() throws AlgoliaException {
+        AlgoliaException error;
+        synchronized (this) {
+            // the producers only wait if the buffer is full again before the end of the automatic flush
+            while (autoFlushing && drained && isFull()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AlgoliaException("Interrupted while waiting for the flush");
+                }
+            }
+            error = autoFlushError;
+            autoFlushError = null;
+            if (error == null && !autoFlushing && isFull()) {
+                autoFlushing = true;
+                drained = false;
+                threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        autoFlush();
+                    }
+                }).start();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void autoFlush() {
+        AlgoliaException error = null;
+        try {
+            synchronized (flushLock) {
+                List<String> taskIDs = flush();
+                // returned by the next explicit flush
+                sentTaskIDs.addAll(0, taskIDs);
+            }
+        } catch (AlgoliaException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new AlgoliaException(e.toString());
+        } finally {
+            synchronized (this) {
+                autoFlushError = error;
+                autoFlushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Append the operation to the previous operations of the same object, merging them when possible
+     */
+    private static void coalesce(List<Operation> previous, Operation operation) {
+        if (!operation.action.equals("partialUpdateObject") || previous.isEmpty()) {
+            previous.clear();
+            previous.add(operation);
+            return;
+        }
+        Operation last = previous.get(previous.size() - 1);
+        boolean builtIn = hasBuiltInOperation(operation.body);
+        if (last.action.equals("deleteObject") && !builtIn) {
+            // the partial update creates the object with only the given attributes
+            previous.clear();
+            previous.add(new Operation("updateObject", operation.body));
+        } else if (last.action.equals("updateObject") && !builtIn) {
+            merge(last.body, operation.body);
+        } else if (last.action.equals("partialUpdateObject") && (!builtIn && !hasBuiltInOperation(last.body) || !overlap(last.body, operation.body))) {
+            merge(last.body, operation.body);
+        } else {
+            previous.add(operation);
+        }
+    }
+
+    private static void merge(JSONObject target, JSONObject source) {
+        Iterator<?> keys = source.keys();
+        try {
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                target.put(key, source.get(key));
+            }
+        } catch (JSONException e) {
+            // never reached, the keys come from the object
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean hasBuiltInOperation(JSONObject body) {
+        Iterator<?> keys = body.keys();
+        while (keys.hasNext()) {
+            JSONObject value = body.optJSONObject((String) keys.next());
+            if (value != null && value.has("_operation")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlap(JSONObject a, JSONObject b) {
+        Iterator<?> keys = b.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (!key.equals("objectID") && a.has(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String objectID(JSONObject object) throws AlgoliaException {
+        try {
+            return object.getString("objectID");
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * The buffer keeps its own copies, as merged objects are modified
+     */
+    private static JSONObject copy(JSONObject object) throws AlgoliaException {
+        try {
+            return new JSONObject(object.toString());
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    private static class Operation {
+        final String action;
+        final JSONObject body;
+
+        Operation(String action, JSONObject body) {
+            this.action = action;
+            this.body = body;
+        }
+
+        JSONObject toAction(String objectID) throws JSONException {
+            JSONObject action = new JSONObject();
+            action.put("action", this.action);
+            if (objectID != null && !this.action.equals("deleteObject")) {
+                action.put("objectID", objectID);
+            }
+            action.put("body", body);
+            return action;
+        }
+    }
+}
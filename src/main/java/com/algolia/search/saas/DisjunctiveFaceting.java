@@ -0,0 +1,245 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Disjunctive faceting engine for one query, meant to be kept while the user refines the results
+ * (for example one instance per search page).
+ * <p>
+ * The parameters of the main query and of the per-facet queries are encoded once, when the engine is built,
+ * and the encoded refinement fragments are cached. Each call of search only sends the main query and the
+ * facet queries whose filters changed since the previous call: when a value of a disjunctive facet is toggled,
+ * the query of that facet is answered from the previous result. Call clearCache to forget the previous results
+ * (for example after an update of the index).
+ * The engine is thread-safe, the searches of one engine are serialized.
+ */
+public class DisjunctiveFaceting {
+    private static final int MAX_CACHED_FRAGMENTS = 10000;
+
+    private final APIClient client;
+    private final String indexName;
+    private final List<String> disjunctiveFacets;
+    private final Set<String> disjunctiveFacetsSet;
+    private final String mainParams;
+    private final String[] facetParams;
+    private final String[] lastFacetParams;
+    private final JSONObject[] lastFacetResults;
+    private final LRUCache<String, String> encodedFragments = new LRUCache<String, String>(MAX_CACHED_FRAGMENTS);
+    private final Map<String, EncodedGroup> encodedGroups = new HashMap<String, EncodedGroup>();
+
+    private static class EncodedGroup {
+        final List<String> values;
+        final String encoded;
+
+        EncodedGroup(List<String> values, String encoded) {
+            this.values = values;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * @param index             the index to query
+     * @param query             the query, later modifications of the query are ignored
+     * @param disjunctiveFacets the facets whose refinements are ORed
+     */
+    public DisjunctiveFaceting(Index index, Query query, List<String> disjunctiveFacets) {
+        this.client = index.getClient();
+        this.indexName = index.getIndexName();
+        this.disjunctiveFacets = new ArrayList<String>(disjunctiveFacets);
+        this.disjunctiveFacetsSet = new HashSet<String>(disjunctiveFacets);
+        this.mainParams = new Query(query).setFacetFilters((String) null).getQueryString();
+
+        // hitsPerPage=0 + single facet, the facetFilters are appended at search time
+        Query facetQuery = new Query(query).setHitsPerPage(0).enableAnalytics(false).setAttributesToRetrieve(new ArrayList<String>())
+                .setAttributesToHighlight(new ArrayList<String>()).setAttributesToSnippet(new ArrayList<String>()).setFacetFilters((String) null);
+        int count = this.disjunctiveFacets.size();
+        this.facetParams = new String[count];
+        this.lastFacetParams = new String[count];
+        this.lastFacetResults = new JSONObject[count];
+        for (int i = 0; i < count; ++i) {
+            facetParams[i] = facetQuery.setFacets(Collections.singletonList(this.disjunctiveFacets.get(i))).getQueryString();
+        }
+    }
+
+    /**
+     * Forget the results of the previous searches, the next search sends all the queries
+     */
+    public synchronized void clearCache() {
+        for (int i = 0; i < lastFacetResults.length; ++i) {
+            lastFacetParams[i] = null;
+            lastFacetResults[i] = null;
+        }
+    }
+
+    /**
+     * Perform the search with the given refinements.
+     *
+     * @param refinements the values refined for each facet (null if nothing is refined)
+     * @return the answer of the main query, with a "disjunctiveFacets" attribute containing the counts of the disjunctive facets
+     */
+    public synchronized JSONObject search(Map<String, List<String>> refinements) throws AlgoliaException {
+        // encoded facetFilters entry of each refined facet, sorted to get the same parameters for the same refinements
+        TreeMap<String, String> groups = new TreeMap<String, String>();
+        if (refinements != null) {
+            for (Map.Entry<String, List<String>> entry : refinements.entrySet()) {
+                if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                    groups.put(entry.getKey(), encodedGroup(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+
+        List<String> indexNames = new ArrayList<String>(disjunctiveFacets.size() + 1);
+        List<String> params = new ArrayList<String>(disjunctiveFacets.size() + 1);
+        List<Integer> sentFacets = new ArrayList<Integer>(disjunctiveFacets.size());
+        indexNames.add(indexName);
+        params.add(withFacetFilters(mainParams, groups, null));
+        for (int i = 0; i < disjunctiveFacets.size(); ++i) {
+            String facetQueryParams = withFacetFilters(facetParams[i], groups, disjunctiveFacets.get(i));
+            if (lastFacetResults[i] == null || !facetQueryParams.equals(lastFacetParams[i])) {
+                indexNames.add(indexName);
+                params.add(facetQueryParams);
+                sentFacets.add(i);
+            }
+        }
+
+        try {
+            JSONArray results = client.multipleQueries(indexNames, params, "none").getJSONArray("results");
+            for (int i = 0; i < sentFacets.size(); ++i) {
+                int facet = sentFacets.get(i);
+                lastFacetParams[facet] = params.get(i + 1);
+                lastFacetResults[facet] = results.getJSONObject(i + 1);
+            }
+            return aggregate(results.getJSONObject(0), refinements);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * The first answer stores the hits and the regular facets, the other ones the counts of the disjunctive facets
+     */
+    private JSONObject aggregate(JSONObject mainAnswer, Map<String, List<String>> refinements) throws JSONException {
+        JSONObject disjunctiveFacetsJSON = new JSONObject();
+        for (JSONObject facetAnswer : lastFacetResults) {
+            JSONObject facets = facetAnswer.optJSONObject("facets");
+            if (facets == null) {
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            Iterator<String> keys = facets.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject counts = facets.getJSONObject(key);
+                List<String> refined = refinements == null || !disjunctiveFacetsSet.contains(key) ? null : refinements.get(key);
+                if (refined != null) {
+                    // refined values without any hit are added with a 0 count, on a copy to keep the cached answer intact
+                    JSONObject completedCounts = null;
+                    for (String value : refined) {
+                        if (!counts.has(value)) {
+                            if (completedCounts == null) {
+                                completedCounts = counts.length() == 0 ? new JSONObject() : new JSONObject(counts, JSONObject.getNames(counts));
+                            }
+                            completedCounts.put(value, 0);
+                        }
+                    }
+                    if (completedCounts != null) {
+                        counts = completedCounts;
+                    }
+                }
+                disjunctiveFacetsJSON.put(key, counts);
+            }
+        }
+        mainAnswer.put("disjunctiveFacets", disjunctiveFacetsJSON);
+        return mainAnswer;
+    }
+
+    /**
+     * Disjunctive refinements are ORed (in parentheses), the other ones are ANDed
+     */
+    private String encodedGroup(String facet, List<String> values) {
+        EncodedGroup group = encodedGroups.get(facet);
+        if (group != null && group.values.equals(values)) {
+            return group.encoded;
+        }
+        boolean disjunctive = disjunctiveFacetsSet.contains(facet);
+        StringBuilder builder = new StringBuilder();
+        if (disjunctive) {
+            builder.append("%28");
+        }
+        for (int i = 0; i < values.size(); ++i) {
+            if (i > 0) {
+                builder.append("%2C");
+            }
+            builder.append(encodedFragment(facet, values.get(i)));
+        }
+        if (disjunctive) {
+            builder.append("%29");
+        }
+        String encoded = builder.toString();
+        encodedGroups.put(facet, new EncodedGroup(new ArrayList<String>(values), encoded));
+        return encoded;
+    }
+
+    private String encodedFragment(String facet, String value) {
+        String fragment = facet + ":" + value;
+        String encoded = encodedFragments.get(fragment);
+        if (encoded == null) {
+            encoded = PercentEncoder.encode(fragment);
+            encodedFragments.put(fragment, encoded);
+        }
+        return encoded;
+    }
+
+    private static String withFacetFilters(String params, TreeMap<String, String> groups, String excludedFacet) {
+        StringBuilder builder = new StringBuilder(params.length() + 64 * groups.size()).append(params);
+        boolean first = true;
+        for (Map.Entry<String, String> group : groups.entrySet()) {
+            if (group.getKey().equals(excludedFacet)) {
+                continue;
+            }
+            if (first) {
+                builder.append(params.length() > 0 ? "&facetFilters=" : "facetFilters=");
+                first = false;
+            } else {
+                builder.append("%2C");
+            }
+            builder.append(group.getValue());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,345 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Typed filter expression, compiled to the syntax of the filters query parameter.
+ * Filters are immutable and validated when they are built: the combinations refused by the API
+ * (an AND inside an OR, an OR between filters of different types, the negation of a group)
+ * throw an IllegalArgumentException. The compiled string of each node is computed only once,
+ * so fragments shared by many queries (for example a tenant filter kept in a constant) are serialized once.
+ * <p>
+ * Example: Filter.and(Filter.facet("tenant", "42"), Filter.or(Filter.tag("public"), Filter.tag("user_1")), Filter.range("price", 10, 20))
+ */
+public abstract class Filter {
+    private enum Type {
+        FACET, NUMERIC, TAG, GROUP
+    }
+
+    private static final String[] OPERATORS = {"<", "<=", "=", "!=", ">=", ">"};
+
+    private volatile String compiled;
+
+    private Filter() {
+    }
+
+    /**
+     * Filter the objects having value for the facet attribute
+     */
+    public static Filter facet(String attribute, String value) {
+        return new Leaf(Type.FACET, appendValue(appendAttribute(new StringBuilder(), attribute).append(':'), value).toString());
+    }
+
+    /**
+     * Filter the objects having the tag
+     */
+    public static Filter tag(String value) {
+        return new Leaf(Type.TAG, appendValue(new StringBuilder("_tags:"), value).toString());
+    }
+
+    /**
+     * Filter the objects on a numeric attribute
+     *
+     * @param operator one of &lt;, &lt;=, =, !=, &gt;=, &gt;
+     */
+    public static Filter numeric(String attribute, String operator, double value) {
+        boolean valid = false;
+        for (String op : OPERATORS) {
+            valid |= op.equals(operator);
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("Invalid numeric operator: " + operator);
+        }
+        StringBuilder builder = appendAttribute(new StringBuilder(), attribute).append(' ').append(operator).append(' ');
+        GeoCoordinates.appendNumber(builder, checkNumber(value));
+        return new Leaf(Type.NUMERIC, builder.toString());
+    }
+
+    /**
+     * Filter the objects whose numeric attribute is between lower and upper (inclusive)
+     */
+    public static Filter range(String attribute, double lower, double upper) {
+        if (checkNumber(lower) > checkNumber(upper)) {
+            throw new IllegalArgumentException("Invalid range: " + lower + " > " + upper);
+        }
+        StringBuilder builder = appendAttribute(new StringBuilder(), attribute).append(':');
+        GeoCoordinates.appendNumber(builder, lower);
+        GeoCoordinates.appendNumber(builder.append(" TO "), upper);
+        return new Leaf(Type.NUMERIC, builder.toString());
+    }
+
+    /**
+     * Filter the objects whose integer attribute is between lower and upper (inclusive).
+     * The bounds are written exactly, even above 2^53 where a double loses precision.
+     */
+    public static Filter range(String attribute, long lower, long upper) {
+        if (lower > upper) {
+            throw new IllegalArgumentException("Invalid range: " + lower + " > " + upper);
+        }
+        StringBuilder builder = appendAttribute(new StringBuilder(), attribute).append(':');
+        builder.append(lower).append(" TO ").append(upper);
+        return new Leaf(Type.NUMERIC, builder.toString());
+    }
+
+    /**
+     * Negate a facet, numeric or tag filter (the negation of a group is not supported by the API)
+     */
+    public static Filter not(Filter filter) {
+        if (filter instanceof Not) {
+            return ((Not) filter).filter;
+        }
+        if (!(filter instanceof Leaf)) {
+            throw new IllegalArgumentException("Only a facet, numeric or tag filter can be negated: " + filter);
+        }
+        return new Not((Leaf) filter);
+    }
+
+    /**
+     * Conjunction of filters, nested conjunctions are flattened
+     */
+    public static Filter and(Filter... filters) {
+        return and(Arrays.asList(filters));
+    }
+
+    /**
+     * Conjunction of filters, nested conjunctions are flattened
+     */
+    public static Filter and(List<Filter> filters) {
+        List<Filter> operands = new ArrayList<Filter>(filters.size());
+        for (Filter filter : filters) {
+            if (filter instanceof And) {
+                operands.addAll(((Group) filter).operands);
+            } else if (filter != null) {
+                operands.add(filter);
+            } else {
+                throw new IllegalArgumentException("Null filter");
+            }
+        }
+        if (operands.isEmpty()) {
+            throw new IllegalArgumentException("Empty AND group");
+        }
+        return operands.size() == 1 ? operands.get(0) : new And(operands);
+    }
+
+    /**
+     * Disjunction of filters of the same type (facet, numeric or tag), possibly negated
+     */
+    public static Filter or(Filter... filters) {
+        return or(Arrays.asList(filters));
+    }
+
+    /**
+     * Disjunction of filters of the same type (facet, numeric or tag), possibly negated
+     */
+    public static Filter or(List<Filter> filters) {
+        List<Filter> operands = new ArrayList<Filter>(filters.size());
+        Type type = null;
+        for (Filter filter : filters) {
+            if (filter instanceof Or) {
+                operands.addAll(((Group) filter).operands);
+            } else if (filter instanceof And) {
+                throw new IllegalArgumentException("An AND group cannot be nested in an OR group: " + filter);
+            } else if (filter != null) {
+                operands.add(filter);
+            } else {
+                throw new IllegalArgumentException("Null filter");
+            }
+            if (type == null) {
+                type = filter.type();
+            } else if (type != filter.type()) {
+                throw new IllegalArgumentException("An OR group cannot mix filters of different types: " + filters);
+            }
+        }
+        if (operands.isEmpty()) {
+            throw new IllegalArgumentException("Empty OR group");
+        }
+        return operands.size() == 1 ? operands.get(0) : new Or(type, operands);
+    }
+
+    /**
+     * @return the filter in the syntax of the filters query parameter
+     */
+    @Override
+    public String toString() {
+        String str = compiled;
+        if (str == null) {
+            str = compile();
+            compiled = str;
+        }
+        return str;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Filter && o.toString().equals(toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    abstract Type type();
+
+    abstract String compile();
+
+    private static double checkNumber(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Invalid numeric value: " + value);
+        }
+        return value;
+    }
+
+    private static StringBuilder appendAttribute(StringBuilder builder, String attribute) {
+        if (attribute == null || attribute.length() == 0) {
+            throw new IllegalArgumentException("The attribute of a filter cannot be empty");
+        }
+        for (int i = 0; i < attribute.length(); ++i) {
+            char c = attribute.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '-') {
+                return appendValue(builder, attribute);
+            }
+        }
+        return builder.append(attribute);
+    }
+
+    private static StringBuilder appendValue(StringBuilder builder, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("The value of a filter cannot be null");
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+        return builder.append('"');
+    }
+
+    private static final class Leaf extends Filter {
+        private final Type type;
+        private final String expression;
+
+        Leaf(Type type, String expression) {
+            this.type = type;
+            this.expression = expression;
+        }
+
+        @Override
+        Type type() {
+            return type;
+        }
+
+        @Override
+        String compile() {
+            return expression;
+        }
+    }
+
+    private static final class Not extends Filter {
+        final Leaf filter;
+
+        Not(Leaf filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        Type type() {
+            return filter.type();
+        }
+
+        @Override
+        String compile() {
+            return "NOT " + filter;
+        }
+    }
+
+    private abstract static class Group extends Filter {
+        final List<Filter> operands;
+
+        Group(List<Filter> operands) {
+            this.operands = Collections.unmodifiableList(operands);
+        }
+
+        void appendOperands(StringBuilder builder, String separator) {
+            for (int i = 0; i < operands.size(); ++i) {
+                if (i > 0) {
+                    builder.append(separator);
+                }
+                Filter operand = operands.get(i);
+                if (operand instanceof Group) {
+                    builder.append('(').append(operand).append(')');
+                } else {
+                    builder.append(operand);
+                }
+            }
+        }
+    }
+
+    private static final class And extends Group {
+        And(List<Filter> operands) {
+            super(operands);
+        }
+
+        @Override
+        Type type() {
+            return Type.GROUP;
+        }
+
+        @Override
+        String compile() {
+            StringBuilder builder = new StringBuilder();
+            appendOperands(builder, " AND ");
+            return builder.toString();
+        }
+    }
+
+    private static final class Or extends Group {
+        private final Type type;
+
+        Or(Type type, List<Filter> operands) {
+            super(operands);
+            this.type = type;
+        }
+
+        @Override
+        Type type() {
+            return type;
+        }
+
+        @Override
+        String compile() {
+            StringBuilder builder = new StringBuilder();
+            appendOperands(builder, " OR ");
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.algolia.search.saas;
+
+import java.util.Collection;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * 128-bit fingerprint of a search, suitable as a cache or deduplication key:
+ * two queries sending equivalent parameters have the same fingerprint, regardless of the order
+ * in which the parameters were set or of the order of the attribute and facet lists.
+ * This is not a cryptographic hash.
+ */
+public final class Fingerprint {
+    private final long high;
+    private final long low;
+
+    Fingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Fingerprint)) {
+            return false;
+        }
+        Fingerprint other = (Fingerprint) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /**
+     * @return the fingerprint as 32 hexadecimal characters
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(32);
+        appendHex(builder, high);
+        appendHex(builder, low);
+        return builder.toString();
+    }
+
+    private static void appendHex(StringBuilder builder, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            builder.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        }
+    }
+
+    /**
+     * Incremental computation of a fingerprint, each value is mixed in two independent 64-bit lanes
+     */
+    static final class Builder {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        private long h1 = 0x9368e53c2f6af274L;
+        private long h2 = 0x586dcd208f7cd3fdL;
+        private long length;
+
+        Builder putLong(long value) {
+            h1 ^= Long.rotateLeft(value * C1, 31) * C2;
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= Long.rotateLeft(value * C2, 33) * C1;
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+            ++length;
+            return this;
+        }
+
+        Builder putInt(int value) {
+            return putLong(value);
+        }
+
+        Builder putBoolean(boolean value) {
+            return putLong(value ? 1 : 0);
+        }
+
+        Builder putDouble(double value) {
+            return putLong(Double.doubleToLongBits(value));
+        }
+
+        Builder putString(String value) {
+            int len = value.length();
+            int i = 0;
+            // four characters per mixing round
+            for (; i + 4 <= len; i += 4) {
+                putLong(((long) value.charAt(i) << 48) | ((long) value.charAt(i + 1) << 32)
+                        | ((long) value.charAt(i + 2) << 16) | value.charAt(i + 3));
+            }
+            long tail = 0;
+            for (; i < len; ++i) {
+                tail = (tail << 16) | value.charAt(i);
+            }
+            return putLong(tail).putInt(len);
+        }
+
+        /**
+         * Mix a list of strings whose order does not matter
+         */
+        Builder putUnordered(Collection<String> values) {
+            long sum1 = 0;
+            long sum2 = 0;
+            for (String value : values) {
+                Fingerprint element = new Builder().putString(value == null ? "" : value).build();
+                sum1 += element.high;
+                sum2 += element.low;
+            }
+            return putLong(sum1).putLong(sum2).putInt(values.size());
+        }
+
+        Fingerprint build() {
+            long a = h1 ^ length;
+            long b = h2 ^ length;
+            a += b;
+            b += a;
+            a = fmix(a);
+            b = fmix(b);
+            a += b;
+            b += a;
+            return new Fingerprint(a, b);
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
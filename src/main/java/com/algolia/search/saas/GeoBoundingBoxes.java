@@ -0,0 +1,58 @@
+package com.algolia.search.saas;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * List of rectangles used by geo-search (an object matches if it is inside one of them),
+ * each rectangle being defined by two opposite corners.
+ * The coordinates are kept in a primitive array and serialized only once, when the query is encoded.
+ */
+public final class GeoBoundingBoxes extends GeoCoordinates {
+
+    public GeoBoundingBoxes() {
+        super(4);
+    }
+
+    public GeoBoundingBoxes(GeoBoundingBoxes other) {
+        super(other);
+    }
+
+    /**
+     * Add a rectangle defined by two opposite corners
+     */
+    public GeoBoundingBoxes add(double latitudeP1, double longitudeP1, double latitudeP2, double longitudeP2) {
+        addCoordinate(latitudeP1);
+        addCoordinate(longitudeP1);
+        addCoordinate(latitudeP2);
+        addCoordinate(longitudeP2);
+        return this;
+    }
+
+    /**
+     * @return the number of rectangles
+     */
+    public int size() {
+        return coordinatesCount() / 4;
+    }
+}
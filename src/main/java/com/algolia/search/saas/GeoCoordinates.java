@@ -0,0 +1,106 @@
+package com.algolia.search.saas;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Growable list of coordinates stored in a primitive array, shared by the geo shapes
+ */
+abstract class GeoCoordinates {
+    private double[] values;
+    private int size;
+
+    GeoCoordinates(int initialCapacity) {
+        values = new double[Math.max(initialCapacity, 4)];
+    }
+
+    GeoCoordinates(GeoCoordinates other) {
+        values = Arrays.copyOf(other.values, Math.max(other.size, 4));
+        size = other.size;
+    }
+
+    final void addCoordinate(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Invalid coordinate: " + value);
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    final double coordinate(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+        return values[i];
+    }
+
+    final int coordinatesCount() {
+        return size;
+    }
+
+    final void putTo(Fingerprint.Builder builder) {
+        builder.putInt(size);
+        for (int i = 0; i < size; ++i) {
+            builder.putDouble(values[i]);
+        }
+    }
+
+    /**
+     * Append the coordinates separated by commas
+     */
+    final StringBuilder appendTo(StringBuilder builder) {
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            appendNumber(builder, values[i]);
+        }
+        return builder;
+    }
+
+    /**
+     * Append the shortest representation of a number: integers without decimal part, no exponent notation,
+     * and values coming from a float printed with the float precision (as the float methods of Query always did)
+     */
+    static void appendNumber(StringBuilder builder, double value) {
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            builder.append((long) value);
+            return;
+        }
+        String str = (double) (float) value == value ? Float.toString((float) value) : Double.toString(value);
+        if (str.indexOf('E') >= 0) {
+            str = new BigDecimal(str).stripTrailingZeros().toPlainString();
+        }
+        builder.append(str);
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(size * 10)).toString();
+    }
+}
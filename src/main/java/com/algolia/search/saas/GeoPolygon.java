@@ -0,0 +1,76 @@
+package com.algolia.search.saas;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Polygon used by geo-search. It needs at least three points to be added to a Query.
+ * The coordinates are kept in a primitive array and serialized only once, when the query is encoded.
+ */
+public final class GeoPolygon extends GeoCoordinates {
+
+    public GeoPolygon() {
+        super(16);
+    }
+
+    /**
+     * @param expectedPoints the expected number of points, to avoid growing the underlying array
+     */
+    public GeoPolygon(int expectedPoints) {
+        super(expectedPoints * 2);
+    }
+
+    public GeoPolygon(GeoPolygon other) {
+        super(other);
+    }
+
+    /**
+     * Add a point to the polygon
+     */
+    public GeoPolygon add(double latitude, double longitude) {
+        addCoordinate(latitude);
+        addCoordinate(longitude);
+        return this;
+    }
+
+    /**
+     * @return the number of points of the polygon
+     */
+    public int size() {
+        return coordinatesCount() / 2;
+    }
+
+    void checkValid() {
+        if (size() < 3) {
+            throw new IllegalArgumentException("A polygon needs at least three points, got " + size());
+        }
+    }
+
+    public double getLatitude(int point) {
+        return coordinate(point * 2);
+    }
+
+    public double getLongitude(int point) {
+        return coordinate(point * 2 + 1);
+    }
+}
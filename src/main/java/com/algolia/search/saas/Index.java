@@ -1,20 +1,22 @@
 package com.algolia.search.saas;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.http.HttpEntity;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.algolia.search.saas.APIClient.IndexQuery;
-
-
 /*
  * Copyright (c) 2015 Algolia
  * http://www.algolia.com/
@@ -47,18 +49,18 @@ public class Index {
     private String encodedIndexName;
     private String indexName;
     private final long MAX_TIME_MS_TO_WAIT = 10000L;
+    private volatile LRUCache<String, Long> notFoundCache;
+    private volatile LRUCache<String, Long> recentWrites;
+    private volatile long notFoundCacheTTL;
+    private volatile long unknownWritesUntil;
 
     /**
      * Index initialization (You should not call this yourself)
      */
     protected Index(APIClient client, String indexName) {
-        try {
-            this.client = client;
-            this.encodedIndexName = URLEncoder.encode(indexName, "UTF-8");
-            this.indexName = indexName;
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        this.client = client;
+        this.encodedIndexName = PercentEncoder.encode(indexName);
+        this.indexName = indexName;
     }
 
     /**
@@ -68,12 +70,97 @@ public class Index {
         return indexName;
     }
 
+    APIClient getClient() {
+        return client;
+    }
+
+    /**
+     * Remember the objectIDs for which getObject did not find any object, to answer the next lookups
+     * locally. Adding, saving or updating an object through this Index removes it from the cache.
+     * A write is only visible once its task is published, so a 404 answered during the TTL following
+     * a write through this Index is not cached.
+     *
+     * @param maxSize the maximum number of objectIDs kept in the cache
+     * @param ttlMS   the time in milliseconds during which a missing object is considered as missing
+     */
+    public void enableNotFoundCache(int maxSize, long ttlMS) {
+        this.notFoundCacheTTL = ttlMS;
+        this.recentWrites = new LRUCache<String, Long>(maxSize);
+        this.notFoundCache = new LRUCache<String, Long>(maxSize);
+    }
+
+    /**
+     * Disable the cache enabled with enableNotFoundCache()
+     */
+    public void disableNotFoundCache() {
+        this.notFoundCache = null;
+        this.recentWrites = null;
+    }
+
+    private boolean isKnownAsNotFound(String objectID) {
+        LRUCache<String, Long> cache = notFoundCache;
+        if (cache == null) {
+            return false;
+        }
+        Long expiration = cache.get(objectID);
+        if (expiration == null) {
+            return false;
+        }
+        if (expiration < System.currentTimeMillis()) {
+            cache.remove(objectID);
+            return false;
+        }
+        return true;
+    }
+
+    private void rememberNotFound(String objectID) {
+        LRUCache<String, Long> cache = notFoundCache;
+        LRUCache<String, Long> writes = recentWrites;
+        if (cache == null || writes == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // the 404 may come from a write not yet published
+        if (now < unknownWritesUntil) {
+            return;
+        }
+        Long written = writes.get(objectID);
+        if (written != null) {
+            if (now < written) {
+                return;
+            }
+            writes.remove(objectID);
+        }
+        cache.put(objectID, now + notFoundCacheTTL);
+    }
+
+    private void forgetNotFound(String objectID) {
+        LRUCache<String, Long> cache = notFoundCache;
+        LRUCache<String, Long> writes = recentWrites;
+        if (cache != null && writes != null && objectID != null) {
+            writes.put(objectID, System.currentTimeMillis() + notFoundCacheTTL);
+            cache.remove(objectID);
+        }
+    }
+
+    private void forgetNotFound(JSONObject action) {
+        if (notFoundCache == null) {
+            return;
+        }
+        String objectID = action.optString("objectID", null);
+        if (objectID == null && action.optJSONObject("body") != null) {
+            objectID = action.optJSONObject("body").optString("objectID", null);
+        }
+        forgetNotFound(objectID);
+    }
+
     /**
      * Add an object in this index
      *
      * @param obj the object to add
      */
     public JSONObject addObject(JSONObject obj) throws AlgoliaException {
+        forgetNotFound(obj.optString("objectID", null));
         return client.postRequest("/1/indexes/" + encodedIndexName, obj.toString(), true, false);
     }
 
@@ -85,11 +172,8 @@ public class Index {
      *                 (if this objectID already exist the old object will be overriden)
      */
     public JSONObject addObject(JSONObject obj, String objectID) throws AlgoliaException {
-        try {
-            return client.putRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), obj.toString(), true);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        forgetNotFound(objectID);
+        return client.putRequest("/1/indexes/" + encodedIndexName + "/" + PercentEncoder.encode(objectID), obj.toString(), true);
     }
 
     /**
@@ -100,6 +184,11 @@ public class Index {
      */
     public JSONObject batch(JSONArray actions) throws AlgoliaException {
         try {
+            if (notFoundCache != null) {
+                for (int i = 0; i < actions.length(); ++i) {
+                    forgetNotFound(actions.getJSONObject(i));
+                }
+            }
             JSONObject content = new JSONObject();
             content.put("requests", actions);
             return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", content.toString(), true, false);
@@ -116,6 +205,11 @@ public class Index {
      */
     public JSONObject batch(List<JSONObject> actions) throws AlgoliaException {
         try {
+            if (notFoundCache != null) {
+                for (JSONObject action : actions) {
+                    forgetNotFound(action);
+                }
+            }
             JSONObject content = new JSONObject();
             content.put("requests", actions);
             return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", content.toString(), true, false);
@@ -124,24 +218,45 @@ public class Index {
         }
     }
 
+    /**
+     * Custom batch with an already encoded {"requests":[...]} body.
+     * The objectIDs of the body are unknown, so the whole not found cache is cleared
+     * and no 404 is cached during the TTL.
+     */
+    JSONObject batch(HttpEntity body) throws AlgoliaException {
+        LRUCache<String, Long> cache = notFoundCache;
+        if (cache != null) {
+            unknownWritesUntil = System.currentTimeMillis() + notFoundCacheTTL;
+            cache.clear();
+        }
+        return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", body, true, 0);
+    }
+
+    private JSONObject batch(BatchEntity body) throws AlgoliaException {
+        return batch(body, body.getObjectIDs(), 0);
+    }
+
+    /**
+     * Custom batch with an already encoded {"requests":[...]} body modifying the given objectIDs
+     *
+     * @param firstHost the position of the first host to try, to spread parallel batches on the hosts
+     */
+    JSONObject batch(HttpEntity body, Collection<String> objectIDs, int firstHost) throws AlgoliaException {
+        if (notFoundCache != null) {
+            for (String objectID : objectIDs) {
+                forgetNotFound(objectID);
+            }
+        }
+        return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", body, true, firstHost);
+    }
+
     /**
      * Add several objects
      *
      * @param objects the array of objects to add
      */
     public JSONObject addObjects(List<JSONObject> objects) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (JSONObject obj : objects) {
-                JSONObject action = new JSONObject();
-                action.put("action", "addObject");
-                action.put("body", obj);
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("addObject", objects));
     }
 
     /**
@@ -150,18 +265,7 @@ public class Index {
      * @param objects the array of objects to add
      */
     public JSONObject addObjects(JSONArray inputArray) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (int n = 0; n < inputArray.length(); n++) {
-                JSONObject action = new JSONObject();
-                action.put("action", "addObject");
-                action.put("body", inputArray.getJSONObject(n));
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("addObject", BatchEntity.toList(inputArray)));
     }
 
     /**
@@ -170,15 +274,17 @@ public class Index {
      * @param objectID the unique identifier of the object to retrieve
      */
     public JSONObject getObject(String objectID) throws AlgoliaException {
+        if (isKnownAsNotFound(objectID)) {
+            return null;
+        }
         try {
-            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), false);
+            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + PercentEncoder.encode(objectID), false);
         } catch (AlgoliaException e) {
             if (e.getCode() == 404) {
+                rememberNotFound(objectID);
                 return null;
             }
             throw e;
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -189,17 +295,24 @@ public class Index {
      * @param attributesToRetrieve, contains the list of attributes to retrieve.
      */
     public JSONObject getObject(String objectID, List<String> attributesToRetrieve) throws AlgoliaException {
+        if (isKnownAsNotFound(objectID)) {
+            throw new AlgoliaException(404, "Resource does not exist");
+        }
+        StringBuilder path = new StringBuilder("/1/indexes/").append(encodedIndexName).append('/');
+        PercentEncoder.encode(path, objectID);
+        path.append("?attributes=");
+        for (int i = 0; i < attributesToRetrieve.size(); ++i) {
+            if (i > 0)
+                path.append(",");
+            PercentEncoder.encode(path, attributesToRetrieve.get(i));
+        }
         try {
-            StringBuilder params = new StringBuilder();
-            params.append("?attributes=");
-            for (int i = 0; i < attributesToRetrieve.size(); ++i) {
-                if (i > 0)
-                    params.append(",");
-                params.append(URLEncoder.encode(attributesToRetrieve.get(i), "UTF-8"));
+            return client.getRequest(path.toString(), false);
+        } catch (AlgoliaException e) {
+            if (e.getCode() == 404) {
+                rememberNotFound(objectID);
             }
-            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8") + params.toString(), false);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+            throw e;
         }
     }
 
@@ -226,6 +339,125 @@ public class Index {
         }
     }
 
+    /**
+     * Get several objects from this index, by chunks of 100 objectIDs fetched in parallel
+     *
+     * @param objectIDs            the unique identifiers of the objects to retrieve
+     * @param attributesToRetrieve the attributes to retrieve, null for all the attributes
+     * @return the objects in the order of objectIDs, null for the objects that do not exist
+     */
+    public List<JSONObject> getObjects(List<String> objectIDs, List<String> attributesToRetrieve) throws AlgoliaException {
+        return getObjects(objectIDs, attributesToRetrieve, 100, 4);
+    }
+
+    /**
+     * Get several objects from this index, by chunks fetched in parallel
+     *
+     * @param objectIDs            the unique identifiers of the objects to retrieve
+     * @param attributesToRetrieve the attributes to retrieve, null for all the attributes
+     * @param chunkSize            the maximum number of objectIDs per request
+     * @param parallelism          the maximum number of requests sent in parallel
+     * @return the objects in the order of objectIDs, null for the objects that do not exist
+     */
+    public List<JSONObject> getObjects(List<String> objectIDs, List<String> attributesToRetrieve, int chunkSize, int parallelism) throws AlgoliaException {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("chunkSize and parallelism must be positive");
+        }
+        final String attributes = attributesToRetrieve != null ? join(attributesToRetrieve) : null;
+        JSONObject[] objects = new JSONObject[objectIDs.size()];
+        // the objects known as not found are not requested
+        final List<Integer> positions = new ArrayList<Integer>(objectIDs.size());
+        for (int i = 0; i < objectIDs.size(); ++i) {
+            if (!isKnownAsNotFound(objectIDs.get(i))) {
+                positions.add(i);
+            }
+        }
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int start = 0; start < positions.size(); start += chunkSize) {
+            List<String> chunk = new ArrayList<String>(Math.min(chunkSize, positions.size() - start));
+            for (int i = start; i < Math.min(start + chunkSize, positions.size()); ++i) {
+                chunk.add(objectIDs.get(positions.get(i)));
+            }
+            chunks.add(chunk);
+        }
+        List<JSONArray> results = new ArrayList<JSONArray>(chunks.size());
+        if (chunks.size() == 1) {
+            results.add(getObjectsChunk(chunks.get(0), attributes));
+        } else if (chunks.size() > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()), new DaemonThreadFactory("objects"));
+            try {
+                List<Future<JSONArray>> futures = new ArrayList<Future<JSONArray>>(chunks.size());
+                for (final List<String> chunk : chunks) {
+                    futures.add(executor.submit(new Callable<JSONArray>() {
+                        @Override
+                        public JSONArray call() throws AlgoliaException {
+                            return getObjectsChunk(chunk, attributes);
+                        }
+                    }));
+                }
+                for (Future<JSONArray> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AlgoliaException("Interrupted while getting objects");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof AlgoliaException) {
+                    throw (AlgoliaException) e.getCause();
+                }
+                throw new AlgoliaException(e.getCause().getMessage());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        int position = 0;
+        for (JSONArray result : results) {
+            for (int i = 0; i < result.length(); ++i, ++position) {
+                int index = positions.get(position);
+                objects[index] = result.optJSONObject(i);
+                if (objects[index] == null) {
+                    rememberNotFound(objectIDs.get(index));
+                }
+            }
+        }
+        return Arrays.asList(objects);
+    }
+
+    private JSONArray getObjectsChunk(List<String> objectIDs, String attributes) throws AlgoliaException {
+        try {
+            JSONArray requests = new JSONArray();
+            for (String id : objectIDs) {
+                JSONObject request = new JSONObject();
+                request.put("indexName", this.indexName);
+                request.put("objectID", id);
+                if (attributes != null) {
+                    request.put("attributesToRetrieve", attributes);
+                }
+                requests.put(request);
+            }
+            JSONObject body = new JSONObject();
+            body.put("requests", requests);
+            JSONArray results = client.postRequest("/1/indexes/*/objects", body.toString(), false, false).getJSONArray("results");
+            if (results.length() != objectIDs.size()) {
+                throw new AlgoliaException("Unexpected number of results: " + results.length() + " for " + objectIDs.size() + " objects");
+            }
+            return results;
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
     /**
      * Update partially an object (only update attributes passed in argument), create the object if it does not exist
      *
@@ -249,12 +481,9 @@ public class Index {
         if (!createIfNotExists) {
             parameters = "?createIfNotExists=false";
         }
-        try {
-            return client.postRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8")
-                    + "/partial" + parameters, partialObject.toString(), true, false);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        forgetNotFound(objectID);
+        return client.postRequest("/1/indexes/" + encodedIndexName + "/" + PercentEncoder.encode(objectID)
+                + "/partial" + parameters, partialObject.toString(), true, false);
     }
 
     /**
@@ -263,20 +492,7 @@ public class Index {
      * @param objects the array of objects to update (each object must contains an objectID attribute)
      */
     public JSONObject partialUpdateObjects(JSONArray inputArray) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (int n = 0; n < inputArray.length(); n++) {
-                JSONObject obj = inputArray.getJSONObject(n);
-                JSONObject action = new JSONObject();
-                action.put("action", "partialUpdateObject");
-                action.put("objectID", obj.getString("objectID"));
-                action.put("body", obj);
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("partialUpdateObject", BatchEntity.toList(inputArray)));
     }
 
     /**
@@ -285,19 +501,7 @@ public class Index {
      * @param objects the array of objects to update (each object must contains an objectID attribute)
      */
     public JSONObject partialUpdateObjects(List<JSONObject> objects) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (JSONObject obj : objects) {
-                JSONObject action = new JSONObject();
-                action.put("action", "partialUpdateObject");
-                action.put("objectID", obj.getString("objectID"));
-                action.put("body", obj);
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("partialUpdateObject", objects));
     }
 
     /**
@@ -306,11 +510,8 @@ public class Index {
      * @param object the object to update
      */
     public JSONObject saveObject(JSONObject object, String objectID) throws AlgoliaException {
-        try {
-            return client.putRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), object.toString(), true);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        forgetNotFound(objectID);
+        return client.putRequest("/1/indexes/" + encodedIndexName + "/" + PercentEncoder.encode(objectID), object.toString(), true);
     }
 
     /**
@@ -319,19 +520,7 @@ public class Index {
      * @param objects the array of objects to update (each object must contains an objectID attribute)
      */
     public JSONObject saveObjects(List<JSONObject> objects) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (JSONObject obj : objects) {
-                JSONObject action = new JSONObject();
-                action.put("action", "updateObject");
-                action.put("objectID", obj.getString("objectID"));
-                action.put("body", obj);
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("updateObject", objects));
     }
 
     /**
@@ -340,20 +529,7 @@ public class Index {
      * @param objects the array of objects to update (each object must contains an objectID attribute)
      */
     public JSONObject saveObjects(JSONArray inputArray) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (int n = 0; n < inputArray.length(); n++) {
-                JSONObject obj = inputArray.getJSONObject(n);
-                JSONObject action = new JSONObject();
-                action.put("action", "updateObject");
-                action.put("objectID", obj.getString("objectID"));
-                action.put("body", obj);
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("updateObject", BatchEntity.toList(inputArray)));
     }
 
     /**
@@ -364,41 +540,63 @@ public class Index {
     public JSONObject deleteObject(String objectID) throws AlgoliaException {
         if (objectID.length() == 0 || objectID == null)
             throw new AlgoliaException("Invalid objectID");
-        try {
-            return client.deleteRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), false);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        return client.deleteRequest("/1/indexes/" + encodedIndexName + "/" + PercentEncoder.encode(objectID), false);
     }
 
     /**
-     * Delete all objects matching a query
+     * Delete all objects matching a query and wait for the deletion
      *
-     * @param query  the query string
-     * @param params the optional query parameters
+     * @param query the query
      * @throws AlgoliaException
      */
     public void deleteByQuery(Query query) throws AlgoliaException {
+        BatchUploader.Result result = deleteByQueryAsync(query, 4);
+        if (!result.isSuccessful()) {
+            List<BatchUploader.ChunkError> errors = result.getErrors();
+            AlgoliaException first = errors.get(0).getError();
+            throw new AlgoliaException(first.getCode(), "Cannot delete " + errors.size() + " chunks of objects, first error: " + first.getMessage());
+        }
+        result.waitTask();
+    }
+
+    /**
+     * Delete all objects matching a query without waiting for the deletion.
+     * The objectIDs are browsed with a cursor and deleted by batches sent in parallel with the browse.
+     *
+     * @param query       the query, not modified
+     * @param maxInFlight the maximum number of deletion batches sent in parallel
+     * @return the result of the deletion batches, call waitTask on it to wait for the deletion
+     * @throws AlgoliaException if the browse fails
+     */
+    public BatchUploader.Result deleteByQueryAsync(Query query, int maxInFlight) throws AlgoliaException {
         List<String> attributesToRetrieve = new ArrayList<String>();
         attributesToRetrieve.add("objectID");
-        query.setAttributesToRetrieve(attributesToRetrieve);
-        query.setHitsPerPage(1000);
-        query.enableDistinct(false);
-
-        JSONObject results = this.search(query);
+        Query params = new Query(query).setAttributesToRetrieve(attributesToRetrieve).setHitsPerPage(1000);
+        final PrefetchingIndexBrowser browser = browse(params, 2);
         try {
-            while (results.getInt("nbHits") != 0) {
-                List<String> objectIDs = new ArrayList<String>();
-                for (int i = 0; i < results.getJSONArray("hits").length(); ++i) {
-                    JSONObject hit = results.getJSONArray("hits").getJSONObject(i);
-                    objectIDs.add(hit.getString("objectID"));
+            return new BatchUploader(this).setChunkSize(1000).setMaxInFlight(maxInFlight).deleteObjects(new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return browser.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return browser.next().optString("objectID");
                 }
-                JSONObject task = this.deleteObjects(objectIDs);
-                this.waitTask(task.getString("taskID"));
-                results = this.search(query);
+
+                @Override
+                public void remove() {
+                    throw new IllegalStateException("Cannot remove while browsing");
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            if (e.getCause() instanceof AlgoliaException) {
+                throw (AlgoliaException) e.getCause();
             }
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
+            throw e;
+        } finally {
+            browser.close();
         }
     }
 
@@ -406,7 +604,38 @@ public class Index {
      * Search inside the index
      */
     public JSONObject search(Query params) throws AlgoliaException {
-        String paramsString = params.getQueryString();
+        return search(params.getQueryString());
+    }
+
+    /**
+     * Search inside the index with a pre-encoded query template
+     *
+     * @param template the static parameters of the query
+     * @param query    the full text query
+     * @param page     the page to retrieve (null to use the one of the template)
+     */
+    public JSONObject search(QueryTemplate template, String query, Integer page) throws AlgoliaException {
+        return search(template.getQueryString(query, page));
+    }
+
+    /**
+     * Search inside the index with a pre-encoded query template
+     *
+     * @param template  the static parameters of the query
+     * @param query     the full text query
+     * @param page      the page to retrieve (null to use the one of the template)
+     * @param userToken the userToken used as identifier for the ratelimit (null to use the one of the template)
+     * @param filters   the filters of the query (null to use the ones of the template)
+     */
+    public JSONObject search(QueryTemplate template, String query, Integer page, String userToken, String filters) throws AlgoliaException {
+        return search(template.getQueryString(query, page, userToken, filters));
+    }
+
+    private JSONObject search(String paramsString) throws AlgoliaException {
+        SearchBatcher batcher = client.getSearchBatcher();
+        if (batcher != null) {
+            return batcher.search(indexName, paramsString);
+        }
         JSONObject body = new JSONObject();
         try {
             body.put("params", paramsString);
@@ -422,20 +651,7 @@ public class Index {
      * @param objects the array of objectIDs to delete
      */
     public JSONObject deleteObjects(List<String> objects) throws AlgoliaException {
-        try {
-            JSONArray array = new JSONArray();
-            for (String id : objects) {
-                JSONObject obj = new JSONObject();
-                obj.put("objectID", id);
-                JSONObject action = new JSONObject();
-                action.put("action", "deleteObject");
-                action.put("body", obj);
-                array.put(action);
-            }
-            return batch(array);
-        } catch (JSONException e) {
-            throw new AlgoliaException(e.getMessage());
-        }
+        return batch(new BatchEntity("deleteObject", objects));
     }
 
     /**
@@ -524,15 +740,7 @@ public class Index {
         }
 
         private void doQuery(String cursor) throws AlgoliaException {
-            String paramsString = params.getQueryString();
-            if (cursor != null) {
-                try {
-                    paramsString += (paramsString.length() > 0 ? "&" : "") + "cursor=" + URLEncoder.encode(cursor, "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    throw new IllegalStateException(e);
-                }
-            }
-            this.answer = client.getRequest("/1/indexes/" + encodedIndexName + "/browse" + ((paramsString.length() > 0) ? ("?" + paramsString) : ""), true);
+            this.answer = browsePage(client, encodedIndexName, params.getQueryString(), cursor);
         }
 
         final APIClient client;
@@ -543,6 +751,38 @@ public class Index {
         int pos;
     }
 
+    /**
+     * Retrieve one page of a cursor-based browse
+     *
+     * @param paramsString the encoded query parameters
+     * @param cursor       the cursor returned by the previous page, null for the first page
+     */
+    static JSONObject browsePage(APIClient client, String encodedIndexName, String paramsString, String cursor) throws AlgoliaException {
+        return client.getRequest(browsePath(encodedIndexName, paramsString, cursor), true);
+    }
+
+    JSONObject browsePage(String paramsString, String cursor) throws AlgoliaException {
+        return browsePage(client, encodedIndexName, paramsString, cursor);
+    }
+
+    /**
+     * Same as browsePage but returns the raw JSON answer
+     */
+    String browsePageRaw(String paramsString, String cursor) throws AlgoliaException {
+        return client.getRequestRaw(browsePath(encodedIndexName, paramsString, cursor), true);
+    }
+
+    private static String browsePath(String encodedIndexName, String paramsString, String cursor) {
+        StringBuilder path = new StringBuilder("/1/indexes/").append(encodedIndexName).append("/browse");
+        if (paramsString.length() > 0 || cursor != null) {
+            path.append('?').append(paramsString);
+        }
+        if (cursor != null) {
+            PercentEncoder.encode(path.append(paramsString.length() > 0 ? "&cursor=" : "cursor="), cursor);
+        }
+        return path.toString();
+    }
+
     /**
      * Browse all index content
      */
@@ -557,6 +797,26 @@ public class Index {
         return new IndexBrowser(client, encodedIndexName, params, cursor);
     }
 
+    /**
+     * Browse all index content, fetching the next pages in the background.
+     * The browser must be closed if it is not consumed until the end.
+     *
+     * @param readAhead the maximum number of pages queued in advance
+     */
+    public PrefetchingIndexBrowser browse(Query params, int readAhead) throws AlgoliaException {
+        return new PrefetchingIndexBrowser(this, params, null, readAhead);
+    }
+
+    /**
+     * Browse all index content starting from a cursor, fetching the next pages in the background.
+     * The browser must be closed if it is not consumed until the end.
+     *
+     * @param readAhead the maximum number of pages queued in advance
+     */
+    public PrefetchingIndexBrowser browseFrom(Query params, String cursor, int readAhead) throws AlgoliaException {
+        return new PrefetchingIndexBrowser(this, params, cursor, readAhead);
+    }
+
     @Deprecated
     public IndexBrowser browseFrow(Query params, String cursor) throws AlgoliaException {
         return browseFrom(params, cursor);
@@ -573,6 +833,16 @@ public class Index {
         return client.getRequest("/1/indexes/" + encodedIndexName + "/browse?page=" + page + "&hitsPerPage=" + hitsPerPage, false);
     }
 
+    /**
+     * Check once if a task is published, without waiting
+     *
+     * @param taskID the id of the task returned by server
+     */
+    boolean isTaskPublished(String taskID) throws AlgoliaException, JSONException {
+        JSONObject obj = client.getRequest("/1/indexes/" + encodedIndexName + "/task/" + PercentEncoder.encode(taskID), false);
+        return obj.getString("status").equals("published");
+    }
+
     /**
      * Wait the publication of a task on the server.
      * All server task are asynchronous and you can check with this method that the task is published.
@@ -583,20 +853,19 @@ public class Index {
     public void waitTask(String taskID, long timeToWait) throws AlgoliaException {
         try {
             while (true) {
-                JSONObject obj = client.getRequest("/1/indexes/" + encodedIndexName + "/task/" + URLEncoder.encode(taskID, "UTF-8"), false);
-                if (obj.getString("status").equals("published"))
+                if (isTaskPublished(taskID))
                     return;
                 try {
                     Thread.sleep(timeToWait);
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AlgoliaException("Interrupted while waiting for task " + taskID);
                 }
                 timeToWait *= 2;
                 timeToWait = timeToWait > MAX_TIME_MS_TO_WAIT ? MAX_TIME_MS_TO_WAIT : timeToWait;
             }
         } catch (JSONException e) {
             throw new AlgoliaException(e.getMessage());
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -827,128 +1096,10 @@ public class Index {
      * @param refinements       Map<String, List<String>> representing the current refinements
      *                          ex: { "my_facet1" => ["my_value1", "my_value2"], "my_disjunctive_facet1" => ["my_value1", "my_value2"] }
      * @throws AlgoliaException
+     * @see DisjunctiveFaceting to reuse the answers of the facets which are not modified between two searches
      */
     public JSONObject searchDisjunctiveFaceting(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements) throws AlgoliaException {
-        if (refinements == null) {
-            refinements = new HashMap<String, List<String>>();
-        }
-        HashMap<String, List<String>> disjunctiveRefinements = new HashMap<String, List<String>>();
-        for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
-            if (disjunctiveFacets.contains(elt.getKey())) {
-                disjunctiveRefinements.put(elt.getKey(), elt.getValue());
-            }
-        }
-
-        // build queries
-        List<IndexQuery> queries = new ArrayList<IndexQuery>();
-        // hits + regular facets query
-        StringBuilder filters = new StringBuilder();
-        boolean first_global = true;
-        for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
-            StringBuilder or = new StringBuilder();
-            or.append("(");
-            boolean first = true;
-            for (String val : elt.getValue()) {
-                if (disjunctiveRefinements.containsKey(elt.getKey())) {
-                    // disjunctive refinements are ORed
-                    if (!first) {
-                        or.append(',');
-                    }
-                    first = false;
-                    or.append(String.format("%s:%s", elt.getKey(), val));
-                } else {
-                    if (!first_global) {
-                        filters.append(',');
-                    }
-                    first_global = false;
-                    filters.append(String.format("%s:%s", elt.getKey(), val));
-                }
-            }
-            // Add or
-            if (disjunctiveRefinements.containsKey(elt.getKey())) {
-                or.append(')');
-                if (!first_global) {
-                    filters.append(',');
-                }
-                first_global = false;
-                filters.append(or.toString());
-            }
-        }
-
-        queries.add(new IndexQuery(this.indexName, new Query(query).setFacetFilters(filters.toString())));
-        // one query per disjunctive facet (use all refinements but the current one + hitsPerPage=1 + single facet
-        for (String disjunctiveFacet : disjunctiveFacets) {
-            filters = new StringBuilder();
-            first_global = true;
-            for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
-                if (disjunctiveFacet.equals(elt.getKey())) {
-                    continue;
-                }
-                StringBuilder or = new StringBuilder();
-                or.append("(");
-                boolean first = true;
-                for (String val : elt.getValue()) {
-                    if (disjunctiveRefinements.containsKey(elt.getKey())) {
-                        // disjunctive refinements are ORed
-                        if (!first) {
-                            or.append(',');
-                        }
-                        first = false;
-                        or.append(String.format("%s:%s", elt.getKey(), val));
-                    } else {
-                        if (!first_global) {
-                            filters.append(',');
-                        }
-                        first_global = false;
-                        filters.append(String.format("%s:%s", elt.getKey(), val));
-                    }
-                }
-                // Add or
-                if (disjunctiveRefinements.containsKey(elt.getKey())) {
-                    or.append(')');
-                    if (!first_global) {
-                        filters.append(',');
-                    }
-                    first_global = false;
-                    filters.append(or.toString());
-                }
-            }
-            List<String> facets = new ArrayList<String>();
-            facets.add(disjunctiveFacet);
-            queries.add(new IndexQuery(this.indexName, new Query(query).setHitsPerPage(0).enableAnalytics(false).setAttributesToRetrieve(new ArrayList<String>()).setAttributesToHighlight(new ArrayList<String>()).setAttributesToSnippet(new ArrayList<String>()).setFacets(facets).setFacetFilters(filters.toString())));
-        }
-        JSONObject answers = this.client.multipleQueries(queries);
-
-        // aggregate answers
-        // first answer stores the hits + regular facets
-        try {
-            JSONArray results = answers.getJSONArray("results");
-            JSONObject aggregatedAnswer = results.getJSONObject(0);
-            JSONObject disjunctiveFacetsJSON = new JSONObject();
-            for (int i = 1; i < results.length(); ++i) {
-                JSONObject facets = results.getJSONObject(i).getJSONObject("facets");
-                @SuppressWarnings("unchecked")
-                Iterator<String> keys = facets.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    // Add the facet to the disjunctive facet hash
-                    disjunctiveFacetsJSON.put(key, facets.getJSONObject(key));
-                    // concatenate missing refinements
-                    if (!disjunctiveRefinements.containsKey(key)) {
-                        continue;
-                    }
-                    for (String refine : disjunctiveRefinements.get(key)) {
-                        if (!disjunctiveFacetsJSON.getJSONObject(key).has(refine)) {
-                            disjunctiveFacetsJSON.getJSONObject(key).put(refine, 0);
-                        }
-                    }
-                }
-            }
-            aggregatedAnswer.put("disjunctiveFacets", disjunctiveFacetsJSON);
-            return aggregatedAnswer;
-        } catch (JSONException e) {
-            throw new Error(e);
-        }
+        return new DisjunctiveFaceting(this, query, disjunctiveFacets).search(refinements);
     }
 
     public JSONObject searchDisjunctiveFaceting(Query query, List<String> disjunctiveFacets) throws AlgoliaException {
@@ -0,0 +1,278 @@
+package com.algolia.search.saas;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Exports the records of an index as NDJSON (one JSON record per line).
+ * The hits are copied from the browse answers to the output without being decoded.
+ * <p>
+ * When exporting to a file, the output is gzip compressed, the settings of the index are saved in
+ * a "[file].settings.json" file, and the progress (cursor and size of the output) is saved every few pages
+ * in a "[file].checkpoint" file. If the export is interrupted, calling export again on the same file
+ * resumes it from the last checkpoint. The checkpoint is deleted when the export is complete.
+ */
+public class IndexExporter {
+    private final Index index;
+    private Query query = new Query();
+    private int checkpointInterval = 10;
+
+    public IndexExporter(Index index) {
+        this.index = index;
+    }
+
+    /**
+     * Set the browse parameters (for example the filters), later modifications of the query are ignored
+     */
+    public IndexExporter setQuery(Query query) {
+        this.query = new Query(query);
+        return this;
+    }
+
+    /**
+     * Set the number of pages exported between two checkpoints. Defaults to 10.
+     */
+    public IndexExporter setCheckpointInterval(int pages) {
+        if (pages <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be positive");
+        }
+        this.checkpointInterval = pages;
+        return this;
+    }
+
+    public static File getCheckpointFile(File file) {
+        return new File(file.getPath() + ".checkpoint");
+    }
+
+    public static File getSettingsFile(File file) {
+        return new File(file.getPath() + ".settings.json");
+    }
+
+    /**
+     * Write the records as NDJSON (not compressed) to out, which is flushed but not closed
+     *
+     * @return the number of exported records
+     */
+    public long export(OutputStream out) throws AlgoliaException, IOException {
+        String params = query.getQueryString();
+        LineWriter lines = new LineWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+        String cursor = null;
+        do {
+            cursor = nextPage(params, cursor, lines);
+        } while (cursor != null);
+        lines.writer.flush();
+        return lines.records;
+    }
+
+    /**
+     * Export the records in a gzip compressed NDJSON file, resuming the previous export if it was interrupted
+     *
+     * @return the number of exported records (including the ones exported before the resume)
+     */
+    public long export(File file) throws AlgoliaException, IOException {
+        String params = query.getQueryString();
+        File checkpointFile = getCheckpointFile(file);
+        String cursor = null;
+        long offset = 0;
+        long records = 0;
+        if (checkpointFile.exists() && file.exists()) {
+            try {
+                JSONObject checkpoint = new JSONObject(readFile(checkpointFile));
+                if (!params.equals(checkpoint.getString("params"))) {
+                    throw new AlgoliaException("The checkpoint " + checkpointFile + " was created with other browse parameters");
+                }
+                cursor = checkpoint.getString("cursor");
+                offset = checkpoint.getLong("offset");
+                records = checkpoint.getLong("records");
+            } catch (JSONException e) {
+                throw new AlgoliaException("Invalid checkpoint " + checkpointFile + ": " + e.getMessage());
+            }
+        }
+        if (cursor == null || !getSettingsFile(file).exists()) {
+            writeFile(getSettingsFile(file), index.getSettings().toString());
+        }
+
+        // drop what was written after the checkpoint, the output continues with a new gzip member
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(offset);
+        } finally {
+            truncated.close();
+        }
+        FileOutputStream fileOut = new FileOutputStream(file, true);
+        try {
+            CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(fileOut, 65536), offset);
+            int pages = 0;
+            do {
+                GZIPOutputStream gzip = new GZIPOutputStream(counting, 65536);
+                LineWriter lines = new LineWriter(new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8")));
+                lines.records = records;
+                do {
+                    cursor = nextPage(params, cursor, lines);
+                } while (cursor != null && ++pages % checkpointInterval != 0);
+                // close the gzip member (the counting stream does not close the file)
+                lines.writer.close();
+                counting.flush();
+                fileOut.getFD().sync();
+                records = lines.records;
+                if (cursor != null) {
+                    writeCheckpoint(checkpointFile, params, cursor, counting.count, records);
+                }
+            } while (cursor != null);
+        } finally {
+            fileOut.close();
+        }
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            throw new IOException("Cannot delete " + checkpointFile);
+        }
+        return records;
+    }
+
+    /**
+     * @return the cursor of the next page, null if it was the last one
+     */
+    private String nextPage(String params, String cursor, LineWriter lines) throws AlgoliaException, IOException {
+        String next = JsonScanner.scanBrowseAnswer(index.browsePageRaw(params, cursor), lines);
+        return next == null || next.length() == 0 ? null : next;
+    }
+
+    private static void writeCheckpoint(File checkpointFile, String params, String cursor, long offset, long records) throws IOException, AlgoliaException {
+        JSONObject checkpoint = new JSONObject();
+        try {
+            checkpoint.put("params", params);
+            checkpoint.put("cursor", cursor);
+            checkpoint.put("offset", offset);
+            checkpoint.put("records", records);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        writeFile(tmp, checkpoint.toString());
+        if (!tmp.renameTo(checkpointFile)) {
+            // the rename does not replace an existing file on some platforms
+            if (!checkpointFile.delete() || !tmp.renameTo(checkpointFile)) {
+                throw new IOException("Cannot write " + checkpointFile);
+            }
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes each hit on its own line
+     */
+    private static class LineWriter implements JsonScanner.ElementHandler {
+        final Writer writer;
+        long records;
+
+        LineWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void onElement(String json, int start, int end) throws IOException {
+            // line breaks can only be whitespace between tokens, they are removed to keep one record per line
+            int from = start;
+            for (int i = start; i < end; ++i) {
+                char c = json.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    writer.write(json, from, i - from);
+                    from = i + 1;
+                }
+            }
+            writer.write(json, from, end - from);
+            writer.write('\n');
+            ++records;
+        }
+    }
+
+    /**
+     * Counts the written bytes, closing it only flushes the underlying stream
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
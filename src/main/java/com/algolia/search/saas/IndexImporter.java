@@ -0,0 +1,341 @@
+package com.algolia.search.saas;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Imports NDJSON records (one JSON object per line, like the output of IndexExporter) in an index.
+ * The input can be gzip compressed, it is detected automatically.
+ * <p>
+ * Each record must have an objectID: it is sent with the updateObject action, like saveObjects, so an existing
+ * record with the same objectID is replaced.
+ * <p>
+ * The lines are copied as is in the batch bodies, only the first character of each record is checked, so
+ * invalid records are reported by the API. The batches are sent in parallel and the importer waits once
+ * for the last task at the end.
+ */
+public class IndexImporter {
+    private static final byte[] PREFIX = ascii("{\"requests\":[");
+    private static final byte[] ACTION = ascii("{\"action\":\"updateObject\",\"body\":");
+    private static final byte[] SUFFIX = ascii("]}");
+
+    private final Index index;
+    private int batchSize = 1000;
+    private int maxBatchBytes = 5 * 1024 * 1024;
+    private int parallelism = 4;
+    private boolean waitForTasks = true;
+
+    public IndexImporter(Index index) {
+        this.index = index;
+    }
+
+    /**
+     * Set the maximum number of records per batch. Defaults to 1000.
+     */
+    public IndexImporter setBatchSize(int records) {
+        if (records <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = records;
+        return this;
+    }
+
+    /**
+     * Set the maximum size in bytes of a batch body, a record bigger than this size is sent alone. Defaults to 5MB.
+     */
+    public IndexImporter setMaxBatchBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("maxBatchBytes must be positive");
+        }
+        this.maxBatchBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Set the number of batches sent at the same time. Defaults to 4.
+     */
+    public IndexImporter setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Set whether the import waits for the indexing of the records. Defaults to true.
+     * The batches appended to the write spool of the client are not waited.
+     */
+    public IndexImporter setWaitForTasks(boolean waitForTasks) {
+        this.waitForTasks = waitForTasks;
+        return this;
+    }
+
+    /**
+     * Import the records of a NDJSON file, gzip compressed or not
+     *
+     * @return the number of imported records
+     */
+    public long importFile(File file) throws AlgoliaException, IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return importStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Import the NDJSON records of a stream, gzip compressed or not. The stream is not closed.
+     *
+     * @return the number of imported records
+     */
+    public long importStream(InputStream in) throws AlgoliaException, IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] magic = new byte[2];
+        int length = 0;
+        int read;
+        while (length < 2 && (read = pushback.read(magic, length, 2 - length)) > 0) {
+            length += read;
+        }
+        pushback.unread(magic, 0, length);
+        boolean gzip = length == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+        LineReader reader = new LineReader(gzip ? new GZIPInputStream(pushback, 65536) : pushback);
+
+        final AtomicReference<AlgoliaException> error = new AtomicReference<AlgoliaException>();
+        final AtomicLong lastTaskID = new AtomicLong(-1);
+        // limits the memory used by the batches waiting to be sent
+        final Semaphore pending = new Semaphore(2 * parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("import"));
+        long records = 0;
+        try {
+            Batch batch = new Batch();
+            while (reader.next()) {
+                if (reader.buffer[reader.lineStart] != '{') {
+                    throw new AlgoliaException("Invalid record at line " + reader.lineNumber + ": not a JSON object");
+                }
+                int recordLength = ACTION.length + reader.lineEnd - reader.lineStart + 1;
+                if (batch.count > 0 && (batch.count >= batchSize || batch.size + 1 + recordLength + SUFFIX.length > maxBatchBytes)) {
+                    send(batch, executor, pending, error, lastTaskID);
+                    batch = new Batch();
+                }
+                if (batch.count > 0) {
+                    batch.append((byte) ',');
+                }
+                batch.append(ACTION, 0, ACTION.length);
+                batch.append(reader.buffer, reader.lineStart, reader.lineEnd - reader.lineStart);
+                batch.append((byte) '}');
+                ++batch.count;
+                ++records;
+            }
+            if (batch.count > 0) {
+                send(batch, executor, pending, error, lastTaskID);
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait for the last batches
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Interrupted while importing");
+        } finally {
+            executor.shutdownNow();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        // the tasks of an index are processed in order
+        if (waitForTasks && lastTaskID.get() >= 0) {
+            index.waitTask(String.valueOf(lastTaskID.get()));
+        }
+        return records;
+    }
+
+    private void send(Batch batch, ExecutorService executor, final Semaphore pending, final AtomicReference<AlgoliaException> error,
+                      final AtomicLong lastTaskID) throws AlgoliaException, InterruptedException {
+        batch.append(SUFFIX, 0, SUFFIX.length);
+        pending.acquire();
+        if (error.get() != null) {
+            pending.release();
+            throw error.get();
+        }
+        final ByteArrayEntity body = new ByteArrayEntity(batch.data, 0, batch.size, ContentType.APPLICATION_JSON);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject task = index.batch(body);
+                    long taskID = task.getLong("taskID");
+                    long last;
+                    while ((last = lastTaskID.get()) < taskID && !lastTaskID.compareAndSet(last, taskID)) {
+                        // retry
+                    }
+                } catch (WriteSpooledException e) {
+                    // the batch will be replayed by the write spool of the client, there is no task to wait for
+                } catch (AlgoliaException e) {
+                    error.compareAndSet(null, e);
+                } catch (JSONException e) {
+                    error.compareAndSet(null, new AlgoliaException(e.getMessage()));
+                } catch (RuntimeException e) {
+                    error.compareAndSet(null, new AlgoliaException(e.toString()));
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Growable batch body, starting with {"requests":[
+     */
+    private static class Batch {
+        byte[] data = new byte[65536];
+        int size;
+        int count;
+
+        Batch() {
+            append(PREFIX, 0, PREFIX.length);
+        }
+
+        void append(byte b) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = b;
+        }
+
+        void append(byte[] bytes, int offset, int length) {
+            if (size + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+            }
+            System.arraycopy(bytes, offset, data, size, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Splits the input in lines without decoding it, the current line is buffer[lineStart, lineEnd)
+     */
+    private static class LineReader {
+        private final InputStream in;
+        byte[] buffer = new byte[256 * 1024];
+        int lineStart;
+        int lineEnd;
+        long lineNumber;
+        // unread bytes are buffer[start, end), the bytes before scanned contain no line break
+        private int start;
+        private int scanned;
+        private int end;
+        private boolean eof;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Move to the next non blank line, the line is trimmed
+         *
+         * @return false at the end of the input
+         */
+        boolean next() throws IOException {
+            while (true) {
+                int newline = scanned;
+                while (newline < end && buffer[newline] != '\n') {
+                    ++newline;
+                }
+                scanned = newline;
+                if (newline == end) {
+                    if (!eof) {
+                        fill();
+                        continue;
+                    }
+                    if (start == end) {
+                        return false;
+                    }
+                }
+                ++lineNumber;
+                lineStart = start;
+                lineEnd = newline;
+                start = scanned = Math.min(newline + 1, end);
+                while (lineStart < lineEnd && isBlank(buffer[lineStart])) {
+                    ++lineStart;
+                }
+                while (lineEnd > lineStart && isBlank(buffer[lineEnd - 1])) {
+                    --lineEnd;
+                }
+                if (lineStart < lineEnd) {
+                    return true;
+                }
+            }
+        }
+
+        private static boolean isBlank(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+
+        private void fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scanned -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+            } else {
+                end += read;
+            }
+        }
+    }
+}
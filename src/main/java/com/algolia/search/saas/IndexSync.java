@@ -0,0 +1,568 @@
+package com.algolia.search.saas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Synchronizes an index with a source of records, sending only the records that changed since the previous sync
+ * and deleting the records missing from the source.
+ * <p>
+ * The 64-bit content hash of each record is kept in a local store, an open addressing table of primitive
+ * arrays with the objectIDs encoded in a single byte array, so a catalog of millions of records does not keep
+ * millions of objects on the heap. The store is written to a temporary file renamed over the previous one after
+ * each sync: the whole file is rewritten, with one sequential write, as the sync reads the whole source anyway
+ * and the rename keeps the previous store if the process stops while writing. The hash is computed on a canonical form of the record
+ * (attributes sorted by name), so the order of the attributes does not matter. A record whose batch failed
+ * keeps its previous hash, to be sent again by the next sync.
+ * <p>
+ * The first sync sends all the records. The store must only be used for one index, and the index must only
+ * be modified through the sync for the store to stay accurate.
+ */
+public class IndexSync {
+    private static final int MAGIC = 0x414c5332;
+
+    private final File storeFile;
+    private final HashStore store;
+    private BatchUploader uploader;
+
+    /**
+     * @param storeFile the file of the hash store, loaded if it exists
+     */
+    public IndexSync(Index index, File storeFile) throws IOException {
+        this.storeFile = storeFile;
+        this.store = storeFile.exists() ? load(storeFile) : new HashStore(1024);
+        this.uploader = new BatchUploader(index);
+    }
+
+    /**
+     * Set the uploader sending the modified records and the deletions, to tune its chunk size and parallelism
+     */
+    public IndexSync setUploader(BatchUploader uploader) {
+        this.uploader = uploader;
+        return this;
+    }
+
+    /**
+     * @return the number of records in the store
+     */
+    public int size() {
+        return store.size;
+    }
+
+    /**
+     * Send the new and modified records of the source, and delete the records that are not in the source anymore.
+     * The records must contain an objectID attribute, records without objectID are ignored.
+     */
+    public Result sync(final Iterator<JSONObject> records) throws AlgoliaException, IOException {
+        final long[] visited = new long[(store.capacity() + 63) / 64];
+        final List<String> changedIDs = new ArrayList<String>();
+        final long[][] changedHashes = {new long[1024]};
+        final long[] counts = new long[2];
+
+        // the uploader reads the records from the caller thread
+        Iterator<JSONObject> changed = new Iterator<JSONObject>() {
+            private JSONObject next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && records.hasNext()) {
+                    JSONObject record = records.next();
+                    String objectID = record.optString("objectID", null);
+                    if (objectID == null) {
+                        ++counts[1];
+                        continue;
+                    }
+                    long hash = contentHash(record);
+                    int slot = store.find(objectID);
+                    if (slot >= 0) {
+                        visited[slot >>> 6] |= 1L << slot;
+                        if (store.hashes[slot] == hash) {
+                            ++counts[0];
+                            continue;
+                        }
+                    }
+                    if (changedIDs.size() == changedHashes[0].length) {
+                        changedHashes[0] = Arrays.copyOf(changedHashes[0], changedHashes[0].length * 2);
+                    }
+                    changedHashes[0][changedIDs.size()] = hash;
+                    changedIDs.add(objectID);
+                    next = record;
+                }
+                return next != null;
+            }
+
+            @Override
+            public JSONObject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                JSONObject record = next;
+                next = null;
+                return record;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        BatchUploader.Result upserts = uploader.saveObjects(changed);
+
+        List<String> deletedIDs = new ArrayList<String>();
+        for (int slot = 0; slot < store.capacity(); ++slot) {
+            if (store.isUsed(slot) && (visited[slot >>> 6] & (1L << slot)) == 0) {
+                deletedIDs.add(store.objectID(slot));
+            }
+        }
+        BatchUploader.Result deletes = uploader.deleteObjects(deletedIDs);
+
+        // only the successful changes are recorded
+        FailedRanges failedUpserts = new FailedRanges(upserts.getErrors());
+        long upserted = 0;
+        for (int i = 0; i < changedIDs.size(); ++i) {
+            if (!failedUpserts.contains(i)) {
+                store.put(changedIDs.get(i), changedHashes[0][i]);
+                ++upserted;
+            }
+        }
+        FailedRanges failedDeletes = new FailedRanges(deletes.getErrors());
+        long deleted = 0;
+        for (int i = 0; i < deletedIDs.size(); ++i) {
+            if (!failedDeletes.contains(i)) {
+                store.remove(deletedIDs.get(i));
+                ++deleted;
+            }
+        }
+        save();
+        return new Result(counts[0], upserted, deleted, counts[1], upserts, deletes);
+    }
+
+    /**
+     * Hash of the canonical form of a record
+     */
+    static long contentHash(JSONObject record) {
+        Fingerprint.Builder builder = new Fingerprint.Builder();
+        putValue(builder, record);
+        return builder.build().getHigh();
+    }
+
+    private static void putValue(Fingerprint.Builder builder, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            String[] names = JSONObject.getNames(object);
+            if (names == null) {
+                names = new String[0];
+            }
+            Arrays.sort(names);
+            builder.putInt(1).putInt(names.length);
+            for (String name : names) {
+                builder.putString(name);
+                putValue(builder, object.opt(name));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            builder.putInt(2).putInt(array.length());
+            for (int i = 0; i < array.length(); ++i) {
+                putValue(builder, array.opt(i));
+            }
+        } else if (value instanceof String) {
+            builder.putInt(3).putString((String) value);
+        } else if (value instanceof Boolean) {
+            builder.putInt(4).putBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            builder.putInt(5).putLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            builder.putInt(6).putDouble(((Number) value).doubleValue());
+        } else {
+            builder.putInt(0);
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(storeFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(store.size);
+            for (int slot = 0; slot < store.capacity(); ++slot) {
+                if (store.isUsed(slot)) {
+                    out.writeLong(store.keys[slot]);
+                    out.writeLong(store.hashes[slot]);
+                    out.writeInt(store.lengths[slot]);
+                    out.write(store.arena, store.positions[slot] - 1, store.lengths[slot]);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(storeFile)) {
+            // the rename does not replace an existing file on some platforms
+            if (!storeFile.delete() || !tmp.renameTo(storeFile)) {
+                throw new IOException("Cannot write " + storeFile);
+            }
+        }
+    }
+
+    private static HashStore load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a sync store");
+            }
+            int count = in.readInt();
+            HashStore store = new HashStore(count);
+            for (int i = 0; i < count; ++i) {
+                long key = in.readLong();
+                long hash = in.readLong();
+                store.load(key, hash, in, in.readInt());
+            }
+            return store;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Positions of the objects of the failed chunks
+     */
+    private static class FailedRanges {
+        private final List<BatchUploader.ChunkError> errors;
+        private int current;
+
+        FailedRanges(List<BatchUploader.ChunkError> errors) {
+            this.errors = errors;
+        }
+
+        /**
+         * @param position increasing positions
+         */
+        boolean contains(long position) {
+            while (current < errors.size() && errors.get(current).getOffset() + errors.get(current).getSize() <= position) {
+                ++current;
+            }
+            return current < errors.size() && errors.get(current).getOffset() <= position;
+        }
+    }
+
+    /**
+     * Open addressing table (linear probing) from objectID to content hash. The objectIDs are kept as UTF-8 bytes
+     * in a single byte array, so the table only holds primitive arrays and no object per record. The 64-bit hash
+     * of the objectID is kept to compare the objectIDs only when their hashes are equal.
+     */
+    private static class HashStore {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        long[] keys;
+        long[] hashes;
+        // position + 1 of the objectID in the arena, 0 for an empty slot
+        int[] positions;
+        int[] lengths;
+        byte[] arena;
+        int arenaSize;
+        // bytes of the removed objectIDs still in the arena
+        int garbage;
+        int size;
+
+        HashStore(int expectedSize) {
+            int capacity = 16;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            keys = new long[capacity];
+            hashes = new long[capacity];
+            positions = new int[capacity];
+            lengths = new int[capacity];
+            arena = new byte[Math.max(1024, expectedSize * 16)];
+        }
+
+        private static long key(String objectID) {
+            return new Fingerprint.Builder().putString(objectID).build().getHigh();
+        }
+
+        private int slot(long key) {
+            return (int) (key ^ (key >>> 32)) & (keys.length - 1);
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        boolean isUsed(int slot) {
+            return positions[slot] != 0;
+        }
+
+        String objectID(int slot) {
+            return new String(arena, positions[slot] - 1, lengths[slot], UTF8);
+        }
+
+        private boolean sameObjectID(int slot, byte[] objectID) {
+            if (lengths[slot] != objectID.length) {
+                return false;
+            }
+            int position = positions[slot] - 1;
+            for (int i = 0; i < objectID.length; ++i) {
+                if (arena[position + i] != objectID[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the slot of the objectID, -1 if missing
+         */
+        int find(String objectID) {
+            return find(key(objectID), objectID.getBytes(UTF8));
+        }
+
+        private int find(long key, byte[] objectID) {
+            for (int slot = slot(key); positions[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+                if (keys[slot] == key && sameObjectID(slot, objectID)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        void put(String objectID, long hash) {
+            byte[] bytes = objectID.getBytes(UTF8);
+            long key = key(objectID);
+            int slot = find(key, bytes);
+            if (slot >= 0) {
+                hashes[slot] = hash;
+                return;
+            }
+            ensureArena(bytes.length);
+            System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+            insert(key, hash, bytes.length);
+        }
+
+        /**
+         * Add an objectID read from the store file, its bytes are read directly in the arena
+         */
+        void load(long key, long hash, DataInputStream in, int length) throws IOException {
+            ensureArena(length);
+            in.readFully(arena, arenaSize, length);
+            insert(key, hash, length);
+        }
+
+        /**
+         * Add the objectID written at the end of the arena
+         */
+        private void insert(long key, long hash, int length) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+            }
+            int slot = slot(key);
+            while (positions[slot] != 0) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keys[slot] = key;
+            hashes[slot] = hash;
+            positions[slot] = arenaSize + 1;
+            lengths[slot] = length;
+            arenaSize += length;
+            ++size;
+        }
+
+        void remove(String objectID) {
+            int slot = find(objectID);
+            if (slot < 0) {
+                return;
+            }
+            garbage += lengths[slot];
+            // backward shift deletion, to keep the probe sequences without tombstones
+            int mask = keys.length - 1;
+            int next = (slot + 1) & mask;
+            while (positions[next] != 0) {
+                int ideal = slot(keys[next]);
+                if (((next - ideal) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    hashes[slot] = hashes[next];
+                    positions[slot] = positions[next];
+                    lengths[slot] = lengths[next];
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+            positions[slot] = 0;
+            --size;
+        }
+
+        private void ensureArena(int length) {
+            if (arenaSize + length <= arena.length) {
+                return;
+            }
+            if (garbage > arenaSize / 2) {
+                compact();
+                if (arenaSize + length <= arena.length) {
+                    return;
+                }
+            }
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+        }
+
+        /**
+         * Drop the bytes of the removed objectIDs from the arena
+         */
+        private void compact() {
+            byte[] compacted = new byte[arena.length];
+            int used = 0;
+            for (int slot = 0; slot < keys.length; ++slot) {
+                if (positions[slot] != 0) {
+                    System.arraycopy(arena, positions[slot] - 1, compacted, used, lengths[slot]);
+                    positions[slot] = used + 1;
+                    used += lengths[slot];
+                }
+            }
+            arena = compacted;
+            arenaSize = used;
+            garbage = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldHashes = hashes;
+            int[] oldPositions = positions;
+            int[] oldLengths = lengths;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            hashes = new long[capacity];
+            positions = new int[capacity];
+            lengths = new int[capacity];
+            // the objectIDs stay in place in the arena
+            for (int old = 0; old < oldKeys.length; ++old) {
+                if (oldPositions[old] != 0) {
+                    int slot = slot(oldKeys[old]);
+                    while (positions[slot] != 0) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+                    keys[slot] = oldKeys[old];
+                    hashes[slot] = oldHashes[old];
+                    positions[slot] = oldPositions[old];
+                    lengths[slot] = oldLengths[old];
+                }
+            }
+        }
+    }
+
+    /**
+     * Outcome of a sync
+     */
+    public static class Result {
+        private final long unchangedCount;
+        private final long upsertedCount;
+        private final long deletedCount;
+        private final long invalidCount;
+        private final BatchUploader.Result upserts;
+        private final BatchUploader.Result deletes;
+
+        Result(long unchangedCount, long upsertedCount, long deletedCount, long invalidCount, BatchUploader.Result upserts, BatchUploader.Result deletes) {
+            this.unchangedCount = unchangedCount;
+            this.upsertedCount = upsertedCount;
+            this.deletedCount = deletedCount;
+            this.invalidCount = invalidCount;
+            this.upserts = upserts;
+            this.deletes = deletes;
+        }
+
+        /**
+         * @return the number of records identical to the previous sync, not sent
+         */
+        public long getUnchangedCount() {
+            return unchangedCount;
+        }
+
+        /**
+         * @return the number of new or modified records successfully sent
+         */
+        public long getUpsertedCount() {
+            return upsertedCount;
+        }
+
+        /**
+         * @return the number of records successfully deleted
+         */
+        public long getDeletedCount() {
+            return deletedCount;
+        }
+
+        /**
+         * @return the number of records ignored because they do not have an objectID
+         */
+        public long getInvalidCount() {
+            return invalidCount;
+        }
+
+        /**
+         * @return the chunks of new or modified records that could not be sent
+         */
+        public List<BatchUploader.ChunkError> getUpsertErrors() {
+            return upserts.getErrors();
+        }
+
+        /**
+         * @return the chunks of deletions that could not be sent
+         */
+        public List<BatchUploader.ChunkError> getDeleteErrors() {
+            return deletes.getErrors();
+        }
+
+        public boolean isSuccessful() {
+            return upserts.isSuccessful() && deletes.isSuccessful();
+        }
+
+        /**
+         * Wait for the indexing of the changes
+         */
+        public void waitTask() throws AlgoliaException {
+            // the deletions are sent after the updates
+            if (deletes.getTaskIDs().isEmpty()) {
+                upserts.waitTask();
+            } else {
+                deletes.waitTask();
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Minimal scanner of raw JSON answers, used to stream the elements of an array without decoding them
+ */
+final class JsonScanner {
+    /**
+     * Receives the raw text of an element, between start (inclusive) and end (exclusive)
+     */
+    interface ElementHandler {
+        void onElement(String json, int start, int end) throws IOException;
+    }
+
+    private final String json;
+    private int pos;
+
+    private JsonScanner(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Scan a browse answer, giving the raw text of each hit to the handler
+     *
+     * @return the cursor of the answer, null if there is no more page
+     */
+    static String scanBrowseAnswer(String json, ElementHandler hitHandler) throws AlgoliaException, IOException {
+        return new JsonScanner(json).scanBrowseAnswer(hitHandler);
+    }
+
+    private String scanBrowseAnswer(ElementHandler hitHandler) throws AlgoliaException, IOException {
+        String cursor = null;
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            return null;
+        }
+        while (true) {
+            skipWhitespace();
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if ("hits".equals(key) && peek() == '[') {
+                scanArray(hitHandler);
+            } else if ("cursor".equals(key) && peek() == '"') {
+                cursor = readString();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return cursor;
+            }
+            if (c != ',') {
+                throw error("',' or '}' expected");
+            }
+        }
+    }
+
+    private void scanArray(ElementHandler handler) throws AlgoliaException, IOException {
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            ++pos;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            int start = pos;
+            skipValue();
+            handler.onElement(json, start, pos);
+            skipWhitespace();
+            char c = next();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw error("',' or ']' expected");
+            }
+        }
+    }
+
+    private void skipValue() throws AlgoliaException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    ++depth;
+                } else if (c == '}' || c == ']') {
+                    --depth;
+                }
+                ++pos;
+            } while (depth > 0);
+        } else {
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                ++pos;
+            }
+            if (pos == start) {
+                throw error("value expected");
+            }
+        }
+    }
+
+    private void skipString() throws AlgoliaException {
+        expect('"');
+        while (true) {
+            char c = next();
+            if (c == '\\') {
+                next();
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private String readString() throws AlgoliaException {
+        expect('"');
+        StringBuilder builder = null;
+        int start = pos;
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return builder == null ? json.substring(start, pos - 1) : builder.toString();
+            }
+            if (c != '\\') {
+                if (builder != null) {
+                    builder.append(c);
+                }
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder().append(json, start, pos - 1);
+            }
+            c = next();
+            switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw error("invalid unicode escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    builder.append(c);
+                    break;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            ++pos;
+        }
+    }
+
+    private char peek() throws AlgoliaException {
+        if (pos >= json.length()) {
+            throw error("unexpected end");
+        }
+        return json.charAt(pos);
+    }
+
+    private char next() throws AlgoliaException {
+        char c = peek();
+        ++pos;
+        return c;
+    }
+
+    private void expect(char expected) throws AlgoliaException {
+        if (next() != expected) {
+            throw error("'" + expected + "' expected");
+        }
+    }
+
+    private AlgoliaException error(String message) {
+        return new AlgoliaException("JSON decode error:" + message + " at character " + pos);
+    }
+}
@@ -0,0 +1,321 @@
+package com.algolia.search.saas;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Browses a whole index with several workers, each one browsing a disjoint partition of the index
+ * (defined by a filter) with its own cursor.
+ * <p>
+ * The partitions must be disjoint and must cover all the records to export, see numericRangePartitions and
+ * facetPartitions to build them. The filters of the query are kept and ANDed with the filter of each partition.
+ * The first error stops all the workers.
+ */
+public class ParallelBrowser {
+    /**
+     * Receives the hits of a parallel browse
+     */
+    public interface HitSink {
+        /**
+         * Called concurrently by the workers: the implementation must be thread-safe
+         */
+        void onHit(JSONObject hit) throws AlgoliaException;
+    }
+
+    private static final Object END_OF_PARTITION = new Object();
+
+    private final Index index;
+    private final List<String> partitionParams;
+    private int parallelism = 4;
+    private int queueSize = 10000;
+
+    /**
+     * @param index      the index to browse
+     * @param query      the browse parameters, later modifications of the query are ignored
+     * @param partitions the filters defining the partitions (in the syntax of the filters parameter)
+     */
+    public ParallelBrowser(Index index, Query query, List<String> partitions) {
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+        this.index = index;
+        this.partitionParams = new ArrayList<String>(partitions.size());
+        for (String partition : partitions) {
+            String filters = query.filters == null ? partition : "(" + query.filters + ") AND " + partition;
+            partitionParams.add(new Query(query).setFilters(filters).getQueryString());
+        }
+    }
+
+    /**
+     * Set the number of partitions browsed concurrently. Defaults to 4.
+     */
+    public ParallelBrowser setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of hits buffered by the iterator when the workers are faster than the consumer.
+     * Defaults to 10000.
+     */
+    public ParallelBrowser setQueueSize(int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize must be positive");
+        }
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Split the values of an integer attribute between min and max (inclusive) in count contiguous ranges.
+     * The records whose value is outside of [min, max] or which do not have the attribute are not part of any partition.
+     */
+    public static List<String> numericRangePartitions(String attribute, long min, long max, int count) {
+        if (min > max || count <= 0) {
+            throw new IllegalArgumentException("Invalid partitioning: [" + min + ", " + max + "] in " + count);
+        }
+        // computed exactly, max - min can overflow a long
+        BigInteger span = BigInteger.valueOf(max).subtract(BigInteger.valueOf(min)).add(BigInteger.ONE);
+        List<String> partitions = new ArrayList<String>(count);
+        long lower = min;
+        for (int i = 1; i <= count; ++i) {
+            long upper = i == count ? max : span.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(count))
+                    .add(BigInteger.valueOf(min)).subtract(BigInteger.ONE).longValue();
+            if (upper >= lower) {
+                partitions.add(Filter.range(attribute, lower, upper).toString());
+                lower = upper + 1;
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * One partition per facet value, plus one partition for the records having none of these values.
+     * The partitions are only disjoint if the attribute has a single value per record: a record having
+     * several of the values is part of several partitions and is browsed several times.
+     */
+    public static List<String> facetPartitions(String attribute, List<String> values) {
+        List<String> partitions = new ArrayList<String>(values.size() + 1);
+        List<Filter> others = new ArrayList<Filter>(values.size());
+        for (String value : values) {
+            Filter filter = Filter.facet(attribute, value);
+            partitions.add(filter.toString());
+            others.add(Filter.not(filter));
+        }
+        if (!others.isEmpty()) {
+            partitions.add(Filter.and(others).toString());
+        }
+        return partitions;
+    }
+
+    /**
+     * Browse all the partitions, the hits are given to the sink by the worker threads.
+     * Returns when all the partitions are browsed.
+     */
+    public void browse(final HitSink sink) throws AlgoliaException {
+        final AtomicReference<AlgoliaException> error = new AtomicReference<AlgoliaException>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, partitionParams.size()), new DaemonThreadFactory("browse"));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(partitionParams.size());
+            for (final String params : partitionParams) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        browsePartition(params, sink, error);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error.compareAndSet(null, new AlgoliaException("Interrupted while browsing"));
+        } catch (ExecutionException e) {
+            error.compareAndSet(null, new AlgoliaException(e.getCause().getMessage()));
+        } finally {
+            executor.shutdownNow();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Browse all the partitions in the background, the hits of all the partitions being merged in the returned iterator.
+     * Like IndexBrowser, the iterator wraps errors in an IllegalArgumentException.
+     * The iterator must be closed if it is not consumed until the end.
+     */
+    public HitIterator iterator() {
+        return new HitIterator();
+    }
+
+    /**
+     * Iterator over the hits of all the partitions, fed by the workers through a bounded queue
+     */
+    public class HitIterator implements Iterator<JSONObject> {
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(queueSize);
+        private final AtomicReference<AlgoliaException> error = new AtomicReference<AlgoliaException>();
+        private final ExecutorService executor;
+        private int remainingPartitions = partitionParams.size();
+        private JSONObject nextHit;
+        private boolean finished;
+
+        HitIterator() {
+            executor = Executors.newFixedThreadPool(Math.min(parallelism, partitionParams.size()), new DaemonThreadFactory("browse"));
+            final HitSink sink = new HitSink() {
+                @Override
+                public void onHit(JSONObject hit) throws AlgoliaException {
+                    enqueue(hit);
+                }
+            };
+            for (final String params : partitionParams) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        browsePartition(params, sink, error);
+                        try {
+                            enqueue(END_OF_PARTITION);
+                        } catch (AlgoliaException e) {
+                            // stopped
+                        }
+                    }
+                });
+            }
+        }
+
+        private void enqueue(Object element) throws AlgoliaException {
+            try {
+                while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                    if (error.get() != null) {
+                        throw error.get();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AlgoliaException("Interrupted while browsing");
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextHit == null && remainingPartitions > 0) {
+                if (error.get() != null) {
+                    close();
+                    throw new IllegalArgumentException(error.get());
+                }
+                Object element;
+                try {
+                    element = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalArgumentException(new AlgoliaException("Interrupted while browsing"));
+                }
+                if (element == END_OF_PARTITION) {
+                    --remainingPartitions;
+                } else if (element != null) {
+                    nextHit = (JSONObject) element;
+                }
+            }
+            if (nextHit == null && !finished) {
+                // a failing partition also ends with END_OF_PARTITION, it may be the last one
+                if (error.get() != null) {
+                    close();
+                    throw new IllegalArgumentException(error.get());
+                }
+                finished = true;
+                executor.shutdown();
+            }
+            return nextHit != null;
+        }
+
+        @Override
+        public JSONObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            JSONObject hit = nextHit;
+            nextHit = null;
+            return hit;
+        }
+
+        @Override
+        public void remove() {
+            throw new IllegalStateException("Cannot remove while browsing");
+        }
+
+        /**
+         * Stop the workers
+         */
+        public void close() {
+            error.compareAndSet(null, new AlgoliaException("Browse closed"));
+            executor.shutdownNow();
+            queue.clear();
+        }
+    }
+
+    private void browsePartition(String params, HitSink sink, AtomicReference<AlgoliaException> error) {
+        try {
+            String cursor = null;
+            do {
+                JSONObject page = index.browsePage(params, cursor);
+                JSONArray hits = page.getJSONArray("hits");
+                for (int i = 0; i < hits.length(); ++i) {
+                    if (error.get() != null) {
+                        return;
+                    }
+                    sink.onHit(hits.getJSONObject(i));
+                }
+                cursor = page.optString("cursor", null);
+            } while (cursor != null && cursor.length() > 0 && error.get() == null);
+        } catch (AlgoliaException e) {
+            error.compareAndSet(null, e);
+        } catch (JSONException e) {
+            error.compareAndSet(null, new AlgoliaException(e.getMessage()));
+        } catch (RuntimeException e) {
+            error.compareAndSet(null, new AlgoliaException(e.getMessage()));
+        }
+    }
+}
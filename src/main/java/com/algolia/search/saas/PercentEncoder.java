@@ -0,0 +1,112 @@
+package com.algolia.search.saas;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * UTF-8 form encoder producing exactly the same output as URLEncoder.encode(value, "UTF-8"),
+ * without charset lookup and writing directly in the destination builder.
+ */
+final class PercentEncoder {
+    private static final boolean[] UNRESERVED = new boolean[128];
+    private static final String[] ESCAPED = new String[128];
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    static {
+        for (char c = 'a'; c <= 'z'; ++c) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; ++c) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; ++c) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = UNRESERVED['-'] = UNRESERVED['*'] = UNRESERVED['_'] = true;
+        for (int c = 0; c < 128; ++c) {
+            ESCAPED[c] = c == ' ' ? "+" : new String(new char[]{'%', HEX[c >> 4], HEX[c & 0xF]});
+        }
+    }
+
+    private PercentEncoder() {
+    }
+
+    /**
+     * @return the encoded value (the value itself if no character needs to be encoded)
+     */
+    static String encode(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c >= 128 || !UNRESERVED[c]) {
+                StringBuilder builder = new StringBuilder(length + 16);
+                builder.append(value, 0, i);
+                encode(builder, value, i);
+                return builder.toString();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Append the encoded value to builder
+     */
+    static StringBuilder encode(StringBuilder builder, String value) {
+        encode(builder, value, 0);
+        return builder;
+    }
+
+    private static void encode(StringBuilder builder, String value, int start) {
+        int length = value.length();
+        for (int i = start; i < length; ++i) {
+            char c = value.charAt(i);
+            if (c < 128) {
+                if (UNRESERVED[c]) {
+                    builder.append(c);
+                } else {
+                    builder.append(ESCAPED[c]);
+                }
+            } else if (c < 0x800) {
+                appendByte(builder, 0xC0 | (c >> 6));
+                appendByte(builder, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(builder, 0xF0 | (codePoint >> 18));
+                appendByte(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // unpaired surrogate, replaced by '?' like String.getBytes does
+                builder.append(ESCAPED['?']);
+            } else {
+                appendByte(builder, 0xE0 | (c >> 12));
+                appendByte(builder, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(builder, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder builder, int b) {
+        builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
@@ -0,0 +1,168 @@
+package com.algolia.search.saas;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Iterates over an index using the cursor-based browse mechanism, like IndexBrowser, but requests the next pages
+ * in a background thread as soon as their cursor is known, so that the processing of the hits overlaps the network.
+ * At most readAhead pages are queued in advance, plus the page the background thread is waiting to queue,
+ * so up to readAhead + 1 pages are kept in memory.
+ * <p>
+ * The browser must be closed if it is not consumed until the end: otherwise the background thread stays
+ * blocked with the pages it fetched.
+ */
+public class PrefetchingIndexBrowser implements Iterator<JSONObject>, Closeable {
+    private final Index index;
+    private final String paramsString;
+    private final BlockingQueue<Object> pages;
+    private final Thread fetcher;
+    private JSONObject answer;
+    private JSONArray hits;
+    private int pos;
+
+    PrefetchingIndexBrowser(Index index, Query params, String startingCursor, int readAhead) throws AlgoliaException {
+        if (readAhead <= 0) {
+            throw new IllegalArgumentException("readAhead must be positive");
+        }
+        this.index = index;
+        this.paramsString = params.getQueryString();
+        this.pages = new ArrayBlockingQueue<Object>(readAhead);
+        setAnswer(index.browsePage(paramsString, startingCursor));
+
+        final String cursor = getCursor();
+        fetcher = new DaemonThreadFactory("prefetch").newThread(new Runnable() {
+            @Override
+            public void run() {
+                fetch(cursor);
+            }
+        });
+        fetcher.start();
+    }
+
+    private void fetch(String cursor) {
+        try {
+            while (cursor != null && cursor.length() > 0) {
+                Object page;
+                try {
+                    page = index.browsePage(paramsString, cursor);
+                    cursor = ((JSONObject) page).optString("cursor", null);
+                } catch (AlgoliaException e) {
+                    page = e;
+                    cursor = null;
+                } catch (RuntimeException e) {
+                    // the consumer must not wait for a page that will never come
+                    page = new AlgoliaException(e.toString());
+                    cursor = null;
+                }
+                pages.put(page);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Error e) {
+            // the consumer must not wait for a page that will never come
+            AlgoliaException error = new AlgoliaException(e.toString());
+            if (!pages.offer(error)) {
+                pages.clear();
+                pages.offer(error);
+            }
+            throw e;
+        }
+    }
+
+    private void setAnswer(JSONObject answer) throws AlgoliaException {
+        try {
+            this.hits = answer.getJSONArray("hits");
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+        this.answer = answer;
+        this.pos = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pos >= hits.length()) {
+            String cursor = getCursor();
+            if (cursor == null || cursor.length() == 0) {
+                return false;
+            }
+            try {
+                Object page = pages.take();
+                if (page instanceof AlgoliaException) {
+                    throw (AlgoliaException) page;
+                }
+                setAnswer((JSONObject) page);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalArgumentException(new AlgoliaException("Interrupted while browsing"));
+            } catch (AlgoliaException e) {
+                close();
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public JSONObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return hits.getJSONObject(pos++);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cursor of the page being consumed, to resume the browse after this page
+     */
+    public String getCursor() {
+        return answer.optString("cursor", null);
+    }
+
+    @Override
+    public void remove() {
+        throw new IllegalStateException("Cannot remove while browsing");
+    }
+
+    /**
+     * Stop the background requests, required if the browser is not consumed until the end
+     */
+    @Override
+    public void close() {
+        fetcher.interrupt();
+    }
+}
@@ -1,7 +1,5 @@
 package com.algolia.search.saas;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -78,6 +76,7 @@ public class Query {
         TYPO_NOTSET
     }
 
+    // the encoded parameters are memoized, a subclass writing these fields directly must call invalidate()
     protected List<String> attributes;
     protected List<String> attributesToHighlight;
     protected List<String> attributesToSnippet;
@@ -120,6 +119,18 @@ public class Query {
     protected Boolean removeStopWords;
     protected String userToken;
     protected String referers;
+    // shapes of the geo builders, only used when the encoded insideBoundingBox/insidePolygon above are not set
+    private GeoBoundingBoxes boundingBoxes;
+    private List<GeoPolygon> insidePolygons;
+    // polygon extended by addInsidePolygon(float, float)
+    private GeoPolygon pointsPolygon;
+    // copy of the list given to setFacets, used to compute an order-independent fingerprint
+    private List<String> facetsList;
+    // encoded parameters and fingerprint, cleared by every setter and rebuilt if one of the lists was modified in place
+    private String queryString;
+    private List<List<String>> queryStringLists;
+    private Fingerprint fingerprint;
+    private List<List<String>> fingerprintLists;
 
     public Query(String query) {
         minWordSizeForApprox1 = null;
@@ -178,6 +189,19 @@ public class Query {
         numerics = other.numerics;
         insideBoundingBox = other.insideBoundingBox;
         insidePolygon = other.insidePolygon;
+        if (other.boundingBoxes != null) {
+            boundingBoxes = new GeoBoundingBoxes(other.boundingBoxes);
+        }
+        if (other.insidePolygons != null) {
+            insidePolygons = new ArrayList<GeoPolygon>(other.insidePolygons.size());
+            for (GeoPolygon polygon : other.insidePolygons) {
+                GeoPolygon copy = new GeoPolygon(polygon);
+                if (polygon == other.pointsPolygon) {
+                    pointsPolygon = copy;
+                }
+                insidePolygons.add(copy);
+            }
+        }
         aroundRadius = other.aroundRadius;
         aroundPrecision = other.aroundPrecision;
         aroundLatLong = other.aroundLatLong;
@@ -199,6 +223,14 @@ public class Query {
         removeWordsIfNoResult = other.removeWordsIfNoResult;
         referers = other.referers;
         userToken = other.userToken;
+        if (other.facetsList != null) {
+            facetsList = new ArrayList<String>(other.facetsList);
+        }
+        // the snapshots are never modified and can be shared
+        queryString = other.queryString;
+        queryStringLists = other.queryStringLists;
+        fingerprint = other.fingerprint;
+        fingerprintLists = other.fingerprintLists;
     }
 
     /**
@@ -206,6 +238,7 @@ public class Query {
      */
     public Query removeWordsIfNoResult(RemoveWordsType type) {
         this.removeWordsIfNoResult = type;
+        invalidate();
         return this;
     }
 
@@ -219,6 +252,7 @@ public class Query {
      */
     public Query restrictSearchableAttributes(String attributes) {
         this.restrictSearchableAttributes = attributes;
+        invalidate();
         return this;
     }
 
@@ -227,6 +261,7 @@ public class Query {
      */
     public Query setQueryType(QueryType type) {
         this.queryType = type;
+        invalidate();
         return this;
     }
 
@@ -235,6 +270,7 @@ public class Query {
      */
     public Query setQueryString(String query) {
         this.query = query;
+        invalidate();
         return this;
     }
 
@@ -243,6 +279,7 @@ public class Query {
      */
     public Query setSimilarQueryString(String query) {
         this.similarQuery = query;
+        invalidate();
         return this;
     }
 
@@ -252,6 +289,7 @@ public class Query {
      */
     public Query setAttributesToRetrieve(List<String> attributes) {
         this.attributes = attributes;
+        invalidate();
         return this;
     }
 
@@ -261,6 +299,7 @@ public class Query {
      */
     public Query setAttributesToHighlight(List<String> attributes) {
         this.attributesToHighlight = attributes;
+        invalidate();
         return this;
     }
 
@@ -269,6 +308,7 @@ public class Query {
      */
     public Query disableTypoToleranceOnAttributes(List<String> attributes) {
         this.noTypoToleranceOn = attributes;
+        invalidate();
         return this;
     }
 
@@ -279,6 +319,7 @@ public class Query {
      */
     public Query setAttributesToSnippet(List<String> attributes) {
         this.attributesToSnippet = attributes;
+        invalidate();
         return this;
     }
 
@@ -294,6 +335,7 @@ public class Query {
      */
     public Query enableDistinct(boolean distinct) {
         this.distinct = distinct ? 1 : 0;
+        invalidate();
         return this;
     }
 
@@ -307,6 +349,7 @@ public class Query {
      */
     public Query enableDistinct(int nbHitsToKeep) {
         this.distinct = nbHitsToKeep;
+        invalidate();
         return this;
     }
 
@@ -316,6 +359,7 @@ public class Query {
      */
     public Query enableAnalytics(boolean enabled) {
         this.analytics = enabled;
+        invalidate();
         return this;
     }
 
@@ -324,6 +368,7 @@ public class Query {
      */
     public Query setAnalyticsTags(String analyticsTags) {
         this.analyticsTags = analyticsTags;
+        invalidate();
         return this;
     }
 
@@ -333,6 +378,7 @@ public class Query {
      */
     public Query enableSynonyms(boolean enabled) {
         this.synonyms = enabled;
+        invalidate();
         return this;
     }
 
@@ -343,6 +389,7 @@ public class Query {
      */
     public Query enableReplaceSynonymsInHighlight(boolean enabled) {
         this.replaceSynonyms = enabled;
+        invalidate();
         return this;
     }
 
@@ -355,6 +402,7 @@ public class Query {
         } else {
             this.typoTolerance = TypoTolerance.TYPO_FALSE;
         }
+        invalidate();
         return this;
     }
 
@@ -363,6 +411,7 @@ public class Query {
      */
     public Query setTypoTolerance(TypoTolerance typoTolerance) {
         this.typoTolerance = typoTolerance;
+        invalidate();
         return this;
     }
 
@@ -372,6 +421,7 @@ public class Query {
      */
     public Query setMinWordSizeToAllowOneTypo(int nbChars) {
         minWordSizeForApprox1 = nbChars;
+        invalidate();
         return this;
     }
 
@@ -388,6 +438,7 @@ public class Query {
      */
     public Query setMinProximity(int value) {
         this.minProximity = value;
+        invalidate();
         return this;
     }
 
@@ -398,6 +449,7 @@ public class Query {
     public Query setHighlightingTags(String preTag, String postTag) {
         this.highlightPreTag = preTag;
         this.highlightPostTag = postTag;
+        invalidate();
         return this;
     }
 
@@ -407,6 +459,7 @@ public class Query {
      */
     public Query setMinWordSizeToAllowTwoTypos(int nbChars) {
         minWordSizeForApprox2 = nbChars;
+        invalidate();
         return this;
     }
 
@@ -416,6 +469,7 @@ public class Query {
      */
     public Query enableTyposOnNumericTokens(boolean enabled) {
         this.allowTyposOnNumericTokens = enabled;
+        invalidate();
         return this;
     }
 
@@ -425,6 +479,7 @@ public class Query {
      */
     public Query getRankingInfo(boolean enabled) {
         getRankingInfo = enabled;
+        invalidate();
         return this;
     }
 
@@ -434,6 +489,7 @@ public class Query {
      */
     public Query ignorePlural(boolean enabled) {
         ignorePlural = enabled;
+        invalidate();
         return this;
     }
 
@@ -442,6 +498,7 @@ public class Query {
      */
     public Query setPage(int page) {
         this.page = page;
+        invalidate();
         return this;
     }
 
@@ -450,6 +507,7 @@ public class Query {
      */
     public Query setHitsPerPage(int nbHitsPerPage) {
         this.hitsPerPage = nbHitsPerPage;
+        invalidate();
         return this;
     }
 
@@ -468,6 +526,7 @@ public class Query {
      */
     public Query setUserToken(String userToken) {
         this.userToken = userToken;
+        invalidate();
         return this;
     }
 
@@ -476,6 +535,7 @@ public class Query {
      */
     public Query setReferers(String referers) {
         this.referers = referers;
+        invalidate();
         return this;
     }
 
@@ -484,6 +544,7 @@ public class Query {
      */
     public Query aroundLatitudeLongitude(float latitude, float longitude) {
         aroundLatLong = "aroundLatLng=" + latitude + "," + longitude;
+        invalidate();
         return this;
     }
 
@@ -498,6 +559,7 @@ public class Query {
     public Query aroundLatitudeLongitude(float latitude, float longitude, int radius) {
         aroundLatLong = "aroundLatLng=" + latitude + "," + longitude;
         aroundRadius = radius;
+        invalidate();
         return this;
     }
 
@@ -506,6 +568,7 @@ public class Query {
      */
     public Query setAroundRadius(int radius) {
         aroundRadius = radius;
+        invalidate();
         return this;
     }
 
@@ -514,6 +577,7 @@ public class Query {
      */
     public Query setAroundPrecision(int precision) {
         aroundPrecision = precision;
+        invalidate();
         return this;
     }
 
@@ -532,6 +596,7 @@ public class Query {
         aroundLatLong = "aroundLatLng=" + latitude + "," + longitude;
         aroundRadius = radius;
         aroundPrecision = precision;
+        invalidate();
         return this;
     }
 
@@ -541,6 +606,7 @@ public class Query {
      */
     public Query aroundLatitudeLongitudeViaIP(boolean enabled) {
         aroundLatLongViaIP = enabled;
+        invalidate();
         return this;
     }
 
@@ -553,6 +619,7 @@ public class Query {
     public Query aroundLatitudeLongitudeViaIP(boolean enabled, int radius) {
         aroundRadius = radius;
         aroundLatLongViaIP = enabled;
+        invalidate();
         return this;
     }
 
@@ -572,6 +639,7 @@ public class Query {
         aroundRadius = radius;
         aroundPrecision = precision;
         aroundLatLongViaIP = enabled;
+        invalidate();
         return this;
     }
 
@@ -583,25 +651,64 @@ public class Query {
      * You can use several bounding boxes (OR) by calling this method several times.
      */
     public Query insideBoundingBox(float latitudeP1, float longitudeP1, float latitudeP2, float longitudeP2) {
-        if (insideBoundingBox == null) {
-            insideBoundingBox = "insideBoundingBox=" + latitudeP1 + "," + longitudeP1 + "," + latitudeP2 + "," + longitudeP2;
-        } else if (insideBoundingBox.length() > 18) {
-            insideBoundingBox += "," + latitudeP1 + "," + longitudeP1 + "," + latitudeP2 + "," + longitudeP2;
+        if (boundingBoxes == null) {
+            boundingBoxes = new GeoBoundingBoxes();
         }
+        boundingBoxes.add(latitudeP1, longitudeP1, latitudeP2, longitudeP2);
+        insideBoundingBox = null;
+        invalidate();
+        return this;
+    }
+
+    /**
+     * Search for entries inside one of the given rectangles, replacing the bounding boxes previously set.
+     * The boxes are copied: later modifications of boxes are ignored.
+     *
+     * @param boxes the rectangles, null to remove the bounding box restriction
+     */
+    public Query setInsideBoundingBox(GeoBoundingBoxes boxes) {
+        boundingBoxes = boxes == null ? null : new GeoBoundingBoxes(boxes);
+        insideBoundingBox = null;
+        invalidate();
         return this;
     }
 
     /**
      * Add a point to the polygon of geo-search (requires a minimum of three points to define a valid polygon)
+     * The points are added to the polygon started by the first call to this method: a polygon added with
+     * addInsidePolygon(GeoPolygon) is never extended, the next point starts a new polygon.
      * At indexing, you should specify geoloc of an object with the _geoloc attribute (in the form "_geoloc":{"lat":48.853409, "lng":2.348800} or
      * "_geoloc":[{"lat":48.853409, "lng":2.348800},{"lat":48.547456, "lng":2.972075}] if you have several geo-locations in your record).
      */
     public Query addInsidePolygon(float latitude, float longitude) {
-        if (insidePolygon == null) {
-            insidePolygon = "insidePolygon=" + latitude + "," + longitude;
-        } else if (insidePolygon.length() > 14) {
-            insidePolygon += "," + latitude + "," + longitude;
+        if (pointsPolygon == null) {
+            if (insidePolygons == null) {
+                insidePolygons = new ArrayList<GeoPolygon>(1);
+            }
+            pointsPolygon = new GeoPolygon();
+            insidePolygons.add(pointsPolygon);
         }
+        pointsPolygon.add(latitude, longitude);
+        insidePolygon = null;
+        invalidate();
+        return this;
+    }
+
+    /**
+     * Add a polygon to the geo-search: objects inside at least one of the polygons match.
+     * The polygon is copied: later modifications of polygon are ignored.
+     *
+     * @throws IllegalArgumentException if the polygon has less than three points
+     */
+    public Query addInsidePolygon(GeoPolygon polygon) {
+        polygon.checkValid();
+        if (insidePolygons == null) {
+            insidePolygons = new ArrayList<GeoPolygon>(1);
+        }
+        insidePolygons.add(new GeoPolygon(polygon));
+        pointsPolygon = null;
+        insidePolygon = null;
+        invalidate();
         return this;
     }
 
@@ -613,6 +720,7 @@ public class Query {
      */
     public Query setOptionalWords(String words) {
         this.optionalWords = words;
+        invalidate();
         return this;
     }
 
@@ -629,6 +737,7 @@ public class Query {
             builder.append(",");
         }
         this.optionalWords = builder.toString();
+        invalidate();
         return this;
     }
 
@@ -646,9 +755,17 @@ public class Query {
      */
     public Query setFilters(String filters) {
         this.filters = filters;
+        invalidate();
         return this;
     }
 
+    /**
+     * Filter the query with a typed filter expression, replacing the filters set by setFilters (null to remove the filters)
+     */
+    public Query setFilter(Filter filter) {
+        return setFilters(filter == null ? null : filter.toString());
+    }
+
     /**
      * Filter the query by a list of facets. Each filter is encoded as
      * `attributeName:value`.
@@ -659,6 +776,7 @@ public class Query {
             obj.put(facet);
         }
         this.facetFilters = obj.toString();
+        invalidate();
         return this;
     }
 
@@ -672,6 +790,7 @@ public class Query {
      */
     public Query setFacetFilters(String facetFilters) {
         this.facetFilters = facetFilters;
+        invalidate();
         return this;
     }
 
@@ -687,6 +806,8 @@ public class Query {
             obj.put(facet);
         }
         this.facets = obj.toString();
+        this.facetsList = new ArrayList<String>(facets);
+        invalidate();
         return this;
     }
 
@@ -695,6 +816,7 @@ public class Query {
      */
     public Query setMaxNumberOfFacets(int n) {
         this.maxNumberOfFacets = n;
+        invalidate();
         return this;
     }
 
@@ -707,6 +829,7 @@ public class Query {
      */
     public Query setTagFilters(String tags) {
         this.tags = tags;
+        invalidate();
         return this;
     }
 
@@ -719,6 +842,7 @@ public class Query {
      */
     public Query setNumericFilters(String numerics) {
         this.numerics = numerics;
+        invalidate();
         return this;
     }
 
@@ -739,6 +863,7 @@ public class Query {
             first = false;
         }
         this.numerics = builder.toString();
+        invalidate();
         return this;
     }
 
@@ -747,6 +872,7 @@ public class Query {
      */
     public Query enableRemoveStopWords(boolean removeStopWords) {
         this.removeStopWords = removeStopWords;
+        invalidate();
         return this;
     }
 
@@ -762,318 +888,491 @@ public class Query {
      */
     public Query enableAvancedSyntax(boolean advancedSyntax) {
         this.advancedSyntax = advancedSyntax;
+        invalidate();
         return this;
     }
 
+    /**
+     * Drop the memoized query string and fingerprint. The setters call it, a subclass must call it
+     * after writing one of the protected parameter fields directly.
+     */
+    protected void invalidate() {
+        queryString = null;
+        fingerprint = null;
+    }
+
+    /**
+     * Compute a canonical fingerprint of the parameters, without encoding them.
+     * Queries with equivalent parameters have the same fingerprint even if the parameters were set in a different order
+     * or if the attribute and facet lists are in a different order, which makes it a good key for caches and deduplication.
+     */
+    public Fingerprint fingerprint() {
+        Fingerprint cached = fingerprint;
+        if (cached != null && listsUnchanged(fingerprintLists)) {
+            return cached;
+        }
+        fingerprintLists = listsSnapshot();
+        cached = buildFingerprint(new Fingerprint.Builder()).build();
+        fingerprint = cached;
+        return cached;
+    }
+
+    /**
+     * Mix the parameters sent by getQueryString, each one preceded by its own tag
+     */
+    Fingerprint.Builder buildFingerprint(Fingerprint.Builder builder) {
+        if (attributes != null)
+            builder.putInt(1).putUnordered(attributes);
+        if (noTypoToleranceOn != null)
+            builder.putInt(2).putUnordered(noTypoToleranceOn);
+        if (attributesToHighlight != null)
+            builder.putInt(3).putUnordered(attributesToHighlight);
+        if (attributesToSnippet != null)
+            builder.putInt(4).putUnordered(attributesToSnippet);
+        if (typoTolerance != TypoTolerance.TYPO_NOTSET)
+            builder.putInt(5).putInt(typoTolerance.ordinal());
+        putBoolean(builder, 6, allowTyposOnNumericTokens);
+        putInteger(builder, 7, minWordSizeForApprox1);
+        putInteger(builder, 8, minWordSizeForApprox2);
+        if (removeWordsIfNoResult != RemoveWordsType.REMOVE_NOTSET)
+            builder.putInt(9).putInt(removeWordsIfNoResult.ordinal());
+        putBoolean(builder, 10, getRankingInfo);
+        putBoolean(builder, 11, ignorePlural);
+        putBoolean(builder, 12, analytics);
+        putString(builder, 13, analyticsTags);
+        putBoolean(builder, 14, synonyms);
+        putBoolean(builder, 15, replaceSynonyms);
+        putInteger(builder, 16, distinct);
+        putBoolean(builder, 17, removeStopWords);
+        putBoolean(builder, 18, advancedSyntax);
+        putInteger(builder, 19, page);
+        putInteger(builder, 20, minProximity);
+        if (highlightPreTag != null && highlightPostTag != null)
+            builder.putInt(21).putString(highlightPreTag).putString(highlightPostTag);
+        putInteger(builder, 22, hitsPerPage);
+        putString(builder, 23, tags);
+        putString(builder, 24, numerics);
+        if (insideBoundingBox != null) {
+            builder.putInt(43).putString(insideBoundingBox);
+        } else if (boundingBoxes != null) {
+            boundingBoxes.putTo(builder.putInt(25));
+        } else if (aroundLatLong != null) {
+            builder.putInt(26).putString(aroundLatLong);
+        } else if (insidePolygon != null) {
+            builder.putInt(44).putString(insidePolygon);
+        } else if (insidePolygons != null) {
+            builder.putInt(27).putInt(insidePolygons.size());
+            for (GeoPolygon polygon : insidePolygons) {
+                polygon.putTo(builder);
+            }
+        }
+        putBoolean(builder, 28, aroundLatLongViaIP);
+        if (aroundRadius > 0)
+            builder.putInt(29).putInt(aroundRadius);
+        if (aroundPrecision > 0)
+            builder.putInt(30).putInt(aroundPrecision);
+        putString(builder, 31, query);
+        putString(builder, 32, similarQuery);
+        if (facetsList != null) {
+            builder.putInt(33).putUnordered(facetsList);
+        } else {
+            putString(builder, 34, facets);
+        }
+        putString(builder, 35, filters);
+        putString(builder, 36, facetFilters);
+        putInteger(builder, 37, maxNumberOfFacets);
+        putString(builder, 38, optionalWords);
+        putString(builder, 39, restrictSearchableAttributes);
+        if (queryType != QueryType.PREFIX_NOTSET)
+            builder.putInt(40).putInt(queryType.ordinal());
+        putString(builder, 41, referers);
+        putString(builder, 42, userToken);
+        return builder;
+    }
+
+    private static void putString(Fingerprint.Builder builder, int tag, String value) {
+        if (value != null)
+            builder.putInt(tag).putString(value);
+    }
+
+    private static void putInteger(Fingerprint.Builder builder, int tag, Integer value) {
+        if (value != null)
+            builder.putInt(tag).putInt(value);
+    }
+
+    private static void putBoolean(Fingerprint.Builder builder, int tag, Boolean value) {
+        if (value != null)
+            builder.putInt(tag).putBoolean(value);
+    }
+
     protected String getQueryString() {
+        String cached = queryString;
+        if (cached != null && listsUnchanged(queryStringLists)) {
+            return cached;
+        }
+        queryStringLists = listsSnapshot();
+        cached = buildQueryString();
+        queryString = cached;
+        return cached;
+    }
+
+    /**
+     * The lists are not copied by the setters and can be modified by the caller after being set,
+     * so the cached values keep a copy of the lists they were built from
+     */
+    private List<List<String>> listsSnapshot() {
+        List<List<String>> snapshot = new ArrayList<List<String>>(4);
+        snapshot.add(copy(attributes));
+        snapshot.add(copy(noTypoToleranceOn));
+        snapshot.add(copy(attributesToHighlight));
+        snapshot.add(copy(attributesToSnippet));
+        return snapshot;
+    }
+
+    private boolean listsUnchanged(List<List<String>> snapshot) {
+        return snapshot != null && sameList(snapshot.get(0), attributes) && sameList(snapshot.get(1), noTypoToleranceOn)
+                && sameList(snapshot.get(2), attributesToHighlight) && sameList(snapshot.get(3), attributesToSnippet);
+    }
+
+    private static List<String> copy(List<String> list) {
+        return list == null ? null : new ArrayList<String>(list);
+    }
+
+    private static boolean sameList(List<String> snapshot, List<String> list) {
+        return snapshot == null ? list == null : snapshot.equals(list);
+    }
+
+    /**
+     * A single polygon is sent as a flat list of coordinates, several polygons as an (encoded) array of arrays
+     */
+    private void appendInsidePolygons(StringBuilder stringBuilder) {
+        if (insidePolygons.size() == 1) {
+            insidePolygons.get(0).appendTo(stringBuilder);
+            return;
+        }
+        StringBuilder polygons = new StringBuilder().append('[');
+        for (int i = 0; i < insidePolygons.size(); ++i) {
+            if (i > 0)
+                polygons.append(',');
+            insidePolygons.get(i).appendTo(polygons.append('[')).append(']');
+        }
+        PercentEncoder.encode(stringBuilder, polygons.append(']').toString());
+    }
+
+    private String buildQueryString() {
         StringBuilder stringBuilder = new StringBuilder();
 
-        try {
-            if (attributes != null) {
-                stringBuilder.append("attributes=");
-                boolean first = true;
-                for (String attr : this.attributes) {
-                    if (!first)
-                        stringBuilder.append(",");
-                    stringBuilder.append(URLEncoder.encode(attr, "UTF-8"));
-                    first = false;
-                }
+        if (attributes != null) {
+            stringBuilder.append("attributes=");
+            boolean first = true;
+            for (String attr : this.attributes) {
+                if (!first)
+                    stringBuilder.append(",");
+                PercentEncoder.encode(stringBuilder, attr);
+                first = false;
             }
-            if (noTypoToleranceOn != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("disableTypoToleranceOnAttributes=");
-                boolean first = true;
-                for (String attr : this.noTypoToleranceOn) {
-                    if (!first)
-                        stringBuilder.append(',');
-                    stringBuilder.append(URLEncoder.encode(attr, "UTF-8"));
-                    first = false;
-                }
-            }
-            if (attributesToHighlight != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("attributesToHighlight=");
-                boolean first = true;
-                for (String attr : this.attributesToHighlight) {
-                    if (!first)
-                        stringBuilder.append(',');
-                    stringBuilder.append(URLEncoder.encode(attr, "UTF-8"));
-                    first = false;
-                }
-            }
-            if (attributesToSnippet != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("attributesToSnippet=");
-                boolean first = true;
-                for (String attr : this.attributesToSnippet) {
-                    if (!first)
-                        stringBuilder.append(',');
-                    stringBuilder.append(URLEncoder.encode(attr, "UTF-8"));
-                    first = false;
-                }
-            }
-            if (typoTolerance != TypoTolerance.TYPO_NOTSET) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("typoTolerance=");
-                switch (typoTolerance) {
-                    case TYPO_FALSE:
-                        stringBuilder.append("false");
-                        break;
-                    case TYPO_MIN:
-                        stringBuilder.append("min");
-                        break;
-                    case TYPO_STRICT:
-                        stringBuilder.append("strict");
-                        break;
-                    case TYPO_TRUE:
-                        stringBuilder.append("true");
-                        break;
-                    case TYPO_NOTSET:
-                        throw new IllegalStateException("code not reachable");
-                }
-            }
-            if (allowTyposOnNumericTokens != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("allowTyposOnNumericTokens=").append(allowTyposOnNumericTokens ? '1' : '0');
+        }
+        if (noTypoToleranceOn != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("disableTypoToleranceOnAttributes=");
+            boolean first = true;
+            for (String attr : this.noTypoToleranceOn) {
+                if (!first)
+                    stringBuilder.append(',');
+                PercentEncoder.encode(stringBuilder, attr);
+                first = false;
             }
-            if (minWordSizeForApprox1 != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("minWordSizefor1Typo=");
-                stringBuilder.append(minWordSizeForApprox1);
+        }
+        if (attributesToHighlight != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("attributesToHighlight=");
+            boolean first = true;
+            for (String attr : this.attributesToHighlight) {
+                if (!first)
+                    stringBuilder.append(',');
+                PercentEncoder.encode(stringBuilder, attr);
+                first = false;
             }
-            if (minWordSizeForApprox2 != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("minWordSizefor2Typos=");
-                stringBuilder.append(minWordSizeForApprox2);
+        }
+        if (attributesToSnippet != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("attributesToSnippet=");
+            boolean first = true;
+            for (String attr : this.attributesToSnippet) {
+                if (!first)
+                    stringBuilder.append(',');
+                PercentEncoder.encode(stringBuilder, attr);
+                first = false;
             }
-            switch (removeWordsIfNoResult) {
-                case REMOVE_LAST_WORDS:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("removeWordsIfNoResult=LastWords");
-                    break;
-                case REMOVE_FIRST_WORDS:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("removeWordsIfNoResult=FirstWords");
+        }
+        if (typoTolerance != TypoTolerance.TYPO_NOTSET) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("typoTolerance=");
+            switch (typoTolerance) {
+                case TYPO_FALSE:
+                    stringBuilder.append("false");
                     break;
-                case REMOVE_ALLOPTIONAL:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("removeWordsIfNoResult=allOptional");
+                case TYPO_MIN:
+                    stringBuilder.append("min");
                     break;
-                case REMOVE_NONE:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("removeWordsIfNoResult=none");
+                case TYPO_STRICT:
+                    stringBuilder.append("strict");
                     break;
-                case REMOVE_NOTSET:
-                    // Nothing to do
+                case TYPO_TRUE:
+                    stringBuilder.append("true");
                     break;
+                case TYPO_NOTSET:
+                    throw new IllegalStateException("code not reachable");
             }
-            if (getRankingInfo != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("getRankingInfo=").append(getRankingInfo ? '1' : '0');
-            }
-            if (ignorePlural != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("ignorePlural=").append(ignorePlural ? '1' : '0');
-            }
-            if (analytics != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("analytics=").append(analytics ? '1' : '0');
-            }
-            if (analyticsTags != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("analyticsTags=" + analyticsTags);
-            }
-            if (synonyms != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("synonyms=").append(synonyms ? '1' : '0');
-            }
-            if (replaceSynonyms != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("replaceSynonymsInHighlight=").append(replaceSynonyms ? '1' : '0');
-            }
-            if (distinct != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("distinct=");
-                stringBuilder.append(distinct);
-            }
-            if (removeStopWords != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("removeStopWords=").append(removeStopWords ? '1' : '0');
-            }
-            if (advancedSyntax != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("advancedSyntax=").append(advancedSyntax ? '1' : '0');
-            }
-            if (page != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("page=");
-                stringBuilder.append(page);
-            }
-            if (minProximity != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("minProximity=");
-                stringBuilder.append(minProximity);
-            }
-            if (highlightPreTag != null && highlightPostTag != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("highlightPreTag=");
-                stringBuilder.append(highlightPreTag);
-                stringBuilder.append("&highlightPostTag=");
-                stringBuilder.append(highlightPostTag);
-            }
-            if (hitsPerPage != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("hitsPerPage=");
-                stringBuilder.append(hitsPerPage);
-            }
-            if (tags != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("tagFilters=");
-                stringBuilder.append(URLEncoder.encode(tags, "UTF-8"));
-            }
-            if (numerics != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("numericFilters=");
-                stringBuilder.append(URLEncoder.encode(numerics, "UTF-8"));
-            }
-            if (insideBoundingBox != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append(insideBoundingBox);
-            } else if (aroundLatLong != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append(aroundLatLong);
-            } else if (insidePolygon != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append(insidePolygon);
-            }
-            if (aroundLatLongViaIP != null) {
+        }
+        if (allowTyposOnNumericTokens != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("allowTyposOnNumericTokens=").append(allowTyposOnNumericTokens ? '1' : '0');
+        }
+        if (minWordSizeForApprox1 != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("minWordSizefor1Typo=");
+            stringBuilder.append(minWordSizeForApprox1);
+        }
+        if (minWordSizeForApprox2 != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("minWordSizefor2Typos=");
+            stringBuilder.append(minWordSizeForApprox2);
+        }
+        switch (removeWordsIfNoResult) {
+            case REMOVE_LAST_WORDS:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("aroundLatLngViaIP=").append(aroundLatLongViaIP ? '1' : '0');
-            }
-            if (aroundRadius > 0) {
+                stringBuilder.append("removeWordsIfNoResult=LastWords");
+                break;
+            case REMOVE_FIRST_WORDS:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("aroundRadius=").append(aroundRadius);
-            }
-            if (aroundPrecision > 0) {
+                stringBuilder.append("removeWordsIfNoResult=FirstWords");
+                break;
+            case REMOVE_ALLOPTIONAL:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("aroundPrecision=").append(aroundPrecision);
-            }
-            if (query != null) {
+                stringBuilder.append("removeWordsIfNoResult=allOptional");
+                break;
+            case REMOVE_NONE:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("query=");
-                stringBuilder.append(URLEncoder.encode(query, "UTF-8"));
-            }
-            if (similarQuery != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("similarQuery=");
-                stringBuilder.append(URLEncoder.encode(similarQuery, "UTF-8"));
-            }
+                stringBuilder.append("removeWordsIfNoResult=none");
+                break;
+            case REMOVE_NOTSET:
+                // Nothing to do
+                break;
+        }
+        if (getRankingInfo != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("getRankingInfo=").append(getRankingInfo ? '1' : '0');
+        }
+        if (ignorePlural != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("ignorePlural=").append(ignorePlural ? '1' : '0');
+        }
+        if (analytics != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("analytics=").append(analytics ? '1' : '0');
+        }
+        if (analyticsTags != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("analyticsTags=" + analyticsTags);
+        }
+        if (synonyms != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("synonyms=").append(synonyms ? '1' : '0');
+        }
+        if (replaceSynonyms != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("replaceSynonymsInHighlight=").append(replaceSynonyms ? '1' : '0');
+        }
+        if (distinct != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("distinct=");
+            stringBuilder.append(distinct);
+        }
+        if (removeStopWords != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("removeStopWords=").append(removeStopWords ? '1' : '0');
+        }
+        if (advancedSyntax != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("advancedSyntax=").append(advancedSyntax ? '1' : '0');
+        }
+        if (page != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("page=");
+            stringBuilder.append(page);
+        }
+        if (minProximity != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("minProximity=");
+            stringBuilder.append(minProximity);
+        }
+        if (highlightPreTag != null && highlightPostTag != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("highlightPreTag=");
+            stringBuilder.append(highlightPreTag);
+            stringBuilder.append("&highlightPostTag=");
+            stringBuilder.append(highlightPostTag);
+        }
+        if (hitsPerPage != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("hitsPerPage=");
+            stringBuilder.append(hitsPerPage);
+        }
+        if (tags != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("tagFilters=");
+            PercentEncoder.encode(stringBuilder, tags);
+        }
+        if (numerics != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("numericFilters=");
+            PercentEncoder.encode(stringBuilder, numerics);
+        }
+        if (insideBoundingBox != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append(insideBoundingBox);
+        } else if (boundingBoxes != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            boundingBoxes.appendTo(stringBuilder.append("insideBoundingBox="));
+        } else if (aroundLatLong != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append(aroundLatLong);
+        } else if (insidePolygon != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append(insidePolygon);
+        } else if (insidePolygons != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("insidePolygon=");
+            appendInsidePolygons(stringBuilder);
+        }
+        if (aroundLatLongViaIP != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("aroundLatLngViaIP=").append(aroundLatLongViaIP ? '1' : '0');
+        }
+        if (aroundRadius > 0) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("aroundRadius=").append(aroundRadius);
+        }
+        if (aroundPrecision > 0) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("aroundPrecision=").append(aroundPrecision);
+        }
+        if (query != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("query=");
+            PercentEncoder.encode(stringBuilder, query);
+        }
+        if (similarQuery != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("similarQuery=");
+            PercentEncoder.encode(stringBuilder, similarQuery);
+        }
 
-            if (facets != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("facets=");
-                stringBuilder.append(URLEncoder.encode(facets, "UTF-8"));
-            }
-            if (filters != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("filters=");
-                stringBuilder.append(URLEncoder.encode(filters, "UTF-8"));
-            }
-            if (facetFilters != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("facetFilters=");
-                stringBuilder.append(URLEncoder.encode(facetFilters, "UTF-8"));
-            }
-            if (maxNumberOfFacets != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("maxNumberOfFacets=");
-                stringBuilder.append(maxNumberOfFacets);
-            }
-            if (optionalWords != null) {
-                if (stringBuilder.length() > 0)
-                    stringBuilder.append('&');
-                stringBuilder.append("optionalWords=");
-                stringBuilder.append(URLEncoder.encode(optionalWords, "UTF-8"));
-            }
-            if (restrictSearchableAttributes != null) {
+        if (facets != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("facets=");
+            PercentEncoder.encode(stringBuilder, facets);
+        }
+        if (filters != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("filters=");
+            PercentEncoder.encode(stringBuilder, filters);
+        }
+        if (facetFilters != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("facetFilters=");
+            PercentEncoder.encode(stringBuilder, facetFilters);
+        }
+        if (maxNumberOfFacets != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("maxNumberOfFacets=");
+            stringBuilder.append(maxNumberOfFacets);
+        }
+        if (optionalWords != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("optionalWords=");
+            PercentEncoder.encode(stringBuilder, optionalWords);
+        }
+        if (restrictSearchableAttributes != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("restrictSearchableAttributes=");
+            PercentEncoder.encode(stringBuilder, restrictSearchableAttributes);
+        }
+
+        switch (queryType) {
+            case PREFIX_ALL:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("restrictSearchableAttributes=");
-                stringBuilder.append(URLEncoder.encode(restrictSearchableAttributes, "UTF-8"));
-            }
-
-            switch (queryType) {
-                case PREFIX_ALL:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("queryType=prefixAll");
-                    break;
-                case PREFIX_LAST:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("queryType=prefixLast");
-                    break;
-                case PREFIX_NONE:
-                    if (stringBuilder.length() > 0)
-                        stringBuilder.append('&');
-                    stringBuilder.append("queryType=prefixNone");
-                    break;
-                default:
-                    //Do nothing
-                    break;
-            }
-            if (referers != null) {
+                stringBuilder.append("queryType=prefixAll");
+                break;
+            case PREFIX_LAST:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("referer=");
-                stringBuilder.append(URLEncoder.encode(referers, "UTF-8"));
-            }
-            if (userToken != null) {
+                stringBuilder.append("queryType=prefixLast");
+                break;
+            case PREFIX_NONE:
                 if (stringBuilder.length() > 0)
                     stringBuilder.append('&');
-                stringBuilder.append("userToken=");
-                stringBuilder.append(URLEncoder.encode(userToken, "UTF-8"));
-            }
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+                stringBuilder.append("queryType=prefixNone");
+                break;
+            default:
+                //Do nothing
+                break;
+        }
+        if (referers != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("referer=");
+            PercentEncoder.encode(stringBuilder, referers);
+        }
+        if (userToken != null) {
+            if (stringBuilder.length() > 0)
+                stringBuilder.append('&');
+            stringBuilder.append("userToken=");
+            PercentEncoder.encode(stringBuilder, userToken);
         }
         return stringBuilder.toString();
     }
@@ -1187,7 +1486,24 @@ public class Query {
      * @return the insideBoundingBox
      */
     public String getInsideBoundingBox() {
-        return insideBoundingBox;
+        if (insideBoundingBox != null) {
+            return insideBoundingBox;
+        }
+        return boundingBoxes == null ? null : "insideBoundingBox=" + boundingBoxes;
+    }
+
+    /**
+     * @return a copy of the polygons of the geo-search
+     */
+    public List<GeoPolygon> getInsidePolygons() {
+        if (insidePolygons == null) {
+            return null;
+        }
+        List<GeoPolygon> polygons = new ArrayList<GeoPolygon>(insidePolygons.size());
+        for (GeoPolygon polygon : insidePolygons) {
+            polygons.add(new GeoPolygon(polygon));
+        }
+        return polygons;
     }
 
     /**
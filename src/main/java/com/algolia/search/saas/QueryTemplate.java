@@ -0,0 +1,108 @@
+package com.algolia.search.saas;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Immutable and pre-encoded version of a Query, for queries sent many times with only the
+ * full text query, the page, the user token or the filters changing (for example an autocomplete).
+ * All the other parameters are encoded once when the template is built.
+ * A template can be shared by several threads.
+ */
+public final class QueryTemplate {
+    private final String staticParams;
+    private final String defaultQuery;
+    private final Integer defaultPage;
+    private final String defaultUserToken;
+    private final String defaultFilters;
+
+    /**
+     * Build a template from the current parameters of a query, later modifications of the query are ignored.
+     * The query, page, userToken and filters of the query are used when they are not specified at binding time.
+     */
+    public QueryTemplate(Query query) {
+        defaultQuery = query.query;
+        defaultPage = query.page;
+        defaultUserToken = query.userToken;
+        defaultFilters = query.filters;
+
+        Query staticQuery = new Query(query).setQueryString(null).setUserToken(null).setFilters(null);
+        staticQuery.page = null;
+        staticParams = staticQuery.getQueryString();
+    }
+
+    /**
+     * @return the encoded parameters of the template, without the variable ones
+     */
+    public String getStaticParams() {
+        return staticParams;
+    }
+
+    /**
+     * Encode the parameters of a search
+     *
+     * @param query the full text query (null to use the one of the template)
+     * @param page  the page to retrieve (null to use the one of the template)
+     */
+    public String getQueryString(String query, Integer page) {
+        return getQueryString(query, page, null, null);
+    }
+
+    /**
+     * Encode the parameters of a search
+     *
+     * @param query     the full text query (null to use the one of the template)
+     * @param page      the page to retrieve (null to use the one of the template)
+     * @param userToken the userToken used as identifier for the ratelimit (null to use the one of the template)
+     * @param filters   the filters of the query (null to use the ones of the template)
+     */
+    public String getQueryString(String query, Integer page, String userToken, String filters) {
+        query = query != null ? query : defaultQuery;
+        page = page != null ? page : defaultPage;
+        userToken = userToken != null ? userToken : defaultUserToken;
+        filters = filters != null ? filters : defaultFilters;
+
+        StringBuilder builder = new StringBuilder(staticParams.length() + 64);
+        builder.append(staticParams);
+        if (page != null) {
+            append(builder, "page").append(page);
+        }
+        if (query != null) {
+            PercentEncoder.encode(append(builder, "query"), query);
+        }
+        if (filters != null) {
+            PercentEncoder.encode(append(builder, "filters"), filters);
+        }
+        if (userToken != null) {
+            PercentEncoder.encode(append(builder, "userToken"), userToken);
+        }
+        return builder.toString();
+    }
+
+    private static StringBuilder append(StringBuilder builder, String name) {
+        if (builder.length() > 0) {
+            builder.append('&');
+        }
+        return builder.append(name).append('=');
+    }
+}
@@ -0,0 +1,175 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Gathers concurrent searches and sends them as a single multipleQueries call.
+ * No background thread is used: the first search of a batch waits for the end of the window
+ * and sends the batch, unless the batch is filled (and sent) by another search before.
+ */
+class SearchBatcher {
+    private final APIClient client;
+    private final long windowMS;
+    private final int maxQueries;
+    private List<PendingSearch> pending = new ArrayList<PendingSearch>();
+
+    private static class PendingSearch {
+        final String indexName;
+        final String params;
+        final CountDownLatch done = new CountDownLatch(1);
+        JSONObject result;
+        AlgoliaException error;
+
+        PendingSearch(String indexName, String params) {
+            this.indexName = indexName;
+            this.params = params;
+        }
+    }
+
+    SearchBatcher(APIClient client, long windowMS, int maxQueries) {
+        if (maxQueries <= 0) {
+            throw new IllegalArgumentException("maxQueries must be positive");
+        }
+        this.client = client;
+        this.windowMS = windowMS;
+        this.maxQueries = maxQueries;
+    }
+
+    JSONObject search(String indexName, String params) throws AlgoliaException {
+        PendingSearch search = new PendingSearch(indexName, params);
+        List<PendingSearch> batch = null;
+        synchronized (this) {
+            pending.add(search);
+            if (pending.size() >= maxQueries) {
+                batch = pending;
+                pending = new ArrayList<PendingSearch>();
+                notifyAll();
+            } else if (pending.size() == 1) {
+                batch = waitForBatch(pending);
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        try {
+            search.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Interrupted while waiting for the search answer");
+        }
+        if (search.error != null) {
+            throw search.error;
+        }
+        return search.result;
+    }
+
+    /**
+     * Called by the first search of a batch, with the lock held
+     *
+     * @return the batch if it must be sent by the caller, null if it was already sent by another search
+     */
+    private List<PendingSearch> waitForBatch(List<PendingSearch> batch) {
+        long deadline = System.currentTimeMillis() + windowMS;
+        long remaining = windowMS;
+        boolean interrupted = false;
+        while (pending == batch && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (pending != batch) {
+            return null;
+        }
+        pending = new ArrayList<PendingSearch>();
+        return batch;
+    }
+
+    private void send(List<PendingSearch> batch) {
+        try {
+            try {
+                dispatch(batch, query(batch));
+            } catch (AlgoliaException e) {
+                if (e.getCode() / 100 == 4 && batch.size() > 1) {
+                    // one of the queries is invalid, send them separately so that only its caller gets the error
+                    for (PendingSearch search : batch) {
+                        try {
+                            dispatch(Collections.singletonList(search), query(Collections.singletonList(search)));
+                        } catch (AlgoliaException error) {
+                            search.error = error;
+                        }
+                    }
+                } else {
+                    for (PendingSearch search : batch) {
+                        search.error = e;
+                    }
+                }
+            } catch (RuntimeException e) {
+                for (PendingSearch search : batch) {
+                    search.error = new AlgoliaException(e.getMessage());
+                }
+            }
+        } finally {
+            for (PendingSearch search : batch) {
+                search.done.countDown();
+            }
+        }
+    }
+
+    private JSONObject query(List<PendingSearch> batch) throws AlgoliaException {
+        List<String> indexNames = new ArrayList<String>(batch.size());
+        List<String> params = new ArrayList<String>(batch.size());
+        for (PendingSearch search : batch) {
+            indexNames.add(search.indexName);
+            params.add(search.params);
+        }
+        return client.multipleQueries(indexNames, params, "none");
+    }
+
+    private static void dispatch(List<PendingSearch> batch, JSONObject answer) throws AlgoliaException {
+        try {
+            JSONArray results = answer.getJSONArray("results");
+            for (int i = 0; i < batch.size(); ++i) {
+                batch.get(i).result = results.getJSONObject(i);
+            }
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+}
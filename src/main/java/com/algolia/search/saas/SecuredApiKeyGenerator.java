@@ -0,0 +1,180 @@
+package com.algolia.search.saas;
+
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Generates secured API keys for a single private API key.
+ * The HMAC engine is initialized once per thread and the most recently generated keys are cached,
+ * so a single instance should be shared by all the threads generating keys.
+ * The keys are identical to the ones generated by APIClient.generateSecuredApiKey(privateApiKey, query, userToken)
+ */
+public class SecuredApiKeyGenerator {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private final SecretKeySpec keySpec;
+    private final ThreadLocal<Mac> hmacs;
+    private final LRUCache<String, String> cache;
+
+    /**
+     * @param privateApiKey your private API Key
+     */
+    public SecuredApiKeyGenerator(String privateApiKey) {
+        this(privateApiKey, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param privateApiKey your private API Key
+     * @param cacheSize     the number of generated keys to keep in memory (0 disables the cache)
+     */
+    public SecuredApiKeyGenerator(String privateApiKey, int cacheSize) {
+        if (privateApiKey == null || privateApiKey.length() == 0) {
+            throw new RuntimeException("AlgoliaSearch requires a private API key.");
+        }
+        keySpec = new SecretKeySpec(privateApiKey.getBytes(UTF8), "HmacSHA256");
+        hmacs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac hmac = Mac.getInstance("HmacSHA256");
+                    hmac.init(keySpec);
+                    return hmac;
+                } catch (NoSuchAlgorithmException e) {
+                    throw new Error(e);
+                } catch (InvalidKeyException e) {
+                    throw new Error(e);
+                }
+            }
+        };
+        cache = cacheSize > 0 ? new LRUCache<String, String>(cacheSize) : null;
+    }
+
+    /**
+     * Generate a secured and public API Key from a query
+     *
+     * @param query contains the parameter applied to the query (used as security)
+     */
+    public String generateSecuredApiKey(Query query) {
+        return generateSecuredApiKey(query.getQueryString());
+    }
+
+    /**
+     * Generate a secured and public API Key from a query and an optional user token identifying the current user.
+     * Unlike APIClient.generateSecuredApiKey, the query is not modified.
+     *
+     * @param query     contains the parameter applied to the query (used as security)
+     * @param userToken an optional token identifying the current user
+     */
+    public String generateSecuredApiKey(Query query, String userToken) {
+        if (userToken == null || userToken.length() == 0) {
+            return generateSecuredApiKey(query);
+        }
+        return generateSecuredApiKey(withUserToken(getQueryStringWithoutUserToken(query), userToken));
+    }
+
+    /**
+     * Generate one secured API key per user token, all of them sharing the same query.
+     * The query parameters are only serialized once.
+     *
+     * @param query      contains the parameter applied to the query (used as security)
+     * @param userTokens the tokens identifying the users
+     * @return the generated keys indexed by user token, in the iteration order of userTokens
+     */
+    public Map<String, String> generateSecuredApiKeys(Query query, Collection<String> userTokens) {
+        String queryStr = getQueryStringWithoutUserToken(query);
+        Map<String, String> keys = new LinkedHashMap<String, String>();
+        for (String userToken : userTokens) {
+            if (userToken == null || userToken.length() == 0) {
+                keys.put(userToken, generateSecuredApiKey(query));
+            } else {
+                keys.put(userToken, generateSecuredApiKey(withUserToken(queryStr, userToken)));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Generate one secured API key per query (for example one query per set of filters)
+     *
+     * @param queries contains the parameters applied to each key (used as security)
+     * @return the generated keys, in the same order as queries
+     */
+    public List<String> generateSecuredApiKeys(List<Query> queries) {
+        List<String> keys = new ArrayList<String>(queries.size());
+        for (Query query : queries) {
+            keys.add(generateSecuredApiKey(query));
+        }
+        return keys;
+    }
+
+    private String generateSecuredApiKey(String queryStr) {
+        if (cache != null) {
+            String key = cache.get(queryStr);
+            if (key != null) {
+                return key;
+            }
+        }
+        char[] hmac = Hex.encodeHex(hmacs.get().doFinal(queryStr.getBytes(UTF8)));
+        StringBuilder builder = new StringBuilder(hmac.length + queryStr.length());
+        builder.append(hmac).append(queryStr);
+        String key = Base64.encodeBase64String(builder.toString().getBytes(UTF8));
+        if (cache != null) {
+            cache.put(queryStr, key);
+        }
+        return key;
+    }
+
+    private static String getQueryStringWithoutUserToken(Query query) {
+        if (query.userToken == null) {
+            return query.getQueryString();
+        }
+        return new Query(query).setUserToken(null).getQueryString();
+    }
+
+    /**
+     * The user token is always the last parameter of Query.getQueryString(), appending it gives the same string
+     */
+    private static String withUserToken(String queryStr, String userToken) {
+        StringBuilder builder = new StringBuilder(queryStr.length() + 16 + userToken.length()).append(queryStr);
+        if (queryStr.length() > 0) {
+            builder.append('&');
+        }
+        return PercentEncoder.encode(builder.append("userToken="), userToken).toString();
+    }
+}
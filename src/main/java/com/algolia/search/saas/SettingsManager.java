@@ -0,0 +1,235 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Applies index settings while avoiding useless updates.
+ * The settings returned by the API are cached and a setSettings call (and the matching waitTask)
+ * is only performed when at least one of the desired settings differs from the current ones.
+ */
+public class SettingsManager {
+    private final APIClient client;
+    private final ConcurrentHashMap<String, JSONObject> settingsCache = new ConcurrentHashMap<String, JSONObject>();
+    private int parallelism = 8;
+
+    public SettingsManager(APIClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the maximum number of indices updated concurrently. Defaults to 8.
+     */
+    public SettingsManager setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Get the settings of an index, from the cache if they were already retrieved
+     */
+    public JSONObject getSettings(String indexName) throws AlgoliaException {
+        JSONObject settings = settingsCache.get(indexName);
+        if (settings == null) {
+            settings = client.initIndex(indexName).getSettings();
+            settingsCache.put(indexName, settings);
+        }
+        return settings;
+    }
+
+    /**
+     * Forget the cached settings of an index (needed if the settings are modified by another way)
+     */
+    public void invalidate(String indexName) {
+        settingsCache.remove(indexName);
+    }
+
+    /**
+     * Forget all the cached settings
+     */
+    public void invalidateAll() {
+        settingsCache.clear();
+    }
+
+    /**
+     * Set settings of an index if they differ from the current ones
+     *
+     * @param indexName the name of the index
+     * @param settings  the desired settings, settings which are not specified are left untouched
+     * @param wait      wait the publication of the settings on the server
+     * @return true if the settings were updated, false if nothing changed
+     */
+    public boolean setSettings(String indexName, JSONObject settings, boolean wait) throws AlgoliaException {
+        JSONObject current = getSettings(indexName);
+        if (!hasChanges(settings, current)) {
+            return false;
+        }
+        Index index = client.initIndex(indexName);
+        JSONObject task = index.setSettings(settings);
+        settingsCache.put(indexName, merge(current, settings));
+        if (wait) {
+            try {
+                index.waitTask(task.getString("taskID"));
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set settings of several indices in parallel, skipping the indices whose settings did not change
+     *
+     * @param settingsByIndex the desired settings indexed by index name
+     * @param wait            wait the publication of the settings on the server
+     * @return for each index, true if its settings were updated and false if nothing changed
+     */
+    public Map<String, Boolean> setSettings(Map<String, JSONObject> settingsByIndex, final boolean wait) throws AlgoliaException {
+        Map<String, Future<Boolean>> futures = new LinkedHashMap<String, Future<Boolean>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, settingsByIndex.size())), new DaemonThreadFactory("settings"));
+        try {
+            for (Map.Entry<String, JSONObject> entry : settingsByIndex.entrySet()) {
+                final String indexName = entry.getKey();
+                final JSONObject settings = entry.getValue();
+                futures.put(indexName, executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws AlgoliaException {
+                        return setSettings(indexName, settings, wait);
+                    }
+                }));
+            }
+
+            Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+            List<String> errors = new ArrayList<String>();
+            for (Map.Entry<String, Future<Boolean>> entry : futures.entrySet()) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    errors.add(entry.getKey() + "=" + e.getCause().getMessage());
+                }
+            }
+            if (!errors.isEmpty()) {
+                StringBuilder builder = new StringBuilder("Cannot set settings: ");
+                for (int i = 0; i < errors.size(); ++i) {
+                    if (i > 0) {
+                        builder.append(", ");
+                    }
+                    builder.append(errors.get(i));
+                }
+                throw new AlgoliaException(builder.toString());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AlgoliaException("Interrupted while setting settings");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if one of the desired settings is different from the current value
+     */
+    static boolean hasChanges(JSONObject desired, JSONObject current) {
+        @SuppressWarnings("unchecked")
+        Iterator<String> keys = desired.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!jsonEquals(desired.opt(key), current.opt(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Structural comparison of two JSON values: numbers are compared by value and a null value is equal to a missing one
+     */
+    static boolean jsonEquals(Object a, Object b) {
+        if (a == JSONObject.NULL) {
+            a = null;
+        }
+        if (b == JSONObject.NULL) {
+            b = null;
+        }
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        if (a instanceof JSONArray && b instanceof JSONArray) {
+            JSONArray arrayA = (JSONArray) a;
+            JSONArray arrayB = (JSONArray) b;
+            if (arrayA.length() != arrayB.length()) {
+                return false;
+            }
+            for (int i = 0; i < arrayA.length(); ++i) {
+                if (!jsonEquals(arrayA.opt(i), arrayB.opt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof JSONObject && b instanceof JSONObject) {
+            return !hasChanges((JSONObject) a, (JSONObject) b) && !hasChanges((JSONObject) b, (JSONObject) a);
+        }
+        return a.equals(b);
+    }
+
+    private static JSONObject merge(JSONObject current, JSONObject settings) throws AlgoliaException {
+        try {
+            JSONObject merged = new JSONObject();
+            for (JSONObject source : new JSONObject[]{current, settings}) {
+                @SuppressWarnings("unchecked")
+                Iterator<String> keys = source.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    merged.put(key, source.get(key));
+                }
+            }
+            return merged;
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONException;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Waits for the publication of many tasks with one scheduler thread, instead of one blocked thread per
+ * Index.waitTask call.
+ * <p>
+ * The tasks of an index are published in order, so only the newest pending task of each index is polled:
+ * once it is published, all the pending tasks of the index are completed. If the newest task cannot be polled
+ * (4xx answer), only that task fails and the older ones are polled in turn. The indices of different clients
+ * are watched separately, even if they have the same name. The delay between two polls of an
+ * index starts at minPollMS and doubles up to maxPollMS while the task is not published.
+ * <p>
+ * The callbacks are called from the scheduler thread and must not block.
+ */
+public class TaskWatcher {
+    /**
+     * Notified when a watched task is published or cannot be watched anymore
+     */
+    public interface TaskCallback {
+        void onPublished(String indexName, String taskID);
+
+        void onFailure(String indexName, String taskID, AlgoliaException error);
+    }
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("tasks"));
+    // the pending tasks by client (compared by identity) and index name
+    private final Map<APIClient, Map<String, IndexTasks>> indices = new HashMap<APIClient, Map<String, IndexTasks>>();
+    private long minPollMS = 100;
+    private long maxPollMS = 10000;
+    private boolean closed;
+
+    /**
+     * Set the delays between two polls of an index. Defaults to 100ms, doubled up to 10s.
+     */
+    public synchronized TaskWatcher setPollIntervals(long minPollMS, long maxPollMS) {
+        if (minPollMS <= 0 || maxPollMS < minPollMS) {
+            throw new IllegalArgumentException("Expected 0 < minPollMS <= maxPollMS");
+        }
+        this.minPollMS = minPollMS;
+        this.maxPollMS = maxPollMS;
+        return this;
+    }
+
+    /**
+     * Watch a task
+     *
+     * @return a future completed with the taskID once the task is published
+     */
+    public Future<String> watch(Index index, String taskID) {
+        return watch(index, taskID, null);
+    }
+
+    /**
+     * Watch a task, the callback is notified once the task is published
+     *
+     * @param callback the callback, can be null
+     * @return a future completed with the taskID once the task is published
+     */
+    public synchronized Future<String> watch(Index index, String taskID, TaskCallback callback) {
+        long id;
+        try {
+            id = Long.parseLong(taskID);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid taskID: " + taskID);
+        }
+        if (closed) {
+            throw new IllegalStateException("The task watcher is closed");
+        }
+        TaskFuture future = new TaskFuture(index.getIndexName(), taskID, callback);
+        Map<String, IndexTasks> clientIndices = indices.get(index.getClient());
+        if (clientIndices == null) {
+            clientIndices = new HashMap<String, IndexTasks>();
+            indices.put(index.getClient(), clientIndices);
+        }
+        IndexTasks tasks = clientIndices.get(index.getIndexName());
+        if (tasks == null) {
+            tasks = new IndexTasks(index);
+            clientIndices.put(index.getIndexName(), tasks);
+        }
+        List<TaskFuture> futures = tasks.pending.get(id);
+        if (futures == null) {
+            futures = new ArrayList<TaskFuture>(1);
+            tasks.pending.put(id, futures);
+        }
+        futures.add(future);
+        if (!tasks.scheduled) {
+            tasks.scheduled = true;
+            // the first poll is delayed so that the tasks submitted together are checked at once
+            tasks.delay = minPollMS;
+            schedule(tasks, minPollMS);
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of tasks waiting to be published
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Map<String, IndexTasks> clientIndices : indices.values()) {
+            for (IndexTasks tasks : clientIndices.values()) {
+                for (List<TaskFuture> futures : tasks.pending.values()) {
+                    count += futures.size();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stop watching, the pending tasks fail
+     */
+    public void close() {
+        List<TaskFuture> futures = new ArrayList<TaskFuture>();
+        synchronized (this) {
+            closed = true;
+            for (Map<String, IndexTasks> clientIndices : indices.values()) {
+                for (IndexTasks tasks : clientIndices.values()) {
+                    for (List<TaskFuture> pending : tasks.pending.values()) {
+                        futures.addAll(pending);
+                    }
+                }
+            }
+            indices.clear();
+        }
+        scheduler.shutdownNow();
+        complete(futures, new AlgoliaException("The task watcher is closed"));
+    }
+
+    private void schedule(final IndexTasks tasks, long delay) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll(tasks);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(IndexTasks tasks) {
+        long newest;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            newest = tasks.pending.lastKey();
+        }
+        List<TaskFuture> completed = new ArrayList<TaskFuture>();
+        AlgoliaException error = null;
+        boolean published = false;
+        try {
+            published = tasks.index.isTaskPublished(String.valueOf(newest));
+        } catch (AlgoliaException e) {
+            error = e;
+        } catch (JSONException e) {
+            error = new AlgoliaException(e.getMessage());
+        } catch (RuntimeException e) {
+            error = new AlgoliaException(e.toString());
+        }
+        // a 4xx answer will not change, the other errors are retried
+        boolean failed = error != null && error.getCode() / 100 == 4 && error.getCode() != 429;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (published) {
+                SortedMap<Long, List<TaskFuture>> done = tasks.pending.headMap(newest + 1);
+                for (List<TaskFuture> futures : done.values()) {
+                    completed.addAll(futures);
+                }
+                done.clear();
+                tasks.delay = minPollMS;
+            } else if (failed) {
+                // the older tasks may still be valid, they are polled next
+                completed.addAll(tasks.pending.remove(newest));
+                tasks.delay = minPollMS;
+            } else {
+                tasks.delay = Math.min(tasks.delay * 2, maxPollMS);
+            }
+            if (tasks.pending.isEmpty()) {
+                tasks.scheduled = false;
+                Map<String, IndexTasks> clientIndices = indices.get(tasks.index.getClient());
+                clientIndices.remove(tasks.index.getIndexName());
+                if (clientIndices.isEmpty()) {
+                    indices.remove(tasks.index.getClient());
+                }
+            } else {
+                schedule(tasks, published || failed ? 0 : tasks.delay);
+            }
+        }
+        complete(completed, failed ? error : null);
+    }
+
+    /**
+     * Complete all the futures before calling the callbacks, so that a failing callback does not block the others
+     */
+    private static void complete(List<TaskFuture> futures, AlgoliaException error) {
+        for (TaskFuture future : futures) {
+            future.complete(error);
+        }
+        for (TaskFuture future : futures) {
+            future.notifyCallback();
+        }
+    }
+
+    private static class IndexTasks {
+        final Index index;
+        final TreeMap<Long, List<TaskFuture>> pending = new TreeMap<Long, List<TaskFuture>>();
+        boolean scheduled;
+        long delay;
+
+        IndexTasks(Index index) {
+            this.index = index;
+        }
+    }
+
+    private static class TaskFuture implements Future<String> {
+        private final String indexName;
+        private final String taskID;
+        private final TaskCallback callback;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile AlgoliaException error;
+
+        TaskFuture(String indexName, String taskID, TaskCallback callback) {
+            this.indexName = indexName;
+            this.taskID = taskID;
+            this.callback = callback;
+        }
+
+        void complete(AlgoliaException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        void notifyCallback() {
+            if (callback == null) {
+                return;
+            }
+            try {
+                if (error == null) {
+                    callback.onPublished(indexName, taskID);
+                } else {
+                    callback.onFailure(indexName, taskID, error);
+                }
+            } catch (RuntimeException e) {
+                // the callbacks must not throw, the other tasks are still notified
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private String result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return taskID;
+        }
+    }
+}
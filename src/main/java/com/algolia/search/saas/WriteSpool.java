@@ -0,0 +1,475 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Durable spool of the batches that could not be sent because all the hosts were unreachable.
+ * <p>
+ * Once attached with APIClient.setWriteSpool, a batch failing with "Hosts unreachable" is appended to an
+ * append-only log in the spool directory and the client throws a WriteSpooledException (there is no taskID).
+ * While the spool is not empty, the following batches are also spooled to keep the order of the writes.
+ * A background thread replays the batches in order, at most maxReplayPerSecond per second, waiting with
+ * an exponential backoff while the hosts are unreachable or the batch cannot be sent. A batch rejected by the API
+ * (4xx) is dropped, except for the authentication errors (401, 403) and 429 which are retried.
+ * <p>
+ * The log is split in segment files deleted once replayed, and the replay position is saved after each
+ * batch, so the spool survives restarts. A batch can be replayed twice if the process stops between its
+ * replay and the save of the position.
+ * <p>
+ * Record format: payload length (int), CRC32 of the payload (int), payload (URL in modified UTF-8, then body).
+ */
+public class WriteSpool {
+    private static final Pattern SEGMENT = Pattern.compile("spool-(\\d{16})\\.log");
+
+    private final File directory;
+    private long segmentBytes = 16 * 1024 * 1024;
+    private long maxBytes = 1024L * 1024 * 1024;
+    private double maxReplayPerSecond = 10;
+    private long minBackoffMS = 1000;
+    private long maxBackoffMS = 60000;
+    private boolean sync = true;
+
+    private final TreeSet<Long> segments = new TreeSet<Long>();
+    private long readSegment;
+    private long readOffset;
+    private long writeSegment;
+    private RandomAccessFile writer;
+    private final RandomAccessFile position;
+    private long pendingCount;
+    private long pendingBytes;
+    private long spooledCount;
+    private long replayedCount;
+    private long droppedCount;
+    private volatile AlgoliaException lastError;
+    private Thread replayer;
+    private boolean closed;
+
+    /**
+     * Open the spool stored in the directory, created if needed
+     */
+    public WriteSpool(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT.matcher(file.getName());
+                if (matcher.matches()) {
+                    segments.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        position = new RandomAccessFile(new File(directory, "position"), "rw");
+        if (position.length() >= 16) {
+            readSegment = position.readLong();
+            readOffset = position.readLong();
+        } else {
+            readSegment = segments.isEmpty() ? 0 : segments.first();
+            readOffset = 0;
+        }
+        while (!segments.isEmpty() && segments.first() < readSegment) {
+            segmentFile(segments.pollFirst()).delete();
+        }
+        if (segments.isEmpty() || segments.first() > readSegment) {
+            // the segment of the position was replayed and deleted
+            readSegment = segments.isEmpty() ? readSegment : segments.first();
+            readOffset = 0;
+        }
+        for (long segment : segments) {
+            scan(segment, segment == readSegment ? readOffset : 0);
+        }
+        writeSegment = segments.isEmpty() ? readSegment : segments.last();
+        segments.add(writeSegment);
+        writer = new RandomAccessFile(segmentFile(writeSegment), "rw");
+    }
+
+    /**
+     * Count the valid records of a segment, truncating it after the last valid record
+     */
+    private void scan(long segment, long offset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        try {
+            long length = file.length();
+            while (offset + 8 <= length) {
+                file.seek(offset);
+                int payloadLength = file.readInt();
+                int crc = file.readInt();
+                if (payloadLength < 0 || offset + 8 + payloadLength > length) {
+                    break;
+                }
+                byte[] payload = new byte[payloadLength];
+                file.readFully(payload);
+                if (crc(payload) != crc) {
+                    break;
+                }
+                offset += 8 + payloadLength;
+                ++pendingCount;
+                pendingBytes += 8 + payloadLength;
+            }
+            if (offset < length) {
+                // partially written record
+                file.setLength(offset);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Set the size above which a new segment file is started. Defaults to 16MB.
+     */
+    public synchronized WriteSpool setSegmentBytes(long segmentBytes) {
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("segmentBytes must be positive");
+        }
+        this.segmentBytes = segmentBytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of the batches waiting in the spool, the batches are not spooled above. Defaults to 1GB.
+     */
+    public synchronized WriteSpool setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of batches replayed per second. Defaults to 10.
+     */
+    public synchronized WriteSpool setMaxReplayPerSecond(double maxReplayPerSecond) {
+        if (maxReplayPerSecond <= 0) {
+            throw new IllegalArgumentException("maxReplayPerSecond must be positive");
+        }
+        this.maxReplayPerSecond = maxReplayPerSecond;
+        return this;
+    }
+
+    /**
+     * Set the delays between two replays while the hosts are unreachable. Defaults to 1s, doubled up to 60s.
+     */
+    public synchronized WriteSpool setBackoff(long minBackoffMS, long maxBackoffMS) {
+        if (minBackoffMS <= 0 || maxBackoffMS < minBackoffMS) {
+            throw new IllegalArgumentException("Expected 0 < minBackoffMS <= maxBackoffMS");
+        }
+        this.minBackoffMS = minBackoffMS;
+        this.maxBackoffMS = maxBackoffMS;
+        return this;
+    }
+
+    /**
+     * Set whether each spooled batch is synced to the disk before the call returns. Defaults to true.
+     */
+    public synchronized WriteSpool setSync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    /**
+     * @return the number of batches waiting to be replayed
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the size of the batches waiting to be replayed
+     */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the number of batches spooled since the spool was opened
+     */
+    public synchronized long getSpooledCount() {
+        return spooledCount;
+    }
+
+    /**
+     * @return the number of batches replayed since the spool was opened
+     */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /**
+     * @return the number of batches rejected by the API during their replay
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the last error of a replay, null if none
+     */
+    public AlgoliaException getLastError() {
+        return lastError;
+    }
+
+    synchronized boolean isEmpty() {
+        return pendingCount == 0;
+    }
+
+    /**
+     * Append a batch to the log
+     */
+    synchronized void append(String url, byte[] body) throws AlgoliaException {
+        if (closed) {
+            throw new AlgoliaException("The write spool is closed");
+        }
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(body.length + url.length() + 2);
+            DataOutputStream data = new DataOutputStream(payload);
+            data.writeUTF(url);
+            data.write(body);
+            byte[] bytes = payload.toByteArray();
+            if (pendingBytes + 8 + bytes.length > maxBytes) {
+                throw new AlgoliaException("The write spool is full");
+            }
+            if (writer.length() > 0 && writer.length() + 8 + bytes.length > segmentBytes) {
+                writer.close();
+                writer = new RandomAccessFile(segmentFile(++writeSegment), "rw");
+                segments.add(writeSegment);
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(bytes.length);
+            out.writeInt(crc(bytes));
+            out.write(bytes);
+            long length = writer.length();
+            try {
+                writer.seek(length);
+                writer.write(record.toByteArray());
+                if (sync) {
+                    writer.getFD().sync();
+                }
+            } catch (IOException e) {
+                // do not leave a partial record before the next ones
+                writer.setLength(length);
+                throw e;
+            }
+            ++pendingCount;
+            ++spooledCount;
+            pendingBytes += 8 + bytes.length;
+            notifyAll();
+        } catch (IOException e) {
+            throw new AlgoliaException("Cannot write the spool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start replaying the batches with the client
+     */
+    synchronized void start(final APIClient client) {
+        if (replayer != null) {
+            throw new IllegalStateException("The write spool is already attached to a client");
+        }
+        replayer = new DaemonThreadFactory("spool").newThread(new Runnable() {
+            @Override
+            public void run() {
+                replay(client);
+            }
+        });
+        replayer.start();
+    }
+
+    /**
+     * Stop the replay and close the files, the pending batches are kept for the next opening
+     */
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            thread = replayer;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            writer.close();
+            position.close();
+        }
+    }
+
+    private void replay(APIClient client) {
+        long backoff = minBackoffMS;
+        try {
+            while (true) {
+                Record record;
+                try {
+                    record = next();
+                } catch (IOException e) {
+                    lastError = new AlgoliaException("Cannot read the spool: " + e.getMessage());
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, maxBackoffMS);
+                    continue;
+                }
+                if (record == null) {
+                    return;
+                }
+                AlgoliaException error = null;
+                try {
+                    client.sendSpooled(record.url, record.body);
+                } catch (AlgoliaException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new AlgoliaException("Cannot replay the batch: " + e);
+                }
+                // an invalid batch will never be accepted, but an authentication error can be fixed with another key
+                boolean rejected = error != null && error.getCode() / 100 == 4 && error.getCode() != 429
+                        && error.getCode() != 401 && error.getCode() != 403;
+                if (error != null) {
+                    lastError = error;
+                }
+                if (error == null || rejected) {
+                    try {
+                        commit(record, rejected);
+                        backoff = minBackoffMS;
+                    } catch (IOException e) {
+                        lastError = new AlgoliaException("Cannot save the spool position: " + e.getMessage());
+                    }
+                    Thread.sleep((long) (1000 / maxReplayPerSecond));
+                } else {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, maxBackoffMS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * @return the next batch to replay, null once closed
+     */
+    private synchronized Record next() throws InterruptedException, IOException {
+        while (true) {
+            while (pendingCount == 0 && !closed) {
+                wait();
+            }
+            if (closed) {
+                return null;
+            }
+            RandomAccessFile file = new RandomAccessFile(segmentFile(readSegment), "r");
+            try {
+                while (readOffset >= file.length()) {
+                    // the segment is fully replayed
+                    file.close();
+                    Long nextSegment = segments.higher(readSegment);
+                    if (nextSegment == null) {
+                        break;
+                    }
+                    readSegment = nextSegment;
+                    readOffset = 0;
+                    file = new RandomAccessFile(segmentFile(readSegment), "r");
+                }
+                if (readOffset >= file.length()) {
+                    // the files hold less batches than counted, nothing is left to replay
+                    lastError = new AlgoliaException("The spool files are shorter than expected, " + pendingCount + " batches are lost");
+                    pendingCount = 0;
+                    pendingBytes = 0;
+                    continue;
+                }
+                file.seek(readOffset);
+                int payloadLength = file.readInt();
+                file.readInt();
+                byte[] payload = new byte[payloadLength];
+                file.readFully(payload);
+                Record record = new Record();
+                record.size = 8 + payloadLength;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                record.url = in.readUTF();
+                record.body = new byte[in.available()];
+                in.readFully(record.body);
+                return record;
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private synchronized void commit(Record record, boolean dropped) throws IOException {
+        readOffset += record.size;
+        --pendingCount;
+        pendingBytes -= record.size;
+        if (dropped) {
+            ++droppedCount;
+        } else {
+            ++replayedCount;
+        }
+        // delete the replayed segments, except the one being written
+        while (readSegment < writeSegment && readOffset >= segmentFile(readSegment).length()) {
+            segments.remove(readSegment);
+            segmentFile(readSegment).delete();
+            readSegment = segments.first();
+            readOffset = 0;
+        }
+        position.seek(0);
+        position.writeLong(readSegment);
+        position.writeLong(readOffset);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("spool-%016d.log", segment));
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static class Record {
+        String url;
+        byte[] body;
+        int size;
+    }
+}
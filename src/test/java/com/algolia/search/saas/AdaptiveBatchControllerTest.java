@@ -0,0 +1,62 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class AdaptiveBatchControllerTest {
+
+    @Test
+    public void test01_latency() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(100, 10, 1000, 4).setTargetLatencyMS(1000);
+        assertEquals(100, controller.getBatchSize());
+        assertEquals(2, controller.getConcurrency());
+        controller.onSuccess(100, 0, 600);
+        assertEquals(110, controller.getBatchSize());
+        assertEquals(2, controller.getConcurrency());
+        controller.onSuccess(110, 0, 100);
+        controller.onSuccess(110, 0, 100);
+        assertEquals(130, controller.getBatchSize());
+        assertEquals(3, controller.getConcurrency());
+        controller.onSuccess(130, 0, 2000);
+        assertEquals(97, controller.getBatchSize());
+        for (int i = 0; i < 200; ++i) {
+            controller.onSuccess(controller.getBatchSize(), 0, 10);
+        }
+        assertEquals(1000, controller.getBatchSize());
+        assertEquals(4, controller.getConcurrency());
+    }
+
+    @Test
+    public void test02_errorsAndBytes() {
+        AdaptiveBatchController controller = new AdaptiveBatchController(100, 10, 1000, 4).setMaxBatchBytes(10000);
+        controller.onFailure(true);
+        assertEquals(50, controller.getBatchSize());
+        assertEquals(1, controller.getConcurrency());
+        controller.onFailure(false);
+        assertEquals(50, controller.getBatchSize());
+        for (int i = 0; i < 10; ++i) {
+            controller.onFailure(true);
+        }
+        assertEquals(10, controller.getBatchSize());
+        for (int i = 0; i < 100; ++i) {
+            controller.onSuccess(controller.getBatchSize(), controller.getBatchSize() * 200L, 10);
+        }
+        assertEquals(50, controller.getBatchSize());
+
+        assertTrue(AdaptiveBatchController.isTransient(new AlgoliaException("Hosts unreachable: ")));
+        assertTrue(AdaptiveBatchController.isTransient(new AlgoliaException(429, "Too many requests")));
+        assertFalse(AdaptiveBatchController.isTransient(new AlgoliaException(400, "Bad request")));
+        assertFalse(AdaptiveBatchController.isTransient(new AlgoliaException("JSON decode error:unterminated string")));
+        assertFalse(AdaptiveBatchController.isTransient(new AlgoliaException("Interrupted while uploading")));
+        assertFalse(AdaptiveBatchController.isTransient(new WriteSpooledException("Batch spooled for replay, Hosts unreachable: ")));
+    }
+}
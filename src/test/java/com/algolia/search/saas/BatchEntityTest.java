@@ -0,0 +1,110 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BatchEntityTest {
+
+    private static JSONArray requests(HttpEntity entity) throws IOException, JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return new JSONObject(out.toString("UTF-8")).getJSONArray("requests");
+    }
+
+    @Test
+    public void test01_actions() throws AlgoliaException, IOException, JSONException {
+        List<JSONObject> objects = Arrays.asList(new JSONObject().put("objectID", "a\"1").put("name", "é"), new JSONObject().put("objectID", "2"));
+        BatchEntity entity = new BatchEntity("updateObject", objects);
+        assertTrue(entity.isRepeatable());
+        assertEquals(-1, entity.getContentLength());
+        assertEquals(Arrays.asList("a\"1", "2"), entity.getObjectIDs());
+        JSONArray requests = requests(entity);
+        assertEquals(2, requests.length());
+        assertEquals("updateObject", requests.getJSONObject(0).getString("action"));
+        assertEquals("a\"1", requests.getJSONObject(0).getString("objectID"));
+        assertEquals("é", requests.getJSONObject(0).getJSONObject("body").getString("name"));
+        // written again for the next host
+        assertEquals(requests.toString(), requests(entity).toString());
+        assertEquals(requests.toString(), new JSONObject(EntityUtils.toString(entity, "UTF-8")).getJSONArray("requests").toString());
+
+        requests = requests(new BatchEntity("addObject", Arrays.asList(new JSONObject().put("name", "x"))));
+        assertTrue(!requests.getJSONObject(0).has("objectID"));
+        requests = requests(new BatchEntity("deleteObject", Arrays.asList("1")));
+        assertEquals("{\"action\":\"deleteObject\",\"body\":{\"objectID\":\"1\"}}", requests.getJSONObject(0).toString());
+        assertEquals(0, requests(new BatchEntity("addObject", new ArrayList<JSONObject>())).length());
+        try {
+            new BatchEntity("partialUpdateObject", Arrays.asList(new JSONObject()));
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            // missing objectID
+        }
+    }
+
+    @Test
+    public void test02_index() throws AlgoliaException, JSONException {
+        final List<JSONArray> batches = new ArrayList<JSONArray>();
+        APIClient client = new APIClient("appID", "apiKey") {
+            @Override
+            JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+                assertEquals("/1/indexes/records/batch", url);
+                try {
+                    batches.add(requests(entity));
+                    return new JSONObject().put("taskID", 1);
+                } catch (JSONException e) {
+                    throw new AlgoliaException(e.getMessage());
+                } catch (IOException e) {
+                    throw new AlgoliaException(e.getMessage());
+                }
+            }
+        };
+        Index index = client.initIndex("records");
+        index.saveObjects(new JSONArray().put(new JSONObject().put("objectID", "1")));
+        index.partialUpdateObjects(Arrays.asList(new JSONObject().put("objectID", "2")));
+        index.addObjects(new JSONArray().put(new JSONObject().put("name", "3")));
+        index.deleteObjects(Arrays.asList("4"));
+        assertEquals(4, batches.size());
+        assertEquals("updateObject", batches.get(0).getJSONObject(0).getString("action"));
+        assertEquals("partialUpdateObject", batches.get(1).getJSONObject(0).getString("action"));
+        assertEquals("3", batches.get(2).getJSONObject(0).getJSONObject("body").getString("name"));
+        assertEquals("4", batches.get(3).getJSONObject(0).getJSONObject("body").getString("objectID"));
+    }
+
+    @Test
+    public void test03_invalidRecord() throws AlgoliaException, JSONException {
+        JSONObject record = new JSONObject().put("objectID", "1").put("price", new JSONString() {
+            @Override
+            public String toJSONString() {
+                throw new IllegalStateException("not encodable");
+            }
+        });
+        try {
+            requests(new BatchEntity("updateObject", Arrays.asList(new JSONObject().put("objectID", "0"), record)));
+            fail("InvalidRecordException expected");
+        } catch (BatchEntity.InvalidRecordException e) {
+            assertTrue(e.getMessage().startsWith("Invalid record 1: "));
+        } catch (IOException e) {
+            fail("InvalidRecordException expected: " + e);
+        }
+    }
+}
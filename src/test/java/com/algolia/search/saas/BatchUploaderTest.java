@@ -0,0 +1,188 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BatchUploaderTest {
+
+    /**
+     * Answers each batch with the objectID of its first request as taskID, fails the batches containing the "bad" objectID
+     */
+    private static class BatchClient extends APIClient {
+        final List<JSONArray> batches = Collections.synchronizedList(new ArrayList<JSONArray>());
+        final Set<Integer> firstHosts = Collections.synchronizedSet(new HashSet<Integer>());
+        final List<String> waitedTasks = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile int maxInFlight;
+        volatile int failAbove = Integer.MAX_VALUE;
+
+        BatchClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+            int current = inFlight.incrementAndGet();
+            synchronized (this) {
+                maxInFlight = Math.max(maxInFlight, current);
+            }
+            firstHosts.add(firstHost % 4);
+            try {
+                Thread.sleep(10);
+                JSONArray requests = new JSONObject(EntityUtils.toString(entity, "UTF-8")).getJSONArray("requests");
+                if (requests.length() > failAbove) {
+                    throw new AlgoliaException("Hosts unreachable: timeout");
+                }
+                if (requests.toString().contains("\"bad\"")) {
+                    throw new AlgoliaException(400, "Bad object");
+                }
+                batches.add(requests);
+                String objectID = requests.getJSONObject(0).getJSONObject("body").getString("objectID");
+                return new JSONObject().put("taskID", 1000 + Integer.parseInt(objectID));
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (InterruptedException e) {
+                throw new AlgoliaException(e.getMessage());
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            waitedTasks.add(url);
+            try {
+                return new JSONObject().put("status", "published");
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    private static List<JSONObject> objects(int count) throws JSONException {
+        List<JSONObject> objects = new ArrayList<JSONObject>();
+        for (int i = 0; i < count; ++i) {
+            objects.add(new JSONObject().put("objectID", String.valueOf(i)).put("name", "object " + i));
+        }
+        return objects;
+    }
+
+    @Test
+    public void test01_parallelChunks() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        BatchUploader.Result result = new BatchUploader(client.initIndex("records")).setChunkSize(100).setMaxInFlight(4).saveObjects(objects(2050));
+        assertTrue(result.isSuccessful());
+        assertEquals(2050, result.getCount());
+        assertEquals(21, client.batches.size());
+        assertEquals(21, result.getTaskIDs().size());
+        assertEquals("1000", result.getTaskIDs().get(0));
+        assertEquals("3000", result.getTaskIDs().get(20));
+        assertTrue(client.maxInFlight > 1);
+        assertTrue(client.maxInFlight <= 4);
+        assertEquals(4, client.firstHosts.size());
+        JSONObject request = client.batches.get(0).getJSONObject(0);
+        assertEquals("updateObject", request.getString("action"));
+        assertEquals(request.getString("objectID"), request.getJSONObject("body").getString("objectID"));
+
+        result.waitTask();
+        assertEquals(Arrays.asList("/1/indexes/records/task/3000"), client.waitedTasks);
+    }
+
+    @Test
+    public void test02_errors() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        List<JSONObject> objects = objects(500);
+        objects.get(250).put("objectID", "bad");
+        objects.get(420).remove("objectID");
+        BatchUploader.Result result = new BatchUploader(client.initIndex("records")).setChunkSize(100).partialUpdateObjects(objects);
+        assertFalse(result.isSuccessful());
+        assertEquals(3, result.getTaskIDs().size());
+        List<BatchUploader.ChunkError> errors = result.getErrors();
+        assertEquals(2, errors.size());
+        assertEquals(200, errors.get(0).getOffset());
+        assertEquals(100, errors.get(0).getSize());
+        assertEquals(400, errors.get(0).getError().getCode());
+        assertEquals(400, errors.get(1).getOffset());
+    }
+
+    @Test
+    public void test03_delete() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        BatchUploader.Result result = new BatchUploader(client.initIndex("records")).setChunkSize(2).deleteObjects(Arrays.asList("1", "2", "3"));
+        assertEquals(2, result.getTaskIDs().size());
+        JSONObject request = client.batches.get(0).getJSONObject(0);
+        assertEquals("deleteObject", request.getString("action"));
+        assertEquals(0, new BatchUploader(client.initIndex("records")).addObjects(new ArrayList<JSONObject>()).getCount());
+    }
+
+    @Test
+    public void test04_transientErrors() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        client.failAbove = 30;
+        BatchUploader.Result result = new BatchUploader(client.initIndex("records")).setChunkSize(100).setMaxRetries(2).saveObjects(objects(250));
+        // 100 -> 50 -> 25, 50 -> 25
+        assertTrue(result.isSuccessful());
+        assertEquals(10, result.getTaskIDs().size());
+        assertEquals("1000", result.getTaskIDs().get(0));
+        assertEquals("1225", result.getTaskIDs().get(9));
+
+        client.failAbove = 10;
+        result = new BatchUploader(client.initIndex("records")).setChunkSize(100).setMaxRetries(1).saveObjects(objects(100));
+        assertEquals(2, result.getErrors().size());
+        assertEquals(50, result.getErrors().get(1).getOffset());
+        assertEquals(50, result.getErrors().get(1).getSize());
+    }
+
+    @Test
+    public void test05_controller() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        AdaptiveBatchController controller = new AdaptiveBatchController(20, 10, 1000, 3);
+        BatchUploader.Result result = new BatchUploader(client.initIndex("records")).setController(controller).saveObjects(objects(3000));
+        assertTrue(result.isSuccessful());
+        assertTrue(controller.getBatchSize() > 20);
+        assertTrue(client.batches.get(client.batches.size() - 1).length() > 20 || client.batches.get(client.batches.size() - 2).length() > 20);
+        assertTrue(client.maxInFlight <= 3);
+        int count = 0;
+        for (JSONArray batch : client.batches) {
+            count += batch.length();
+        }
+        assertEquals(3000, count);
+    }
+
+    @Test
+    public void test06_invalidItems() throws AlgoliaException {
+        BatchClient client = new BatchClient();
+        BatchUploader.Result result = new BatchUploader(client.initIndex("records")).setChunkSize(1).deleteObjects(Arrays.asList("1", null, "3"));
+        assertEquals(3, result.getCount());
+        assertEquals(2, result.getTaskIDs().size());
+        assertFalse(result.isSuccessful());
+        assertEquals(1, result.getErrors().size());
+        assertEquals(1, result.getErrors().get(0).getOffset());
+        assertEquals(0, result.getErrors().get(0).getError().getCode());
+    }
+}
@@ -0,0 +1,226 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BulkIndexerTest {
+
+    /**
+     * Records the batches and answers with increasing taskIDs
+     */
+    private static class BatchClient extends APIClient {
+        final List<JSONArray> batches = Collections.synchronizedList(new ArrayList<JSONArray>());
+        volatile boolean fail;
+        // number of the next batches failing
+        volatile int failures;
+
+        BatchClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+            if (fail) {
+                throw new AlgoliaException(400, "Bad request");
+            }
+            if (failures > 0) {
+                --failures;
+                throw new AlgoliaException(400, "Record too big");
+            }
+            try {
+                batches.add(new JSONObject(EntityUtils.toString(entity, "UTF-8")).getJSONArray("requests"));
+                return new JSONObject().put("taskID", 100 + batches.size());
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_countLimit() throws AlgoliaException, JSONException, InterruptedException, ExecutionException, TimeoutException {
+        BatchClient client = new BatchClient();
+        BulkIndexer indexer = new BulkIndexer(client.initIndex("records")).setMaxBatchSize(1000).setMaxDelayMS(60000);
+        Future<String> first = null;
+        Future<String> last = null;
+        for (int i = 0; i < 2500; ++i) {
+            last = indexer.saveObject(new JSONObject().put("objectID", String.valueOf(i)));
+            if (first == null) {
+                first = last;
+            }
+        }
+        assertEquals("101", first.get(5, TimeUnit.SECONDS));
+        indexer.close();
+        assertEquals("103", last.get());
+        assertEquals(3, client.batches.size());
+        assertEquals(1000, client.batches.get(0).length());
+        assertEquals(500, client.batches.get(2).length());
+        JSONObject action = client.batches.get(0).getJSONObject(0);
+        assertEquals("updateObject", action.getString("action"));
+        assertEquals("0", action.getString("objectID"));
+    }
+
+    @Test
+    public void test02_delayAndBytes() throws AlgoliaException, JSONException, InterruptedException, ExecutionException, TimeoutException {
+        BatchClient client = new BatchClient();
+        BulkIndexer indexer = new BulkIndexer(client.initIndex("records")).setMaxDelayMS(20);
+        Future<String> future = indexer.deleteObject("1");
+        assertEquals("101", future.get(5, TimeUnit.SECONDS));
+        assertTrue(future.isDone());
+        assertEquals("deleteObject", client.batches.get(0).getJSONObject(0).getString("action"));
+
+        indexer.setMaxDelayMS(60000).setMaxBatchBytes(1000);
+        for (int i = 0; i < 20; ++i) {
+            indexer.partialUpdateObject(new JSONObject().put("objectID", String.valueOf(i)).put("text", "0123456789012345678901234567890123456789"));
+        }
+        indexer.flush();
+        int count = 0;
+        for (int i = 1; i < client.batches.size(); ++i) {
+            assertTrue(client.batches.get(i).toString().length() < 1000);
+            count += client.batches.get(i).length();
+        }
+        assertEquals(20, count);
+        assertTrue(client.batches.size() > 2);
+        indexer.close();
+        try {
+            indexer.addObject(new JSONObject());
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test03_concurrentProducers() throws AlgoliaException, JSONException, InterruptedException {
+        BatchClient client = new BatchClient();
+        // a small pending limit forces the producers to wait for the sender
+        final BulkIndexer indexer = new BulkIndexer(client.initIndex("records"), 2000).setMaxBatchSize(50);
+        final List<Future<String>> futures = Collections.synchronizedList(new ArrayList<Future<String>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; ++i) {
+                            futures.add(indexer.addObject(new JSONObject().put("objectID", thread + "-" + i)));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        indexer.close();
+        assertEquals(2000, futures.size());
+        for (Future<String> future : futures) {
+            assertTrue(future.isDone());
+        }
+        Set<String> ids = new HashSet<String>();
+        for (JSONArray batch : client.batches) {
+            assertTrue(batch.length() <= 50);
+            for (int i = 0; i < batch.length(); ++i) {
+                assertTrue(ids.add(batch.getJSONObject(i).getJSONObject("body").getString("objectID")));
+            }
+        }
+        assertEquals(2000, ids.size());
+    }
+
+    @Test
+    public void test04_errors() throws AlgoliaException, JSONException, InterruptedException {
+        BatchClient client = new BatchClient();
+        client.fail = true;
+        BulkIndexer indexer = new BulkIndexer(client.initIndex("records"));
+        Future<String> future = indexer.addObject(new JSONObject().put("name", "a"));
+        try {
+            indexer.close();
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(400, e.getCode());
+        }
+        try {
+            future.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals("Bad request", e.getCause().getMessage());
+        }
+        try {
+            indexer.saveObject(new JSONObject());
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            // missing objectID
+        }
+    }
+
+    @Test
+    public void test05_flushReportsAllFailures() throws AlgoliaException, JSONException, InterruptedException, ExecutionException {
+        BatchClient client = new BatchClient();
+        client.failures = 2;
+        BulkIndexer indexer = new BulkIndexer(client.initIndex("records")).setMaxBatchSize(10).setMaxDelayMS(60000);
+        for (int i = 0; i < 35; ++i) {
+            indexer.saveObject(new JSONObject().put("objectID", String.valueOf(i)));
+        }
+        // the first batches fail, the last one succeeds
+        try {
+            indexer.flush();
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(400, e.getCode());
+            assertEquals("2 batches failed, first error: Record too big", e.getMessage());
+        }
+        assertEquals(2, client.batches.size());
+        // the failures are only reported once
+        Future<String> future = indexer.saveObject(new JSONObject().put("objectID", "a"));
+        indexer.close();
+        assertEquals("103", future.get());
+    }
+
+    @Test
+    public void test06_utf8Bytes() throws AlgoliaException, JSONException, IOException {
+        assertEquals(3, BulkIndexer.utf8Length("abc"));
+        assertEquals(2 + 3 + 4, BulkIndexer.utf8Length("\u00e9\u20ac\ud83d\ude00"));
+
+        BatchClient client = new BatchClient();
+        BulkIndexer indexer = new BulkIndexer(client.initIndex("records")).setMaxDelayMS(60000).setMaxBatchBytes(1000);
+        for (int i = 0; i < 20; ++i) {
+            indexer.saveObject(new JSONObject().put("objectID", String.valueOf(i)).put("text", "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9"));
+        }
+        indexer.close();
+        for (JSONArray batch : client.batches) {
+            assertTrue(batch.toString().getBytes("UTF-8").length < 1000);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CoalescingWriteBufferTest {
+
+    private static class BatchClient extends APIClient {
+        final List<JSONArray> batches = Collections.synchronizedList(new ArrayList<JSONArray>());
+
+        // index of the next batch failing once
+        volatile int failAt = -1;
+        // blocks the batches until opened
+        volatile CountDownLatch gate;
+
+        BatchClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected JSONObject postRequest(String url, String obj, boolean build, boolean search) throws AlgoliaException {
+            assertEquals("/1/indexes/products/batch", url);
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new AlgoliaException("Interrupted");
+                }
+            }
+            if (batches.size() == failAt) {
+                failAt = -1;
+                throw new AlgoliaException("Hosts unreachable: timeout");
+            }
+            try {
+                batches.add(new JSONObject(obj).getJSONArray("requests"));
+                return new JSONObject().put("taskID", batches.size());
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    private static JSONObject increment(String attribute) throws JSONException {
+        return new JSONObject().put("objectID", "3").put(attribute, new JSONObject().put("_operation", "Increment").put("value", 1));
+    }
+
+    @Test
+    public void test01_coalescing() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        CoalescingWriteBuffer buffer = new CoalescingWriteBuffer(client.initIndex("products"));
+        JSONObject product = new JSONObject().put("objectID", "1").put("name", "phone").put("price", 10);
+        buffer.saveObject(product);
+        buffer.partialUpdateObject(new JSONObject().put("objectID", "1").put("price", 12));
+        buffer.partialUpdateObject(new JSONObject().put("objectID", "1").put("stock", 5));
+        // partial updates are merged
+        buffer.partialUpdateObject(new JSONObject().put("objectID", "2").put("price", 1));
+        buffer.partialUpdateObject(new JSONObject().put("objectID", "2").put("price", 2).put("stock", 0));
+        // built-in operations on the same attribute are kept
+        buffer.partialUpdateObject(increment("views"));
+        buffer.partialUpdateObject(increment("views"));
+        buffer.partialUpdateObject(increment("likes"));
+        // the delete replaces the updates, the following partial update recreates the object
+        buffer.saveObject(new JSONObject().put("objectID", "4").put("name", "old"));
+        buffer.deleteObject("4");
+        buffer.deleteObject("5");
+        buffer.partialUpdateObject(new JSONObject().put("objectID", "5").put("name", "new"));
+        buffer.addObject(new JSONObject().put("name", "anonymous"));
+        assertEquals(13, buffer.getReceivedCount());
+        assertEquals(7, buffer.getPendingCount());
+        // the buffer keeps its own copies
+        assertFalse(product.has("stock"));
+
+        assertEquals(Arrays.asList("1"), buffer.flush());
+        assertEquals(0, buffer.getPendingCount());
+        assertEquals(7, buffer.getSentCount());
+        JSONArray actions = client.batches.get(0);
+        assertEquals(7, actions.length());
+        JSONObject first = actions.getJSONObject(0);
+        assertEquals("updateObject", first.getString("action"));
+        assertEquals("1", first.getString("objectID"));
+        assertEquals(12, first.getJSONObject("body").getInt("price"));
+        assertEquals(5, first.getJSONObject("body").getInt("stock"));
+        assertEquals("phone", first.getJSONObject("body").getString("name"));
+        JSONObject second = actions.getJSONObject(1);
+        assertEquals("partialUpdateObject", second.getString("action"));
+        assertEquals(2, second.getJSONObject("body").getInt("price"));
+        assertEquals(0, second.getJSONObject("body").getInt("stock"));
+        assertEquals("partialUpdateObject", actions.getJSONObject(2).getString("action"));
+        assertFalse(actions.getJSONObject(2).getJSONObject("body").has("likes"));
+        assertEquals("Increment", actions.getJSONObject(3).getJSONObject("body").getJSONObject("likes").getString("_operation"));
+        assertEquals("deleteObject", actions.getJSONObject(4).getString("action"));
+        assertEquals("4", actions.getJSONObject(4).getJSONObject("body").getString("objectID"));
+        assertEquals("updateObject", actions.getJSONObject(5).getString("action"));
+        assertEquals("new", actions.getJSONObject(5).getJSONObject("body").getString("name"));
+        assertEquals("addObject", actions.getJSONObject(6).getString("action"));
+
+        assertEquals(0, buffer.flush().size());
+    }
+
+    @Test(timeout = 5000)
+    public void test02_autoFlush() throws AlgoliaException, JSONException, InterruptedException {
+        BatchClient client = new BatchClient();
+        client.gate = new CountDownLatch(1);
+        CoalescingWriteBuffer buffer = new CoalescingWriteBuffer(client.initIndex("products")).setMaxObjects(10).setBatchSize(4);
+        for (int i = 0; i < 10; ++i) {
+            buffer.partialUpdateObject(new JSONObject().put("objectID", String.valueOf(i)).put("count", i));
+        }
+        // the 10th objectID triggers a background flush, the next writes do not wait for it
+        while (buffer.getPendingCount() > 0) {
+            Thread.sleep(10);
+        }
+        for (int i = 10; i < 19; ++i) {
+            buffer.partialUpdateObject(new JSONObject().put("objectID", String.valueOf(i)).put("count", i));
+        }
+        assertEquals(9, buffer.getPendingCount());
+        assertEquals(0, client.batches.size());
+        client.gate.countDown();
+        // the taskIDs of the background flush are returned too
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"), buffer.flush());
+        assertEquals(2, client.batches.get(2).length());
+        assertEquals(1, client.batches.get(5).length());
+        assertEquals(19, buffer.getSentCount());
+    }
+
+    @Test
+    public void test03_failedFlushKeepsUnsentOperations() throws AlgoliaException, JSONException {
+        BatchClient client = new BatchClient();
+        CoalescingWriteBuffer buffer = new CoalescingWriteBuffer(client.initIndex("products")).setBatchSize(2);
+        for (int i = 1; i <= 6; ++i) {
+            buffer.saveObject(new JSONObject().put("objectID", String.valueOf(i)).put("price", i));
+        }
+        // the first batch is sent, the second one fails
+        client.failAt = 1;
+        try {
+            buffer.flush();
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage().startsWith("Hosts unreachable: "));
+        }
+        assertEquals(2, buffer.getSentCount());
+        assertEquals(4, buffer.getPendingCount());
+        // the operations received after the failure are applied after the unsent ones
+        buffer.partialUpdateObject(new JSONObject().put("objectID", "3").put("price", 30));
+        buffer.saveObject(new JSONObject().put("objectID", "7").put("price", 7));
+        assertEquals(5, buffer.getPendingCount());
+
+        // the taskID of the batch sent by the failed flush is returned too
+        assertEquals(Arrays.asList("1", "2", "3", "4"), buffer.flush());
+        assertEquals(7, buffer.getSentCount());
+        assertEquals(4, client.batches.size());
+        JSONObject third = client.batches.get(1).getJSONObject(0);
+        assertEquals("3", third.getString("objectID"));
+        assertEquals(30, third.getJSONObject("body").getInt("price"));
+        assertEquals("7", client.batches.get(3).getJSONObject(0).getString("objectID"));
+    }
+
+    @Test(timeout = 5000)
+    public void test04_failedAutoFlush() throws AlgoliaException, JSONException, InterruptedException {
+        BatchClient client = new BatchClient();
+        client.failAt = 0;
+        CoalescingWriteBuffer buffer = new CoalescingWriteBuffer(client.initIndex("products")).setMaxObjects(10).setBatchSize(4);
+        for (int i = 0; i < 10; ++i) {
+            buffer.saveObject(new JSONObject().put("objectID", String.valueOf(i)).put("price", i));
+        }
+        // the error of the background flush is thrown by a next write
+        while (true) {
+            try {
+                buffer.saveObject(new JSONObject().put("objectID", "0").put("price", 0));
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage().startsWith("Hosts unreachable: "));
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(10, buffer.getPendingCount());
+        assertEquals(Arrays.asList("1", "2", "3"), buffer.flush());
+        assertEquals(10, buffer.getSentCount());
+    }
+}
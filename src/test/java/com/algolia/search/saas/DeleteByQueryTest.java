@@ -0,0 +1,151 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DeleteByQueryTest {
+
+    /**
+     * Fake index of 2500 records browsed by pages of 1000 hits, records the deleted objectIDs and the waited tasks
+     */
+    private static class DeleteClient extends APIClient {
+        final Set<String> deleted = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> browsed = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> waitedTasks = Collections.synchronizedList(new ArrayList<String>());
+        final int failAt;
+        volatile boolean rejectDeletes;
+        int taskID;
+
+        DeleteClient(int failAt) {
+            super("appID", "apiKey");
+            this.failAt = failAt;
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            try {
+                if (url.contains("/task/")) {
+                    waitedTasks.add(url.substring(url.lastIndexOf('/') + 1));
+                    return new JSONObject().put("status", "published");
+                }
+                String decoded = URLDecoder.decode(url, "UTF-8");
+                browsed.add(decoded);
+                int start = decoded.contains("cursor=") ? Integer.parseInt(decoded.substring(decoded.indexOf("cursor=") + 7)) : 0;
+                if (start >= failAt) {
+                    throw new AlgoliaException(500, "failure");
+                }
+                JSONArray hits = new JSONArray();
+                int end = Math.min(start + 1000, 2500);
+                for (int id = start; id < end; ++id) {
+                    hits.put(new JSONObject().put("objectID", String.valueOf(id)));
+                }
+                JSONObject page = new JSONObject().put("hits", hits);
+                if (end < 2500) {
+                    page.put("cursor", String.valueOf(end));
+                }
+                return page;
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+            if (rejectDeletes) {
+                throw new AlgoliaException(403, "Method not allowed with this API key");
+            }
+            try {
+                JSONArray requests = new JSONObject(EntityUtils.toString(entity, "UTF-8")).getJSONArray("requests");
+                for (int i = 0; i < requests.length(); ++i) {
+                    assertEquals("deleteObject", requests.getJSONObject(i).getString("action"));
+                    deleted.add(requests.getJSONObject(i).getJSONObject("body").getString("objectID"));
+                }
+                synchronized (this) {
+                    return new JSONObject().put("taskID", ++taskID);
+                }
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_deleteAndWaitOnce() throws AlgoliaException {
+        DeleteClient client = new DeleteClient(Integer.MAX_VALUE);
+        Query query = new Query("San");
+        client.initIndex("cities").deleteByQuery(query);
+        assertEquals(2500, client.deleted.size());
+        assertEquals(3, client.browsed.size());
+        assertTrue(client.browsed.get(0).contains("attributes=objectID"));
+        assertTrue(client.browsed.get(0).contains("query=San"));
+        // only the last task is waited
+        assertEquals(1, client.waitedTasks.size());
+        assertEquals("3", client.waitedTasks.get(0));
+        // the query of the caller is not modified
+        assertFalse(query.getQueryString().contains("attributes="));
+    }
+
+    @Test
+    public void test02_async() throws AlgoliaException {
+        DeleteClient client = new DeleteClient(Integer.MAX_VALUE);
+        BatchUploader.Result result = client.initIndex("cities").deleteByQueryAsync(new Query(), 2);
+        assertTrue(result.isSuccessful());
+        assertEquals(2500, result.getCount());
+        assertEquals(3, result.getTaskIDs().size());
+        assertTrue(client.waitedTasks.isEmpty());
+    }
+
+    @Test
+    public void test03_browseError() {
+        DeleteClient client = new DeleteClient(2000);
+        try {
+            client.initIndex("cities").deleteByQuery(new Query());
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(500, e.getCode());
+        }
+        assertTrue(client.waitedTasks.isEmpty());
+    }
+
+    @Test
+    public void test04_deletionErrors() {
+        DeleteClient client = new DeleteClient(Integer.MAX_VALUE);
+        client.rejectDeletes = true;
+        try {
+            client.initIndex("cities").deleteByQuery(new Query());
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(403, e.getCode());
+            assertEquals("Cannot delete 3 chunks of objects, first error: Method not allowed with this API key", e.getMessage());
+        }
+        assertTrue(client.waitedTasks.isEmpty());
+    }
+}
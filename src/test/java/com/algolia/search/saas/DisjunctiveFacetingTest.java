@@ -0,0 +1,100 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DisjunctiveFacetingTest {
+
+    /**
+     * Answers each query with the facet requested by the query and records the sent parameters
+     */
+    private static class RecordingClient extends APIClient {
+        final List<List<String>> calls = new ArrayList<List<String>>();
+
+        RecordingClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        JSONObject multipleQueries(List<String> indexNames, List<String> paramsStrings, String strategy) throws AlgoliaException {
+            calls.add(paramsStrings);
+            try {
+                JSONArray results = new JSONArray();
+                for (String params : paramsStrings) {
+                    JSONObject facets = new JSONObject();
+                    for (String facet : new String[]{"brand", "color"}) {
+                        if (params.contains("facets=%5B%22" + facet)) {
+                            facets.put(facet, new JSONObject().put("x", 1));
+                        }
+                    }
+                    results.put(new JSONObject().put("nbHits", 1).put("facets", facets));
+                }
+                return new JSONObject().put("results", results);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_onlyModifiedFacetsAreSent() throws AlgoliaException, JSONException {
+        RecordingClient client = new RecordingClient();
+        DisjunctiveFaceting faceting = new DisjunctiveFaceting(client.initIndex("products"), new Query("phone"), Arrays.asList("brand", "color"));
+
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("brand", Arrays.asList("Apple", "Samsung"));
+        refinements.put("category", Arrays.asList("Phones & Tablets"));
+        JSONObject answer = faceting.search(refinements);
+        assertEquals(1, client.calls.size());
+        List<String> params = client.calls.get(0);
+        assertEquals(3, params.size());
+        assertEquals("query=phone&facetFilters=%28brand%3AApple%2Cbrand%3ASamsung%29%2Ccategory%3APhones+%26+Tablets", params.get(0));
+        assertTrue(params.get(1).endsWith("&facetFilters=category%3APhones+%26+Tablets"));
+        assertTrue(params.get(1).contains("hitsPerPage=0"));
+        assertTrue(params.get(2).endsWith("&facetFilters=%28brand%3AApple%2Cbrand%3ASamsung%29%2Ccategory%3APhones+%26+Tablets"));
+        // refined values without hits are added with a 0 count
+        JSONObject brand = answer.getJSONObject("disjunctiveFacets").getJSONObject("brand");
+        assertEquals(1, brand.getInt("x"));
+        assertEquals(0, brand.getInt("Apple"));
+        assertEquals(0, brand.getInt("Samsung"));
+
+        // toggling a brand only modifies the main query and the color query
+        refinements.put("brand", Arrays.asList("Apple"));
+        answer = faceting.search(refinements);
+        assertEquals(2, client.calls.get(1).size());
+        assertTrue(client.calls.get(1).get(1).contains("facets=%5B%22color%22%5D"));
+        brand = answer.getJSONObject("disjunctiveFacets").getJSONObject("brand");
+        assertEquals(0, brand.getInt("Apple"));
+        assertTrue(!brand.has("Samsung"));
+
+        faceting.clearCache();
+        faceting.search(refinements);
+        assertEquals(3, client.calls.get(2).size());
+    }
+
+    @Test
+    public void test02_indexMethod() throws AlgoliaException, JSONException {
+        RecordingClient client = new RecordingClient();
+        JSONObject answer = client.initIndex("products").searchDisjunctiveFaceting(new Query(), Arrays.asList("color"));
+        assertEquals(2, client.calls.get(0).size());
+        assertEquals("", client.calls.get(0).get(0));
+        assertEquals(1, answer.getJSONObject("disjunctiveFacets").getJSONObject("color").getInt("x"));
+    }
+}
@@ -0,0 +1,92 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FilterTest {
+
+    private static void assertInvalid(Runnable builder) {
+        try {
+            builder.run();
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test01_leaves() {
+        assertEquals("category:\"Book\"", Filter.facet("category", "Book").toString());
+        assertEquals("author:\"John \\\"JD\\\" Doe\"", Filter.facet("author", "John \"JD\" Doe").toString());
+        assertEquals("\"my attr\":\"a\\\\b\"", Filter.facet("my attr", "a\\b").toString());
+        assertEquals("_tags:\"public\"", Filter.tag("public").toString());
+        assertEquals("price >= 10.5", Filter.numeric("price", ">=", 10.5).toString());
+        assertEquals("date:1441745506 TO 1441755506", Filter.range("date", 1441745506, 1441755506).toString());
+        assertEquals("NOT category:\"Ebook\"", Filter.not(Filter.facet("category", "Ebook")).toString());
+    }
+
+    @Test
+    public void test02_groups() {
+        Filter tenant = Filter.facet("tenant", "42");
+        Filter visibility = Filter.or(Filter.tag("public"), Filter.tag("user_1"));
+        Filter filter = Filter.and(Filter.and(tenant, visibility), Filter.numeric("stock", ">", 0),
+                Filter.or(Filter.facet("category", "Book"), Filter.not(Filter.facet("category", "Ebook"))));
+        assertEquals("tenant:\"42\" AND (_tags:\"public\" OR _tags:\"user_1\") AND stock > 0 AND (category:\"Book\" OR NOT category:\"Ebook\")", filter.toString());
+        assertSame(filter.toString(), filter.toString());
+        assertSame(tenant, Filter.and(tenant));
+        assertEquals(Filter.or(Filter.tag("a"), Filter.or(Filter.tag("b"), Filter.tag("c"))), Filter.or(Filter.tag("a"), Filter.tag("b"), Filter.tag("c")));
+
+        Query query = new Query().setFilter(filter);
+        assertEquals(filter.toString(), query.filters);
+        query.setFilter(null);
+        assertEquals("", query.getQueryString());
+    }
+
+    @Test
+    public void test03_validation() {
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.or(Filter.tag("a"), Filter.numeric("price", ">", 1));
+            }
+        });
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.or(Filter.tag("a"), Filter.and(Filter.tag("b"), Filter.tag("c")));
+            }
+        });
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.not(Filter.and(Filter.tag("b"), Filter.tag("c")));
+            }
+        });
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.and();
+            }
+        });
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.numeric("price", "<>", 1);
+            }
+        });
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.range("price", 2, 1);
+            }
+        });
+        assertInvalid(new Runnable() {
+            public void run() {
+                Filter.facet("", "a");
+            }
+        });
+    }
+}
@@ -0,0 +1,126 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class GetObjectsTest {
+
+    /**
+     * Answers the objects with an even objectID, null for the odd ones, and records the request bodies
+     */
+    private static class ObjectsClient extends APIClient {
+        final List<JSONArray> requests = Collections.synchronizedList(new ArrayList<JSONArray>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile int maxInFlight;
+        volatile boolean fail;
+
+        ObjectsClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected JSONObject postRequest(String url, String obj, boolean build, boolean search) throws AlgoliaException {
+            assertEquals("/1/indexes/*/objects", url);
+            int current = inFlight.incrementAndGet();
+            synchronized (this) {
+                maxInFlight = Math.max(maxInFlight, current);
+            }
+            try {
+                Thread.sleep(20);
+                if (fail) {
+                    throw new AlgoliaException(500, "failure");
+                }
+                JSONArray body = new JSONObject(obj).getJSONArray("requests");
+                requests.add(body);
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < body.length(); ++i) {
+                    int id = Integer.parseInt(body.getJSONObject(i).getString("objectID"));
+                    results.put(id % 2 == 0 ? new JSONObject().put("objectID", String.valueOf(id)) : JSONObject.NULL);
+                }
+                return new JSONObject().put("results", results);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (InterruptedException e) {
+                throw new AlgoliaException(e.getMessage());
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = count - 1; i >= 0; --i) {
+            ids.add(String.valueOf(i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void test01_chunksInOrder() throws AlgoliaException, JSONException {
+        ObjectsClient client = new ObjectsClient();
+        List<String> ids = ids(550);
+        List<JSONObject> objects = client.initIndex("products").getObjects(ids, Arrays.asList("name", "price"), 100, 3);
+        assertEquals(550, objects.size());
+        for (int i = 0; i < ids.size(); ++i) {
+            int id = Integer.parseInt(ids.get(i));
+            if (id % 2 == 0) {
+                assertEquals(ids.get(i), objects.get(i).getString("objectID"));
+            } else {
+                assertNull(objects.get(i));
+            }
+        }
+        assertEquals(6, client.requests.size());
+        assertTrue(client.maxInFlight > 1 && client.maxInFlight <= 3);
+        for (JSONArray body : client.requests) {
+            assertTrue(body.length() <= 100);
+            assertEquals("name,price", body.getJSONObject(0).getString("attributesToRetrieve"));
+            assertEquals("products", body.getJSONObject(0).getString("indexName"));
+        }
+    }
+
+    @Test
+    public void test02_notFoundCache() throws AlgoliaException {
+        ObjectsClient client = new ObjectsClient();
+        Index index = client.initIndex("products");
+        index.enableNotFoundCache(100, 60000);
+        assertNull(index.getObjects(Arrays.asList("1", "2"), null).get(0));
+        assertTrue(!client.requests.get(0).toString().contains("attributesToRetrieve"));
+        // the missing object is not requested again
+        List<JSONObject> objects = index.getObjects(Arrays.asList("1", "4"), null);
+        assertNull(objects.get(0));
+        assertEquals("4", objects.get(1).optString("objectID"));
+        assertEquals(1, client.requests.get(1).length());
+    }
+
+    @Test
+    public void test03_errors() {
+        ObjectsClient client = new ObjectsClient();
+        client.fail = true;
+        try {
+            client.initIndex("products").getObjects(ids(300), null, 100, 2);
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(500, e.getCode());
+        }
+    }
+}
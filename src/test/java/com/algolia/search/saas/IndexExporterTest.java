@@ -0,0 +1,168 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class IndexExporterTest {
+
+    /**
+     * Fake index of 95 records browsed by pages of 10 hits, the cursor is the id of the next hit
+     */
+    private static class BrowseClient extends APIClient {
+        int failAt = Integer.MAX_VALUE;
+        int pages;
+
+        BrowseClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        String getRequestRaw(String url, boolean search) throws AlgoliaException {
+            ++pages;
+            int start = url.contains("cursor=") ? Integer.parseInt(url.substring(url.indexOf("cursor=") + 7)) : 0;
+            if (start >= failAt) {
+                throw new AlgoliaException(500, "failure");
+            }
+            StringBuilder answer = new StringBuilder("{\"page\": 0, \"hits\": [\n");
+            int end = Math.min(start + 10, 95);
+            for (int id = start; id < end; ++id) {
+                answer.append(id > start ? ",\n  " : "  ").append("{\"objectID\": \"").append(id).append("\", \"name\": \"a \\\"quoted\\\" [name]\",\n \"tags\": [1, {\"a\": null}]}");
+            }
+            answer.append("],\n \"processingTimeMS\": 1");
+            if (end < 95) {
+                answer.append(", \"cursor\": \"").append(end).append("\"");
+            }
+            return answer.append("}").toString();
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            assertEquals("/1/indexes/records/settings", url);
+            try {
+                return new JSONObject().put("attributesToIndex", "name");
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    private static List<JSONObject> readLines(BufferedReader reader) throws IOException, JSONException {
+        List<JSONObject> records = new ArrayList<JSONObject>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            records.add(new JSONObject(line));
+        }
+        reader.close();
+        return records;
+    }
+
+    private static void assertRecords(List<JSONObject> records) throws JSONException {
+        assertEquals(95, records.size());
+        for (int i = 0; i < records.size(); ++i) {
+            assertEquals(String.valueOf(i), records.get(i).getString("objectID"));
+            assertEquals("a \"quoted\" [name]", records.get(i).getString("name"));
+        }
+    }
+
+    @Test
+    public void test01_scanner() throws AlgoliaException, IOException {
+        final List<String> hits = new ArrayList<String>();
+        JsonScanner.ElementHandler handler = new JsonScanner.ElementHandler() {
+            @Override
+            public void onElement(String json, int start, int end) {
+                hits.add(json.substring(start, end));
+            }
+        };
+        assertEquals("a\"b/é", JsonScanner.scanBrowseAnswer("{\"nbHits\":2.5e3,\"cursor\":\"a\\\"b\\/\\u00e9\",\"hits\":[{\"x\":[true,false]}, \"s\" ]}", handler));
+        assertEquals("{\"x\":[true,false]}", hits.get(0));
+        assertEquals("\"s\"", hits.get(1));
+        assertNull(JsonScanner.scanBrowseAnswer(" { \"hits\" : [ ] } ", handler));
+        assertEquals(2, hits.size());
+        try {
+            JsonScanner.scanBrowseAnswer("{\"hits\":[{\"x\":1}", handler);
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage().startsWith("JSON decode error"));
+        }
+    }
+
+    @Test
+    public void test02_stream() throws AlgoliaException, IOException, JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(95, new IndexExporter(new BrowseClient().initIndex("records")).export(out));
+        assertRecords(readLines(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), "UTF-8"))));
+    }
+
+    @Test
+    public void test03_resume() throws AlgoliaException, IOException, JSONException {
+        File file = File.createTempFile("export", ".ndjson.gz");
+        try {
+            BrowseClient client = new BrowseClient();
+            client.failAt = 45;
+            IndexExporter exporter = new IndexExporter(client.initIndex("records")).setCheckpointInterval(2);
+            try {
+                exporter.export(file);
+                fail("AlgoliaException expected");
+            } catch (AlgoliaException e) {
+                assertEquals(500, e.getCode());
+            }
+            // pages 0 to 3 are checkpointed, page 4 was written but is dropped by the resume
+            JSONObject checkpoint = new JSONObject(new BufferedReader(new InputStreamReader(new FileInputStream(IndexExporter.getCheckpointFile(file)), "UTF-8")).readLine());
+            assertEquals("40", checkpoint.getString("cursor"));
+            assertEquals(40, checkpoint.getLong("records"));
+            assertTrue(IndexExporter.getSettingsFile(file).exists());
+
+            client.failAt = Integer.MAX_VALUE;
+            client.pages = 0;
+            assertEquals(95, exporter.export(file));
+            assertEquals(6, client.pages);
+            assertFalse(IndexExporter.getCheckpointFile(file).exists());
+            assertRecords(readLines(new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8"))));
+
+
+            // a checkpoint cannot be resumed with other browse parameters
+            client.failAt = 45;
+            try {
+                exporter.export(file);
+                fail("AlgoliaException expected");
+            } catch (AlgoliaException e) {
+                assertEquals(500, e.getCode());
+            }
+            client.failAt = Integer.MAX_VALUE;
+            try {
+                new IndexExporter(client.initIndex("records")).setQuery(new Query("other")).export(file);
+                fail("AlgoliaException expected");
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage().contains("other browse parameters"));
+            }
+            IndexExporter.getCheckpointFile(file).delete();
+        } finally {
+            file.delete();
+            IndexExporter.getSettingsFile(file).delete();
+        }
+    }
+}
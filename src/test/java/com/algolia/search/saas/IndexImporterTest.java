@@ -0,0 +1,160 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class IndexImporterTest {
+
+    /**
+     * Records the batches and answers with increasing taskIDs
+     */
+    private static class BatchClient extends APIClient {
+        final List<JSONArray> batches = Collections.synchronizedList(new ArrayList<JSONArray>());
+        final List<String> waitedTasks = Collections.synchronizedList(new ArrayList<String>());
+        long maxLength;
+        int failAt = Integer.MAX_VALUE;
+        volatile boolean crash;
+
+        BatchClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+            assertEquals("/1/indexes/records/batch", url);
+            maxLength = Math.max(maxLength, entity.getContentLength());
+            try {
+                JSONArray requests = new JSONObject(EntityUtils.toString(entity, "UTF-8")).getJSONArray("requests");
+                synchronized (batches) {
+                    if (batches.size() >= failAt) {
+                        if (crash) {
+                            throw new IllegalStateException("Connection pool shut down");
+                        }
+                        throw new AlgoliaException(400, "Record too big");
+                    }
+                    batches.add(requests);
+                    return new JSONObject().put("taskID", 100 + batches.size());
+                }
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            waitedTasks.add(url);
+            try {
+                return new JSONObject().put("status", "published");
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] records(int count) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            builder.append("{\"objectID\":\"").append(i).append("\",\"name\":\"é ").append(i).append("\"}").append(i % 2 == 0 ? "\r\n" : "\n");
+            if (i % 10 == 0) {
+                builder.append("  \n");
+            }
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static void assertImported(List<JSONArray> batches, int count) throws JSONException {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (JSONArray batch : batches) {
+            for (int i = 0; i < batch.length(); ++i) {
+                JSONObject request = batch.getJSONObject(i);
+                assertEquals("updateObject", request.getString("action"));
+                int id = request.getJSONObject("body").getInt("objectID");
+                assertEquals("é " + id, request.getJSONObject("body").getString("name"));
+                ids.add(id);
+            }
+        }
+        Collections.sort(ids);
+        assertEquals(count, ids.size());
+        for (int i = 0; i < count; ++i) {
+            assertEquals(i, (int) ids.get(i));
+        }
+    }
+
+    @Test
+    public void test01_plain() throws AlgoliaException, IOException, JSONException {
+        BatchClient client = new BatchClient();
+        assertEquals(250, new IndexImporter(client.initIndex("records")).setBatchSize(100).setParallelism(2).importStream(new ByteArrayInputStream(records(250))));
+        assertEquals(3, client.batches.size());
+        assertImported(client.batches, 250);
+        assertEquals(Collections.singletonList("/1/indexes/records/task/103"), client.waitedTasks);
+    }
+
+    @Test
+    public void test02_gzipAndSize() throws AlgoliaException, IOException, JSONException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(records(500));
+        gzip.close();
+        BatchClient client = new BatchClient();
+        assertEquals(500, new IndexImporter(client.initIndex("records")).setMaxBatchBytes(2000).setWaitForTasks(false)
+                .importStream(new ByteArrayInputStream(compressed.toByteArray())));
+        assertTrue(client.batches.size() > 10);
+        assertTrue(client.maxLength <= 2000);
+        assertImported(client.batches, 500);
+        assertTrue(client.waitedTasks.isEmpty());
+
+        client = new BatchClient();
+        assertEquals(0, new IndexImporter(client.initIndex("records")).importStream(new ByteArrayInputStream(new byte[0])));
+        assertTrue(client.batches.isEmpty());
+    }
+
+    @Test
+    public void test03_errors() throws IOException {
+        BatchClient client = new BatchClient();
+        try {
+            new IndexImporter(client.initIndex("records")).importStream(new ByteArrayInputStream("{\"a\":1}\n\n[1]\n".getBytes("UTF-8")));
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals("Invalid record at line 3: not a JSON object", e.getMessage());
+        }
+        client.failAt = 2;
+        try {
+            new IndexImporter(client.initIndex("records")).setBatchSize(10).importStream(new ByteArrayInputStream(records(1000)));
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(400, e.getCode());
+        }
+        client.crash = true;
+        try {
+            new IndexImporter(client.initIndex("records")).setBatchSize(10).importStream(new ByteArrayInputStream(records(100)));
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage().contains("Connection pool shut down"));
+        }
+        assertTrue(client.waitedTasks.isEmpty());
+    }
+}
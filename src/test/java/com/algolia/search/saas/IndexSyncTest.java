@@ -0,0 +1,187 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class IndexSyncTest {
+
+    /**
+     * Records the sent requests, fails the batches containing the objectID "bad"
+     */
+    private static class BatchClient extends APIClient {
+        final List<JSONObject> requests = Collections.synchronizedList(new ArrayList<JSONObject>());
+
+        BatchClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+            try {
+                JSONArray batch = new JSONObject(EntityUtils.toString(entity, "UTF-8")).getJSONArray("requests");
+                if (batch.toString().contains("\"bad\"")) {
+                    throw new AlgoliaException(400, "Bad object");
+                }
+                for (int i = 0; i < batch.length(); ++i) {
+                    requests.add(batch.getJSONObject(i));
+                }
+                return new JSONObject().put("taskID", requests.size());
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+
+        int count(String action) throws JSONException {
+            int count = 0;
+            for (JSONObject request : requests) {
+                if (request.getString("action").equals(action)) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static List<JSONObject> catalog(int count) throws JSONException {
+        List<JSONObject> records = new ArrayList<JSONObject>();
+        for (int i = 0; i < count; ++i) {
+            records.add(new JSONObject().put("objectID", String.valueOf(i)).put("name", "product " + i).put("price", i)
+                    .put("tags", new JSONArray().put("a").put(i % 2 == 0)));
+        }
+        return records;
+    }
+
+    @Test
+    public void test01_contentHash() throws JSONException {
+        JSONObject a = new JSONObject("{\"objectID\":\"1\",\"name\":\"x\",\"nested\":{\"a\":1,\"b\":[1,2.5,null]}}");
+        JSONObject b = new JSONObject("{\"nested\":{\"b\":[1,2.5,null],\"a\":1},\"name\":\"x\",\"objectID\":\"1\"}");
+        assertEquals(IndexSync.contentHash(a), IndexSync.contentHash(b));
+        assertFalse(IndexSync.contentHash(a) == IndexSync.contentHash(new JSONObject("{\"objectID\":\"1\",\"name\":\"x\",\"nested\":{\"a\":\"1\",\"b\":[1,2.5,null]}}")));
+        assertFalse(IndexSync.contentHash(a) == IndexSync.contentHash(new JSONObject("{\"objectID\":\"1\",\"name\":\"x\",\"nested\":{\"a\":1,\"b\":[2.5,1,null]}}")));
+    }
+
+    @Test
+    public void test02_sync() throws AlgoliaException, IOException, JSONException {
+        File store = File.createTempFile("sync", ".store");
+        store.delete();
+        try {
+            BatchClient client = new BatchClient();
+            Index index = client.initIndex("products");
+            IndexSync.Result result = new IndexSync(index, store).setUploader(new BatchUploader(index).setChunkSize(30)).sync(catalog(5000).iterator());
+            assertTrue(result.isSuccessful());
+            assertEquals(5000, result.getUpsertedCount());
+            assertEquals(5000, client.count("updateObject"));
+
+            List<JSONObject> records = catalog(5000);
+            records.get(10).put("price", 11);
+            records.get(20).put("name", "renamed");
+            records.remove(4000);
+            records.remove(300);
+            records.remove(30);
+            records.add(new JSONObject().put("objectID", "new"));
+            records.add(new JSONObject().put("name", "without objectID"));
+            // the attribute order does not matter
+            records.set(0, new JSONObject().put("tags", new JSONArray().put("a").put(true)).put("price", 0).put("name", "product 0").put("objectID", "0"));
+
+            client = new BatchClient();
+            index = client.initIndex("products");
+            IndexSync sync = new IndexSync(index, store);
+            assertEquals(5000, sync.size());
+            result = sync.sync(records.iterator());
+            assertEquals(4995, result.getUnchangedCount());
+            assertEquals(3, result.getUpsertedCount());
+            assertEquals(3, result.getDeletedCount());
+            assertEquals(1, result.getInvalidCount());
+            assertEquals(3, client.count("updateObject"));
+            assertEquals(3, client.count("deleteObject"));
+            assertEquals(4998, sync.size());
+            assertEquals(4998, new IndexSync(index, store).size());
+        } finally {
+            store.delete();
+        }
+    }
+
+    @Test
+    public void test03_failedChanges() throws AlgoliaException, IOException, JSONException {
+        File store = File.createTempFile("sync", ".store");
+        store.delete();
+        try {
+            BatchClient client = new BatchClient();
+            Index index = client.initIndex("products");
+            List<JSONObject> records = catalog(10);
+            records.add(new JSONObject().put("objectID", "bad"));
+            IndexSync sync = new IndexSync(index, store).setUploader(new BatchUploader(index).setChunkSize(4));
+            IndexSync.Result result = sync.sync(records.iterator());
+            assertFalse(result.isSuccessful());
+            assertEquals(8, result.getUpsertedCount());
+            assertEquals(8, sync.size());
+            assertEquals(1, result.getUpsertErrors().size());
+
+            // the records of the failed chunk are sent again
+            client.requests.clear();
+            records.remove(10);
+            result = sync.sync(records.iterator());
+            assertTrue(result.isSuccessful());
+            assertEquals(2, result.getUpsertedCount());
+            assertEquals(2, client.requests.size());
+            assertEquals(10, sync.size());
+        } finally {
+            store.delete();
+        }
+    }
+
+    @Test
+    public void test04_storeReuse() throws AlgoliaException, IOException, JSONException {
+        File store = File.createTempFile("sync", ".store");
+        store.delete();
+        try {
+            BatchClient client = new BatchClient();
+            Index index = client.initIndex("products");
+            List<JSONObject> records = new ArrayList<JSONObject>();
+            for (int i = 0; i < 3000; ++i) {
+                records.add(new JSONObject().put("objectID", "caf\u00e9-\u20ac-" + i).put("price", i));
+            }
+            IndexSync sync = new IndexSync(index, store);
+            sync.sync(records.iterator());
+            // most objectIDs are removed then new ones are added, the store reuses the space of the removed ones
+            IndexSync.Result result = sync.sync(records.subList(0, 500).iterator());
+            assertEquals(2500, result.getDeletedCount());
+            records = new ArrayList<JSONObject>(records.subList(0, 500));
+            for (int i = 0; i < 2000; ++i) {
+                records.add(new JSONObject().put("objectID", "new-" + i));
+            }
+            result = sync.sync(records.iterator());
+            assertEquals(500, result.getUnchangedCount());
+            assertEquals(2000, result.getUpsertedCount());
+
+            client = new BatchClient();
+            result = new IndexSync(client.initIndex("products"), store).sync(records.iterator());
+            assertEquals(2500, result.getUnchangedCount());
+            assertEquals(0, client.requests.size());
+        } finally {
+            store.delete();
+        }
+    }
+}
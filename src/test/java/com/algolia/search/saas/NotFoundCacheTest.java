@@ -0,0 +1,162 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class NotFoundCacheTest {
+
+    /**
+     * Answers the objects of the existing set and 404 for the others, counts the object lookups
+     */
+    private static class ObjectClient extends APIClient {
+        final Set<String> existing = Collections.synchronizedSet(new HashSet<String>());
+        int lookups;
+
+        ObjectClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            ++lookups;
+            String objectID = url.substring("/1/indexes/products/".length()).split("\\?")[0];
+            if (!existing.contains(objectID)) {
+                throw new AlgoliaException(404, "ObjectID does not exist");
+            }
+            return answer("objectID", objectID);
+        }
+
+        @Override
+        protected JSONObject putRequest(String url, String obj, boolean build) throws AlgoliaException {
+            return answer("taskID", 1);
+        }
+
+        @Override
+        protected JSONObject postRequest(String url, String obj, boolean build, boolean search) throws AlgoliaException {
+            return answer("taskID", 1);
+        }
+
+        @Override
+        JSONObject postRequest(String url, HttpEntity entity, boolean build, int firstHost) throws AlgoliaException {
+            return answer("taskID", 1);
+        }
+
+        private static JSONObject answer(String key, Object value) throws AlgoliaException {
+            try {
+                return new JSONObject().put(key, value);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_missesAreCached() throws AlgoliaException {
+        ObjectClient client = new ObjectClient();
+        Index index = client.initIndex("products");
+        index.enableNotFoundCache(100, 60000);
+        assertNull(index.getObject("1"));
+        assertNull(index.getObject("1"));
+        assertEquals(1, client.lookups);
+        try {
+            index.getObject("1", Arrays.asList("name"));
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(404, e.getCode());
+        }
+        assertEquals(1, client.lookups);
+
+        // without cache, each lookup is sent
+        index.disableNotFoundCache();
+        assertNull(index.getObject("1"));
+        assertEquals(2, client.lookups);
+    }
+
+    @Test
+    public void test02_expirationAndSize() throws AlgoliaException, InterruptedException {
+        ObjectClient client = new ObjectClient();
+        Index index = client.initIndex("products");
+        index.enableNotFoundCache(2, 50);
+        assertNull(index.getObject("1"));
+        Thread.sleep(100);
+        assertNull(index.getObject("1"));
+        assertEquals(2, client.lookups);
+
+        index.enableNotFoundCache(2, 60000);
+        assertNull(index.getObject("1"));
+        assertNull(index.getObject("2"));
+        assertNull(index.getObject("3"));
+        assertEquals(5, client.lookups);
+        // the least recently used objectID is evicted
+        assertNull(index.getObject("3"));
+        assertNull(index.getObject("1"));
+        assertEquals(6, client.lookups);
+    }
+
+    @Test
+    public void test03_writesInvalidate() throws AlgoliaException, JSONException {
+        ObjectClient client = new ObjectClient();
+        Index index = client.initIndex("products");
+        index.enableNotFoundCache(100, 60000);
+        for (String objectID : new String[]{"1", "2", "3", "4", "5"}) {
+            assertNull(index.getObject(objectID));
+        }
+        client.existing.addAll(Arrays.asList("1", "2", "3", "4", "5"));
+
+        index.saveObject(new JSONObject().put("name", "phone"), "1");
+        assertEquals("1", index.getObject("1").getString("objectID"));
+        index.batch(Arrays.asList(new JSONObject().put("action", "updateObject").put("body", new JSONObject().put("objectID", "2"))));
+        assertEquals("2", index.getObject("2").getString("objectID"));
+        // the bulk methods only forget their objectIDs
+        index.saveObjects(Arrays.asList(new JSONObject().put("objectID", "3")));
+        assertEquals("3", index.getObject("3").getString("objectID"));
+        int lookups = client.lookups;
+        assertNull(index.getObject("4"));
+        assertEquals(lookups, client.lookups);
+
+        // an encoded batch clears the whole cache
+        index.batch(new StringEntity("{\"requests\":[]}", ContentType.APPLICATION_JSON));
+        assertEquals("4", index.getObject("4").getString("objectID"));
+        assertEquals("5", index.getObject("5").getString("objectID"));
+        assertEquals(lookups + 2, client.lookups);
+    }
+
+    @Test
+    public void test04_unpublishedWrites() throws AlgoliaException, JSONException {
+        ObjectClient client = new ObjectClient();
+        Index index = client.initIndex("products");
+        index.enableNotFoundCache(100, 60000);
+        // the object is saved but its task is not published yet
+        index.saveObject(new JSONObject().put("name", "phone"), "1");
+        assertNull(index.getObject("1"));
+        client.existing.add("1");
+        assertEquals("1", index.getObject("1").getString("objectID"));
+        assertEquals(2, client.lookups);
+
+        // same with the objectIDs unknown
+        index.batch(new StringEntity("{\"requests\":[]}", ContentType.APPLICATION_JSON));
+        assertNull(index.getObject("2"));
+        client.existing.add("2");
+        assertEquals("2", index.getObject("2").getString("objectID"));
+        assertEquals(4, client.lookups);
+    }
+}
@@ -0,0 +1,159 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ParallelBrowserTest {
+    private static final Pattern RANGE = Pattern.compile("id:(\\d+) TO (\\d+)");
+
+    /**
+     * Fake index of 300 records with ids from 0 to 299, browsed by pages of 40 hits
+     */
+    private static class BrowseClient extends APIClient {
+        final int failAt;
+
+        BrowseClient(int failAt) {
+            super("appID", "apiKey");
+            this.failAt = failAt;
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            try {
+                String decoded = URLDecoder.decode(url, "UTF-8");
+                Matcher matcher = RANGE.matcher(decoded);
+                assertTrue(matcher.find());
+                assertTrue(decoded.contains("(visible:\"1\") AND id:"));
+                int lower = Integer.parseInt(matcher.group(1));
+                int upper = Integer.parseInt(matcher.group(2));
+                int start = decoded.contains("cursor=") ? Integer.parseInt(decoded.substring(decoded.indexOf("cursor=") + 7)) : lower;
+                if (start >= failAt) {
+                    // fail after the previous hits are consumed
+                    Thread.sleep(50);
+                    throw new AlgoliaException(500, "failure");
+                }
+                JSONArray hits = new JSONArray();
+                int end = Math.min(start + 40, upper + 1);
+                for (int id = start; id < end; ++id) {
+                    hits.put(new JSONObject().put("objectID", String.valueOf(id)));
+                }
+                JSONObject page = new JSONObject().put("hits", hits);
+                if (end <= upper) {
+                    page.put("cursor", String.valueOf(end));
+                }
+                return page;
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_partitions() {
+        assertEquals(Arrays.asList("id:0 TO 99", "id:100 TO 199", "id:200 TO 299"), ParallelBrowser.numericRangePartitions("id", 0, 299, 3));
+        assertEquals(Arrays.asList("id:0 TO 0", "id:1 TO 1"), ParallelBrowser.numericRangePartitions("id", 0, 1, 5));
+        assertEquals(Arrays.asList("id:9007199254740993 TO 9007199254740993", "id:9007199254740994 TO 9007199254740994"),
+                ParallelBrowser.numericRangePartitions("id", 9007199254740993L, 9007199254740994L, 2));
+        assertEquals(Arrays.asList("id:-9223372036854775808 TO -1", "id:0 TO 9223372036854775807"),
+                ParallelBrowser.numericRangePartitions("id", Long.MIN_VALUE, Long.MAX_VALUE, 2));
+        assertEquals(Arrays.asList("color:\"red\"", "color:\"blue\"", "NOT color:\"red\" AND NOT color:\"blue\""),
+                ParallelBrowser.facetPartitions("color", Arrays.asList("red", "blue")));
+    }
+
+    @Test
+    public void test02_sink() throws AlgoliaException, JSONException {
+        Index index = new BrowseClient(Integer.MAX_VALUE).initIndex("records");
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        new ParallelBrowser(index, new Query().setFilters("visible:\"1\""), ParallelBrowser.numericRangePartitions("id", 0, 299, 4))
+                .setParallelism(3).browse(new ParallelBrowser.HitSink() {
+                    @Override
+                    public void onHit(JSONObject hit) throws AlgoliaException {
+                        assertTrue(ids.add(hit.optString("objectID")));
+                    }
+                });
+        assertEquals(300, ids.size());
+    }
+
+    @Test
+    public void test03_iterator() throws AlgoliaException, JSONException {
+        Index index = new BrowseClient(Integer.MAX_VALUE).initIndex("records");
+        Set<String> ids = new HashSet<String>();
+        Iterator<JSONObject> iterator = new ParallelBrowser(index, new Query().setFilters("visible:\"1\""), ParallelBrowser.numericRangePartitions("id", 0, 299, 5))
+                .setQueueSize(7).iterator();
+        while (iterator.hasNext()) {
+            assertTrue(ids.add(iterator.next().getString("objectID")));
+        }
+        assertEquals(300, ids.size());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void test04_errors() {
+        Index index = new BrowseClient(150).initIndex("records");
+        try {
+            new ParallelBrowser(index, new Query().setFilters("visible:\"1\""), ParallelBrowser.numericRangePartitions("id", 0, 299, 3)).browse(new ParallelBrowser.HitSink() {
+                @Override
+                public void onHit(JSONObject hit) {
+                }
+            });
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals(500, e.getCode());
+        }
+        ParallelBrowser.HitIterator iterator = new ParallelBrowser(index, new Query().setFilters("visible:\"1\""), ParallelBrowser.numericRangePartitions("id", 0, 299, 3)).iterator();
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+            }
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("failure", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void test05_lastPartitionFails() {
+        Index index = new BrowseClient(200).initIndex("records");
+        // with one worker, the failing partition is the last one to finish, failing on its first page
+        ParallelBrowser.HitIterator iterator = new ParallelBrowser(index, new Query().setFilters("visible:\"1\""), ParallelBrowser.numericRangePartitions("id", 0, 299, 3))
+                .setParallelism(1).iterator();
+        int count = 0;
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                ++count;
+            }
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("failure", e.getCause().getMessage());
+        }
+        assertEquals(200, count);
+    }
+}
@@ -0,0 +1,60 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PercentEncoderTest {
+
+    private static void assertSameAsURLEncoder(String value) throws UnsupportedEncodingException {
+        assertEquals(URLEncoder.encode(value, "UTF-8"), PercentEncoder.encode(value));
+        assertEquals("a=" + URLEncoder.encode(value, "UTF-8"), PercentEncoder.encode(new StringBuilder("a="), value).toString());
+    }
+
+    @Test
+    public void test01_ascii() throws UnsupportedEncodingException {
+        String safe = "azAZ09.-*_";
+        assertSame(safe, PercentEncoder.encode(safe));
+        assertSameAsURLEncoder("");
+        assertSameAsURLEncoder("a b+c&d=e/f?g%h~i'j(k)l!m,n;o:p@q#r$s\"t<u>v[w]x{y}z|\\^`");
+        for (char c = 0; c < 128; ++c) {
+            assertSameAsURLEncoder("x" + c + "y");
+        }
+    }
+
+    @Test
+    public void test02_unicode() throws UnsupportedEncodingException {
+        assertSameAsURLEncoder("éàü ñ");
+        assertSameAsURLEncoder("ÿĀ߿ࠀ￿");
+        assertSameAsURLEncoder("東京 タワー");
+        assertSameAsURLEncoder("😀 emoji");
+        // unpaired surrogates
+        assertSameAsURLEncoder("a\ud83db");
+        assertSameAsURLEncoder("a\ude00b");
+        assertSameAsURLEncoder("\ud83d");
+        assertSameAsURLEncoder("\ude00\ud83d");
+    }
+
+    @Test
+    public void test03_random() throws UnsupportedEncodingException {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; ++i) {
+            char[] chars = new char[random.nextInt(20)];
+            for (int j = 0; j < chars.length; ++j) {
+                chars[j] = random.nextBoolean() ? (char) random.nextInt(128) : (char) random.nextInt(0x10000);
+            }
+            assertSameAsURLEncoder(new String(chars));
+        }
+    }
+}
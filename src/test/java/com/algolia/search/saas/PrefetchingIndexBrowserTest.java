@@ -0,0 +1,134 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PrefetchingIndexBrowserTest {
+
+    /**
+     * Fake index of 100 records browsed by pages of 10 hits, the cursor being the id of the next record
+     */
+    private static class BrowseClient extends APIClient {
+        final AtomicInteger requests = new AtomicInteger();
+        final int failAt;
+        volatile boolean crash;
+        volatile boolean fatal;
+
+        BrowseClient(int failAt) {
+            super("appID", "apiKey");
+            this.failAt = failAt;
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            requests.incrementAndGet();
+            int start = url.contains("cursor=") ? Integer.parseInt(url.substring(url.indexOf("cursor=") + 7)) : 0;
+            if (start >= failAt) {
+                if (fatal) {
+                    throw new StackOverflowError("Too deep");
+                }
+                if (crash) {
+                    throw new IllegalStateException("Connection pool shut down");
+                }
+                throw new AlgoliaException(500, "failure");
+            }
+            try {
+                JSONArray hits = new JSONArray();
+                for (int id = start; id < start + 10; ++id) {
+                    hits.put(new JSONObject().put("objectID", id));
+                }
+                JSONObject page = new JSONObject().put("hits", hits);
+                if (start + 10 < 100) {
+                    page.put("cursor", String.valueOf(start + 10));
+                }
+                return page;
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_browse() throws AlgoliaException, JSONException, InterruptedException {
+        BrowseClient client = new BrowseClient(Integer.MAX_VALUE);
+        PrefetchingIndexBrowser browser = client.initIndex("records").browse(new Query(), 2);
+        int expected = 0;
+        while (browser.hasNext()) {
+            assertEquals(expected++, browser.next().getInt("objectID"));
+        }
+        assertEquals(100, expected);
+        assertNull(browser.getCursor());
+        assertFalse(browser.hasNext());
+        assertEquals(10, client.requests.get());
+
+        browser = client.initIndex("records").browseFrom(new Query(), "50", 1);
+        assertEquals(50, browser.next().getInt("objectID"));
+        assertEquals("60", browser.getCursor());
+        browser.close();
+    }
+
+    @Test
+    public void test02_error() throws AlgoliaException, JSONException {
+        PrefetchingIndexBrowser browser = new BrowseClient(30).initIndex("records").browse(new Query(), 3);
+        int count = 0;
+        try {
+            while (browser.hasNext()) {
+                browser.next();
+                ++count;
+            }
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(30, count);
+            assertEquals(500, ((AlgoliaException) e.getCause()).getCode());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void test03_runtimeError() throws AlgoliaException {
+        BrowseClient client = new BrowseClient(30);
+        client.crash = true;
+        PrefetchingIndexBrowser browser = client.initIndex("records").browse(new Query(), 3);
+        int count = 0;
+        try {
+            while (browser.hasNext()) {
+                browser.next();
+                ++count;
+            }
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(30, count);
+            assertTrue(e.getCause().getMessage().contains("Connection pool shut down"));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void test04_fatalError() throws AlgoliaException {
+        BrowseClient client = new BrowseClient(30);
+        client.fatal = true;
+        PrefetchingIndexBrowser browser = client.initIndex("records").browse(new Query(), 1);
+        try {
+            while (browser.hasNext()) {
+                browser.next();
+            }
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getCause().getMessage().contains("Too deep"));
+        }
+    }
+}
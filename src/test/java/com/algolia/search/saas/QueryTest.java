@@ -3,6 +3,11 @@ package com.algolia.search.saas;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -21,4 +26,152 @@ public class QueryTest {
         String qs = q0.getQueryString();
         assertTrue(qs.contains("hitsPerPage=20"));
     }
+
+    @Test
+    public void queryStringInvalidatedBySetters() {
+        Query q0 = new Query("foo").setHitsPerPage(20);
+        String qs = q0.getQueryString();
+        assertTrue(qs == q0.getQueryString());
+        q0.setPage(2);
+        assertEquals("page=2&hitsPerPage=20&query=foo", q0.getQueryString());
+    }
+
+    @Test
+    public void queryStringInvalidatedByListChanges() {
+        List<String> attributes = new ArrayList<String>();
+        attributes.add("name");
+        Query q0 = new Query().setAttributesToRetrieve(attributes);
+        assertEquals("attributes=name", q0.getQueryString());
+        attributes.add("price");
+        assertEquals("attributes=name,price", q0.getQueryString());
+    }
+
+    @Test
+    public void queryStringCopied() {
+        Query q0 = new Query("foo").setHitsPerPage(20);
+        String qs = q0.getQueryString();
+        Query q1 = new Query(q0);
+        assertTrue(qs == q1.getQueryString());
+        q1.setHitsPerPage(10);
+        assertEquals("hitsPerPage=10&query=foo", q1.getQueryString());
+        assertEquals("hitsPerPage=20&query=foo", q0.getQueryString());
+    }
+
+    @Test
+    public void queryTemplate() {
+        Query q0 = new Query("default").setHitsPerPage(5).setFilters("public");
+        QueryTemplate template = new QueryTemplate(q0);
+        assertEquals("hitsPerPage=5", template.getStaticParams());
+        assertEquals("hitsPerPage=5&page=1&query=a+b&filters=public", template.getQueryString("a b", 1));
+        assertEquals("hitsPerPage=5&query=default&filters=other&userToken=42", template.getQueryString(null, null, "42", "other"));
+        q0.setHitsPerPage(10);
+        assertEquals("hitsPerPage=5", template.getStaticParams());
+    }
+
+    @Test
+    public void geoShapes() {
+        Query q0 = new Query().addInsidePolygon(48.853409f, 2.3488f).addInsidePolygon(1f, -2.5f).addInsidePolygon(0.00001f, 3f);
+        assertEquals("insidePolygon=48.85341,2.3488,1,-2.5,0.00001,3", q0.getQueryString());
+
+        GeoPolygon polygon = new GeoPolygon(1000);
+        for (int i = 0; i < 1000; ++i) {
+            polygon.add(i / 10.0, 0.5);
+        }
+        assertEquals(1000, polygon.size());
+        Query q1 = new Query().addInsidePolygon(polygon).addInsidePolygon(new GeoPolygon().add(1, 2).add(3, 4).add(5, 6));
+        polygon.add(1, 1);
+        String qs = q1.getQueryString();
+        assertTrue(qs.startsWith("insidePolygon=%5B%5B0%2C0.5%2C0.1%2C0.5%2C"));
+        assertTrue(qs.endsWith("99.9%2C0.5%5D%2C%5B1%2C2%2C3%2C4%2C5%2C6%5D%5D"));
+        assertEquals(qs, new Query(q1).getQueryString());
+        assertEquals(1000, q1.getInsidePolygons().get(0).size());
+
+        Query q2 = new Query().insideBoundingBox(1.5f, 2f, 3f, 4f).insideBoundingBox(5f, 6f, 7f, 8f);
+        assertEquals("insideBoundingBox=1.5,2,3,4,5,6,7,8", q2.getQueryString());
+        assertEquals("insideBoundingBox=1.5,2,3,4,5,6,7,8", q2.getInsideBoundingBox());
+        q2.setInsideBoundingBox(new GeoBoundingBoxes().add(-1.25, 180, 1e-7, 0.1));
+        assertEquals("insideBoundingBox=-1.25,180,0.0000001,0.1", q2.getQueryString());
+        q2.setInsideBoundingBox(null);
+        assertEquals("", q2.getQueryString());
+
+        // the points never extend a polygon given as a GeoPolygon
+        Query q3 = new Query().addInsidePolygon(new GeoPolygon().add(1, 2).add(3, 4).add(5, 6)).addInsidePolygon(7f, 8f);
+        assertEquals(2, q3.getInsidePolygons().size());
+        assertEquals(1, q3.getInsidePolygons().get(1).size());
+        try {
+            new Query().addInsidePolygon(new GeoPolygon().add(1, 2).add(3, 4));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void geoEncodedFields() {
+        Query query = new Query() {
+            {
+                insideBoundingBox = "insideBoundingBox=1,2,3,4";
+            }
+        };
+        assertEquals("insideBoundingBox=1,2,3,4", query.getQueryString());
+        assertEquals("insideBoundingBox=1,2,3,4", new Query(query).getInsideBoundingBox());
+        query.insideBoundingBox(5f, 6f, 7f, 8f);
+        assertEquals("insideBoundingBox=5,6,7,8", query.getQueryString());
+    }
+
+    @Test
+    public void fingerprint() {
+        List<String> attributes = new ArrayList<String>();
+        attributes.add("name");
+        attributes.add("price");
+        Query q0 = new Query("foo").setHitsPerPage(10).setAttributesToRetrieve(attributes).setFacets(Arrays.asList("brand", "color"));
+        Query q1 = new Query().setFacets(Arrays.asList("color", "brand")).setAttributesToRetrieve(Arrays.asList("price", "name")).setHitsPerPage(10).setQueryString("foo");
+        assertEquals(q0.fingerprint(), q1.fingerprint());
+        assertEquals(q0.fingerprint().toString(), q1.fingerprint().toString());
+        assertEquals(32, q0.fingerprint().toString().length());
+        assertEquals(q0.fingerprint(), new Query(q0).fingerprint());
+
+        Fingerprint before = q0.fingerprint();
+        q0.setPage(0);
+        assertFalse(before.equals(q0.fingerprint()));
+        q0 = new Query(q1);
+        attributes = new ArrayList<String>(attributes);
+        q1.setAttributesToRetrieve(attributes);
+        before = q1.fingerprint();
+        attributes.add("color");
+        assertFalse(before.equals(q1.fingerprint()));
+
+        assertFalse(new Query("a").fingerprint().equals(new Query().setSimilarQueryString("a").fingerprint()));
+        assertFalse(new Query().fingerprint().equals(new Query("").fingerprint()));
+        assertFalse(new APIClient.IndexQuery("i1", q0).fingerprint().equals(new APIClient.IndexQuery("i2", q0).fingerprint()));
+        assertEquals(new APIClient.IndexQuery("i1", q0).fingerprint(), new APIClient.IndexQuery("i1", new Query(q0)).fingerprint());
+    }
+
+    @Test
+    public void listModifiedWithSameHashCode() {
+        List<String> attributes = new ArrayList<String>();
+        attributes.add("Aa");
+        Query query = new Query().setAttributesToRetrieve(attributes);
+        assertEquals("attributes=Aa", query.getQueryString());
+        Fingerprint fingerprint = query.fingerprint();
+        // "Aa" and "BB" have the same hash code
+        attributes.set(0, "BB");
+        assertEquals(Arrays.asList("Aa").hashCode(), attributes.hashCode());
+        assertEquals("attributes=BB", query.getQueryString());
+        assertFalse(fingerprint.equals(query.fingerprint()));
+        assertEquals(new Query().setAttributesToRetrieve(Arrays.asList("BB")).fingerprint(), query.fingerprint());
+    }
+
+    @Test
+    public void subclassWritingFields() {
+        Query query = new Query() {
+            {
+                setPage(1);
+                getQueryString();
+                page = 2;
+                invalidate();
+            }
+        };
+        assertEquals("page=2", query.getQueryString());
+    }
 }
@@ -0,0 +1,143 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SearchBatcherTest {
+
+    /**
+     * Answers each query with its index name and parameters, rejects the batches containing an "invalid" query
+     */
+    private static class RecordingClient extends APIClient {
+        final List<List<String>> calls = Collections.synchronizedList(new ArrayList<List<String>>());
+
+        RecordingClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        JSONObject multipleQueries(List<String> indexNames, List<String> paramsStrings, String strategy) throws AlgoliaException {
+            assertEquals("none", strategy);
+            calls.add(new ArrayList<String>(paramsStrings));
+            for (String params : paramsStrings) {
+                if (params.contains("invalid")) {
+                    throw new AlgoliaException(400, "Invalid query");
+                }
+            }
+            try {
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < paramsStrings.size(); ++i) {
+                    results.put(new JSONObject().put("index", indexNames.get(i)).put("params", paramsStrings.get(i)));
+                }
+                return new JSONObject().put("results", results);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Run one search per query from concurrent threads
+     *
+     * @return the answers, or the errors, in the order of the queries
+     */
+    private static List<Object> searchConcurrently(final Index index, final List<String> queries) throws InterruptedException {
+        final Object[] answers = new Object[queries.size()];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < queries.size(); ++i) {
+            final int position = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        answers[position] = index.search(new Query(queries.get(position)));
+                    } catch (AlgoliaException e) {
+                        answers[position] = e;
+                    } catch (InterruptedException e) {
+                        answers[position] = e;
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<Object> result = new ArrayList<Object>();
+        Collections.addAll(result, answers);
+        return result;
+    }
+
+    private static List<String> queries(String... queries) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, queries);
+        return list;
+    }
+
+    @Test
+    public void test01_concurrentSearchesAreBatched() throws InterruptedException, JSONException {
+        RecordingClient client = new RecordingClient();
+        client.enableSearchBatching(300, 100);
+        List<Object> answers = searchConcurrently(client.initIndex("products"), queries("a", "b", "c", "d", "e"));
+        assertEquals(1, client.calls.size());
+        assertEquals(5, client.calls.get(0).size());
+        for (int i = 0; i < answers.size(); ++i) {
+            JSONObject answer = (JSONObject) answers.get(i);
+            assertEquals("products", answer.getString("index"));
+            assertEquals("query=" + "abcde".charAt(i), answer.getString("params"));
+        }
+
+        // without batching, the searches are sent alone
+        client.disableSearchBatching();
+        assertNull(client.getSearchBatcher());
+    }
+
+    @Test
+    public void test02_fullBatchesAreSentWithoutWaiting() throws InterruptedException {
+        RecordingClient client = new RecordingClient();
+        client.enableSearchBatching(5000, 3);
+        long start = System.currentTimeMillis();
+        List<Object> answers = searchConcurrently(client.initIndex("products"), queries("a", "b", "c", "d", "e", "f"));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(2, client.calls.size());
+        assertEquals(3, client.calls.get(0).size());
+        assertEquals(3, client.calls.get(1).size());
+        for (Object answer : answers) {
+            assertTrue(answer instanceof JSONObject);
+        }
+    }
+
+    @Test
+    public void test03_invalidQueryOnlyFailsItsCaller() throws InterruptedException, JSONException {
+        RecordingClient client = new RecordingClient();
+        client.enableSearchBatching(300, 100);
+        List<Object> answers = searchConcurrently(client.initIndex("products"), queries("a", "invalid", "c"));
+        // the failed batch is followed by one call per query
+        assertEquals(4, client.calls.size());
+        assertEquals(3, client.calls.get(0).size());
+        assertEquals("query=a", ((JSONObject) answers.get(0)).getString("params"));
+        assertEquals(400, ((AlgoliaException) answers.get(1)).getCode());
+        assertEquals("query=c", ((JSONObject) answers.get(2)).getString("params"));
+    }
+}
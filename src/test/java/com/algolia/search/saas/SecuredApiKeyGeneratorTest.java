@@ -0,0 +1,58 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SecuredApiKeyGeneratorTest {
+    private static final String privateApiKey = "182634d8894831d5dbce3b3185c50881";
+
+    private final APIClient client = new APIClient("appID", "apiKey");
+
+    @Test
+    public void test01_sameKeyAsClient() throws NoSuchAlgorithmException, InvalidKeyException {
+        SecuredApiKeyGenerator generator = new SecuredApiKeyGenerator(privateApiKey);
+        Query query = new Query().setTagFilters("(public,user1)");
+        assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(query)), generator.generateSecuredApiKey(query));
+        assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(query), "42"), generator.generateSecuredApiKey(query, "42"));
+        // cached value
+        assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(query), "42"), generator.generateSecuredApiKey(query, "42"));
+    }
+
+    @Test
+    public void test02_queryNotModified() throws NoSuchAlgorithmException, InvalidKeyException {
+        SecuredApiKeyGenerator generator = new SecuredApiKeyGenerator(privateApiKey, 0);
+        Query query = new Query().setTagFilters("public").setUserToken("1");
+        assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(query), "2"), generator.generateSecuredApiKey(query, "2"));
+        assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(query)), generator.generateSecuredApiKey(query));
+    }
+
+    @Test
+    public void test03_bulk() throws NoSuchAlgorithmException, InvalidKeyException {
+        SecuredApiKeyGenerator generator = new SecuredApiKeyGenerator(privateApiKey);
+        Query query = new Query().setTagFilters("public");
+        Map<String, String> keys = generator.generateSecuredApiKeys(query, Arrays.asList("a b", "é", "c"));
+        assertEquals(3, keys.size());
+        for (Map.Entry<String, String> entry : keys.entrySet()) {
+            assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(query), entry.getKey()), entry.getValue());
+        }
+
+        List<Query> queries = Arrays.asList(new Query().setTagFilters("t1"), new Query().setNumericFilters("price>10"));
+        List<String> filterKeys = generator.generateSecuredApiKeys(queries);
+        for (int i = 0; i < queries.size(); ++i) {
+            assertEquals(client.generateSecuredApiKey(privateApiKey, new Query(queries.get(i))), filterKeys.get(i));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SettingsManagerTest {
+
+    /**
+     * Fake server keeping the settings of each index, the settings of the "locked" indices cannot be modified
+     */
+    private static class SettingsClient extends APIClient {
+        final Map<String, JSONObject> settings = Collections.synchronizedMap(new LinkedHashMap<String, JSONObject>());
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        SettingsClient() {
+            super("appID", "apiKey");
+        }
+
+        private static String indexName(String url) {
+            return url.split("/")[3];
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            requests.add("GET " + url);
+            try {
+                if (url.contains("/task/")) {
+                    return new JSONObject().put("status", "published");
+                }
+                JSONObject current = settings.get(indexName(url));
+                return new JSONObject(current == null ? "{}" : current.toString());
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+
+        @Override
+        protected JSONObject putRequest(String url, String obj, boolean build) throws AlgoliaException {
+            requests.add("PUT " + url);
+            if (indexName(url).startsWith("locked")) {
+                throw new AlgoliaException(403, "Method not allowed with this API key");
+            }
+            try {
+                settings.put(indexName(url), new JSONObject(obj));
+                return new JSONObject().put("taskID", 42);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_jsonEquals() throws JSONException {
+        assertTrue(SettingsManager.jsonEquals(JSONObject.NULL, null));
+        assertFalse(SettingsManager.jsonEquals(JSONObject.NULL, "null"));
+        // numbers are compared by value
+        assertTrue(SettingsManager.jsonEquals(1, 1L));
+        assertTrue(SettingsManager.jsonEquals(1, 1.0));
+        assertFalse(SettingsManager.jsonEquals(1, "1"));
+        assertFalse(SettingsManager.jsonEquals(1, 2));
+        // arrays are ordered
+        assertTrue(SettingsManager.jsonEquals(new JSONArray("[\"a\",1]"), new JSONArray("[\"a\",1.0]")));
+        assertFalse(SettingsManager.jsonEquals(new JSONArray("[\"a\",\"b\"]"), new JSONArray("[\"b\",\"a\"]")));
+        assertFalse(SettingsManager.jsonEquals(new JSONArray("[\"a\"]"), new JSONArray("[\"a\",\"b\"]")));
+        // a null attribute of a nested object is equal to a missing one
+        assertTrue(SettingsManager.jsonEquals(new JSONObject("{\"a\":{\"b\":[1,2]},\"c\":null}"), new JSONObject("{\"a\":{\"b\":[1,2.0]}}")));
+        assertFalse(SettingsManager.jsonEquals(new JSONObject("{\"a\":{\"b\":1}}"), new JSONObject("{\"a\":{\"b\":1,\"c\":2}}")));
+        assertFalse(SettingsManager.jsonEquals(new JSONObject("{}"), new JSONArray("[]")));
+    }
+
+    @Test
+    public void test02_hasChanges() throws JSONException {
+        JSONObject current = new JSONObject("{\"hitsPerPage\":20,\"attributesToIndex\":[\"name\",\"brand\"],\"distinct\":null}");
+        // the settings that are not specified are left untouched
+        assertFalse(SettingsManager.hasChanges(new JSONObject("{\"hitsPerPage\":20.0}"), current));
+        assertFalse(SettingsManager.hasChanges(new JSONObject("{\"distinct\":null,\"customRanking\":null}"), current));
+        assertTrue(SettingsManager.hasChanges(new JSONObject("{\"attributesToIndex\":[\"brand\",\"name\"]}"), current));
+        assertTrue(SettingsManager.hasChanges(new JSONObject("{\"customRanking\":[\"desc(popularity)\"]}"), current));
+    }
+
+    @Test
+    public void test03_onlyChangedSettingsAreSent() throws AlgoliaException, JSONException {
+        SettingsClient client = new SettingsClient();
+        client.settings.put("products", new JSONObject("{\"hitsPerPage\":20}"));
+        SettingsManager manager = new SettingsManager(client);
+        assertFalse(manager.setSettings("products", new JSONObject("{\"hitsPerPage\":20}"), true));
+        assertTrue(manager.setSettings("products", new JSONObject("{\"hitsPerPage\":10}"), true));
+        // the cache is updated with the new settings
+        assertFalse(manager.setSettings("products", new JSONObject("{\"hitsPerPage\":10}"), true));
+        assertEquals(10, manager.getSettings("products").getInt("hitsPerPage"));
+        assertEquals(3, client.requests.size());
+        assertEquals("GET /1/indexes/products/settings", client.requests.get(0));
+        assertEquals("PUT /1/indexes/products/settings", client.requests.get(1));
+        assertEquals("GET /1/indexes/products/task/42", client.requests.get(2));
+
+        manager.invalidate("products");
+        manager.getSettings("products");
+        assertEquals(4, client.requests.size());
+    }
+
+    @Test
+    public void test04_parallelErrors() throws JSONException {
+        SettingsClient client = new SettingsClient();
+        SettingsManager manager = new SettingsManager(client).setParallelism(2);
+        Map<String, JSONObject> settings = new LinkedHashMap<String, JSONObject>();
+        for (String indexName : new String[]{"a", "locked1", "b", "locked2"}) {
+            settings.put(indexName, new JSONObject().put("hitsPerPage", 5));
+        }
+        try {
+            manager.setSettings(settings, false);
+            fail("AlgoliaException expected");
+        } catch (AlgoliaException e) {
+            assertEquals("Cannot set settings: locked1=Method not allowed with this API key, locked2=Method not allowed with this API key", e.getMessage());
+        }
+        // the other indices are updated
+        assertEquals(5, client.settings.get("a").getInt("hitsPerPage"));
+        assertEquals(5, client.settings.get("b").getInt("hitsPerPage"));
+    }
+
+    @Test
+    public void test05_parallelResults() throws AlgoliaException, JSONException {
+        SettingsClient client = new SettingsClient();
+        client.settings.put("b", new JSONObject().put("hitsPerPage", 5));
+        Map<String, JSONObject> settings = new LinkedHashMap<String, JSONObject>();
+        for (String indexName : new String[]{"a", "b", "c"}) {
+            settings.put(indexName, new JSONObject().put("hitsPerPage", 5));
+        }
+        Map<String, Boolean> results = new SettingsManager(client).setSettings(settings, true);
+        assertEquals(new ArrayList<String>(settings.keySet()), new ArrayList<String>(results.keySet()));
+        assertTrue(results.get("a"));
+        assertFalse(results.get("b"));
+        assertTrue(results.get("c"));
+    }
+}
@@ -0,0 +1,218 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TaskWatcherTest {
+
+    /**
+     * Publishes the tasks up to a given id and records the polled task urls
+     */
+    private static class TaskClient extends APIClient {
+        final List<String> polled = Collections.synchronizedList(new ArrayList<String>());
+        volatile long publishedUpTo;
+        volatile int crashes;
+        // the tasks from this id are unknown
+        volatile long unknownFrom = Long.MAX_VALUE;
+
+        TaskClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            polled.add(url);
+            if (crashes > 0) {
+                --crashes;
+                throw new IllegalStateException("Connection pool shut down");
+            }
+            if (url.contains("/missing/")) {
+                throw new AlgoliaException(404, "Index does not exist");
+            }
+            long taskID = Long.parseLong(url.substring(url.lastIndexOf('/') + 1));
+            if (taskID >= unknownFrom) {
+                throw new AlgoliaException(404, "Task does not exist");
+            }
+            try {
+                return new JSONObject().put("status", taskID <= publishedUpTo ? "published" : "notPublished");
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void test01_onlyNewestTaskIsPolled() throws Exception {
+        TaskClient client = new TaskClient();
+        TaskWatcher watcher = new TaskWatcher().setPollIntervals(10, 20);
+        Index products = client.initIndex("products");
+        Index users = client.initIndex("users");
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 1; i <= 100; ++i) {
+            futures.add(watcher.watch(products, String.valueOf(i)));
+        }
+        Future<String> user = watcher.watch(users, "7");
+        Thread.sleep(100);
+        assertFalse(futures.get(0).isDone());
+        assertEquals(101, watcher.getPendingCount());
+        for (String url : new ArrayList<String>(client.polled)) {
+            assertTrue(url, url.equals("/1/indexes/products/task/100") || url.equals("/1/indexes/users/task/7"));
+        }
+
+        client.publishedUpTo = 100;
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(String.valueOf(i + 1), futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals("7", user.get(5, TimeUnit.SECONDS));
+        assertEquals(0, watcher.getPendingCount());
+
+        // polling stops once nothing is pending
+        int polls = client.polled.size();
+        Thread.sleep(100);
+        assertEquals(polls, client.polled.size());
+        watcher.close();
+    }
+
+    @Test
+    public void test02_callbacks() throws Exception {
+        TaskClient client = new TaskClient();
+        client.publishedUpTo = 5;
+        TaskWatcher watcher = new TaskWatcher().setPollIntervals(10, 20);
+        final List<String> published = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        TaskWatcher.TaskCallback callback = new TaskWatcher.TaskCallback() {
+            @Override
+            public void onPublished(String indexName, String taskID) {
+                published.add(indexName + "/" + taskID);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(String indexName, String taskID, AlgoliaException error) {
+                failed.add(indexName + "/" + taskID + " " + error.getCode());
+                done.countDown();
+            }
+        };
+        watcher.watch(client.initIndex("products"), "4", callback);
+        watcher.watch(client.initIndex("products"), "5", callback);
+        Future<String> missing = watcher.watch(client.initIndex("missing"), "1", callback);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Collections.sort(published);
+        assertEquals("[products/4, products/5]", published.toString());
+        assertEquals("[missing/1 404]", failed.toString());
+        try {
+            missing.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals(404, ((AlgoliaException) e.getCause()).getCode());
+        }
+        watcher.close();
+    }
+
+    @Test
+    public void test03_close() throws InterruptedException, TimeoutException {
+        TaskClient client = new TaskClient();
+        TaskWatcher watcher = new TaskWatcher();
+        Future<String> future = watcher.watch(client.initIndex("products"), "3");
+        try {
+            watcher.watch(client.initIndex("products"), "abc");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        watcher.close();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals("The task watcher is closed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void test04_failingCallbackAndRequest() throws Exception {
+        TaskClient client = new TaskClient();
+        client.publishedUpTo = 3;
+        client.crashes = 2;
+        TaskWatcher watcher = new TaskWatcher().setPollIntervals(10, 20);
+        final List<String> published = Collections.synchronizedList(new ArrayList<String>());
+        TaskWatcher.TaskCallback callback = new TaskWatcher.TaskCallback() {
+            @Override
+            public void onPublished(String indexName, String taskID) {
+                published.add(taskID);
+                throw new IllegalStateException("callback failure");
+            }
+
+            @Override
+            public void onFailure(String indexName, String taskID, AlgoliaException error) {
+            }
+        };
+        Index index = client.initIndex("products");
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 1; i <= 3; ++i) {
+            futures.add(watcher.watch(index, String.valueOf(i), callback));
+        }
+        // the index is polled again after the failed requests
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(String.valueOf(i + 1), futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < 100 && published.size() < 3; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, published.size());
+        assertEquals(0, watcher.getPendingCount());
+        watcher.close();
+    }
+
+    @Test
+    public void test05_clientsAndUnknownTasks() throws Exception {
+        TaskClient first = new TaskClient();
+        TaskClient second = new TaskClient();
+        first.publishedUpTo = 10;
+        TaskWatcher watcher = new TaskWatcher().setPollIntervals(10, 20);
+        // same index name on two applications
+        Future<String> firstTask = watcher.watch(first.initIndex("products"), "5");
+        Future<String> secondTask = watcher.watch(second.initIndex("products"), "8");
+        assertEquals("5", firstTask.get(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertFalse(secondTask.isDone());
+        assertTrue(second.polled.contains("/1/indexes/products/task/8"));
+        second.publishedUpTo = 8;
+        assertEquals("8", secondTask.get(5, TimeUnit.SECONDS));
+
+        // an unknown newest task does not fail the older ones
+        first.unknownFrom = 50;
+        Future<String> older = watcher.watch(first.initIndex("products"), "9");
+        Future<String> unknown = watcher.watch(first.initIndex("products"), "60");
+        try {
+            unknown.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals(404, ((AlgoliaException) e.getCause()).getCode());
+        }
+        assertEquals("9", older.get(5, TimeUnit.SECONDS));
+        watcher.close();
+    }
+}
@@ -0,0 +1,244 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.MethodSorters;
+
+@RunWith(JUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class WriteSpoolTest {
+
+    /**
+     * Client with an unreachable host, recording the replayed batches after failing the first replays
+     */
+    private static class ReplayClient extends APIClient {
+        final List<String> replayed = Collections.synchronizedList(new ArrayList<String>());
+        volatile int failures;
+        volatile int unauthorized;
+        volatile int crashes;
+
+        ReplayClient(int failures) {
+            super("appID", "apiKey", Arrays.asList("localhost:1"), Arrays.asList("localhost:1"));
+            this.failures = failures;
+        }
+
+        @Override
+        JSONObject sendSpooled(String url, byte[] body) throws AlgoliaException {
+            if (failures > 0) {
+                --failures;
+                throw new AlgoliaException("Hosts unreachable: localhost:1=timeout");
+            }
+            if (unauthorized > 0) {
+                --unauthorized;
+                throw new AlgoliaException(403, "Invalid Application-ID or API key");
+            }
+            if (crashes > 0) {
+                --crashes;
+                throw new IllegalStateException("Connection pool shut down");
+            }
+            try {
+                String content = new String(body, "UTF-8");
+                if (content.contains("invalid")) {
+                    throw new AlgoliaException(400, "Invalid batch");
+                }
+                replayed.add(url + " " + content);
+                return new JSONObject().put("taskID", replayed.size());
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (IOException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    private static File directory() throws IOException {
+        File directory = File.createTempFile("spool", "");
+        directory.delete();
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void waitEmpty(WriteSpool spool) throws InterruptedException {
+        for (int i = 0; i < 500 && !spool.isEmpty(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void test01_reopenAndReplay() throws IOException, AlgoliaException, InterruptedException {
+        File directory = directory();
+        try {
+            WriteSpool spool = new WriteSpool(directory).setSegmentBytes(100);
+            for (int i = 0; i < 5; ++i) {
+                spool.append("/1/indexes/products/batch", ("{\"requests\":[" + i + "]}").getBytes("UTF-8"));
+            }
+            spool.append("/1/indexes/products/batch", "invalid".getBytes("UTF-8"));
+            assertEquals(6, spool.getPendingCount());
+            spool.close();
+            // a partially written record is dropped when reopening
+            File[] files = directory.listFiles();
+            Arrays.sort(files);
+            RandomAccessFile last = new RandomAccessFile(files[files.length - 2], "rw");
+            last.seek(last.length());
+            last.writeInt(1000);
+            last.close();
+
+            spool = new WriteSpool(directory).setBackoff(5, 20).setMaxReplayPerSecond(1000);
+            assertEquals(6, spool.getPendingCount());
+            assertTrue(directory.listFiles().length > 3);
+            ReplayClient client = new ReplayClient(2);
+            client.setWriteSpool(spool);
+            waitEmpty(spool);
+            assertEquals(5, client.replayed.size());
+            assertEquals("/1/indexes/products/batch {\"requests\":[0]}", client.replayed.get(0));
+            assertEquals("/1/indexes/products/batch {\"requests\":[4]}", client.replayed.get(4));
+            assertEquals(5, spool.getReplayedCount());
+            assertEquals(1, spool.getDroppedCount());
+            assertEquals(400, spool.getLastError().getCode());
+            spool.close();
+
+            // the replayed segments are deleted and the position is kept
+            assertTrue(directory.listFiles().length <= 2);
+            spool = new WriteSpool(directory);
+            assertEquals(0, spool.getPendingCount());
+            spool.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void test02_limits() throws IOException, AlgoliaException {
+        File directory = directory();
+        try {
+            WriteSpool spool = new WriteSpool(directory).setMaxBytes(100).setSync(false);
+            spool.append("/1/indexes/products/batch", new byte[50]);
+            try {
+                spool.append("/1/indexes/products/batch", new byte[50]);
+                fail("AlgoliaException expected");
+            } catch (AlgoliaException e) {
+                assertEquals("The write spool is full", e.getMessage());
+            }
+            assertEquals(1, spool.getSpooledCount());
+            assertEquals(8 + 2 + 25 + 50, spool.getPendingBytes());
+            spool.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void test03_client() throws IOException, AlgoliaException, JSONException, InterruptedException {
+        File directory = directory();
+        try {
+            WriteSpool spool = new WriteSpool(directory).setBackoff(5, 20).setMaxReplayPerSecond(1000);
+            // the replay fails as long as the host is unreachable
+            ReplayClient client = new ReplayClient(Integer.MAX_VALUE);
+            client.setWriteSpool(spool);
+            Index index = client.initIndex("products");
+            try {
+                index.saveObjects(Arrays.asList(new JSONObject().put("objectID", "1")));
+                fail("WriteSpooledException expected");
+            } catch (WriteSpooledException e) {
+                assertTrue(e.getMessage().contains("Hosts unreachable: "));
+            }
+            try {
+                index.deleteObjects(Arrays.asList("2"));
+                fail("WriteSpooledException expected");
+            } catch (WriteSpooledException e) {
+                assertTrue(e.getMessage().endsWith("the write spool is not empty"));
+            }
+            assertEquals(2, spool.getSpooledCount());
+            try {
+                index.getObject("1");
+                fail("AlgoliaException expected");
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage().startsWith("Hosts unreachable: "));
+            }
+
+            client.failures = 0;
+            waitEmpty(spool);
+            assertEquals(2, client.replayed.size());
+            assertTrue(client.replayed.get(0).contains("updateObject"));
+            assertTrue(client.replayed.get(1).contains("deleteObject"));
+            spool.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void test04_spooledChunksAreNotRetried() throws IOException, AlgoliaException, JSONException {
+        File directory = directory();
+        try {
+            WriteSpool spool = new WriteSpool(directory).setBackoff(5, 20);
+            ReplayClient client = new ReplayClient(Integer.MAX_VALUE);
+            client.setWriteSpool(spool);
+            List<JSONObject> objects = new ArrayList<JSONObject>();
+            for (int i = 0; i < 10; ++i) {
+                objects.add(new JSONObject().put("objectID", String.valueOf(i)));
+            }
+            BatchUploader.Result result = new BatchUploader(client.initIndex("products")).setChunkSize(3).saveObjects(objects);
+            assertTrue(result.isSuccessful());
+            assertEquals(10, result.getSpooledCount());
+            assertTrue(result.getTaskIDs().isEmpty());
+            // each chunk is spooled once
+            assertEquals(4, spool.getSpooledCount());
+            spool.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void test05_replayErrorsKeepTheBatches() throws IOException, AlgoliaException, InterruptedException {
+        File directory = directory();
+        try {
+            WriteSpool spool = new WriteSpool(directory).setBackoff(5, 20).setMaxReplayPerSecond(1000);
+            spool.append("/1/indexes/products/batch", "{\"requests\":[1]}".getBytes("UTF-8"));
+            ReplayClient client = new ReplayClient(0);
+            client.unauthorized = 2;
+            client.crashes = 2;
+            client.setWriteSpool(spool);
+            waitEmpty(spool);
+            assertEquals(1, client.replayed.size());
+            assertEquals(1, spool.getReplayedCount());
+            assertEquals(0, spool.getDroppedCount());
+            assertTrue(spool.getLastError().getMessage().contains("Connection pool shut down"));
+
+            // the replay thread is still alive
+            spool.append("/1/indexes/products/batch", "{\"requests\":[2]}".getBytes("UTF-8"));
+            waitEmpty(spool);
+            assertEquals(2, client.replayed.size());
+            spool.close();
+        } finally {
+            delete(directory);
+        }
+    }
+}